@@ -0,0 +1,70 @@
+package Lab1Sockets.http.benchmarks;
+
+import Lab1Sockets.http.Client;
+import Lab1Sockets.http.Main;
+import Lab1Sockets.http.PooledSocketClient;
+import Lab1Sockets.http.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PersistentConnectionBenchmark for the servers that hold a thread per connection as long as it is open. The
+ * async server needs a worker for every connection and the virtual one a permit, so both get one for each
+ * connection the client may keep, and there is no number of server threads to vary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class PersistentConnectionPerThreadBenchmark {
+
+    @Param({"async", "virtual"})
+    public String serverType;
+
+    @Param({"echo", "static", "static-file"})
+    public String responseType;
+
+    @Param({"1024", "65536", "2000000"})
+    public int payloadSize;
+
+    private Client client;
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int port = Servers.freePort();
+        // keeps up to MAX_CLIENT_THREADS idle connections, so that every JMH thread gets its own back every time
+        client = new PooledSocketClient(port, PersistentConnectionBenchmark.MAX_CLIENT_THREADS,
+                Main.createResponseProvider(responseType, payloadSize, payloadSize + 1));
+        server = Servers.create(serverType, port, client, PersistentConnectionBenchmark.MAX_CLIENT_THREADS);
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.closeConnections();
+        server.stop();
+    }
+
+    @Benchmark
+    public int request() {
+        return Servers.checkSent(client.sendDataAndGetResponse(client.responseProvider.getRequestData()));
+    }
+}
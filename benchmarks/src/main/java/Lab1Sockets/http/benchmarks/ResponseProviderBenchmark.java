@@ -0,0 +1,62 @@
+package Lab1Sockets.http.benchmarks;
+
+import Lab1Sockets.http.Client;
+import Lab1Sockets.http.FileRegion;
+import Lab1Sockets.http.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The response providers on their own, without any network: what generating a request and its response costs
+ * a client and a server thread, per payload size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseProviderBenchmark {
+
+    @Param({"echo", "static", "static-file"})
+    public String responseType;
+
+    @Param({"1024", "65536", "2000000"})
+    public int payloadSize;
+
+    private Client.ResponseProvider responseProvider;
+    private Function<byte[], byte[]> responseFunction;
+    private Function<byte[], FileRegion> fileResponseFunction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        responseProvider = Main.createResponseProvider(responseType, payloadSize, payloadSize + 1);
+        responseFunction = responseProvider.getResponseGeneratorFunction();
+        fileResponseFunction = responseProvider.getFileResponseFunction();
+    }
+
+    @Benchmark
+    public void requestAndResponse(Blackhole blackhole) {
+        byte[] request = responseProvider.getRequestData();
+        blackhole.consume(request);
+        if (fileResponseFunction != null) {
+            blackhole.consume(fileResponseFunction.apply(request));
+        } else {
+            blackhole.consume(responseFunction.apply(request));
+        }
+    }
+}
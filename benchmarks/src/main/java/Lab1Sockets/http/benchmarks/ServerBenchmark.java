@@ -0,0 +1,70 @@
+package Lab1Sockets.http.benchmarks;
+
+import Lab1Sockets.http.Client;
+import Lab1Sockets.http.Main;
+import Lab1Sockets.http.Server;
+import Lab1Sockets.http.SocketClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One request per connection (SocketClient, CLOSE_DELIMITED), the way Main measures by default. Every JMH
+ * thread is a client sending requests back to back; their number is set with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ServerBenchmark {
+
+    @Param({"sync", "async", "nonblocking"})
+    public String serverType;
+
+    @Param({"echo", "static", "static-file"})
+    public String responseType;
+
+    @Param({"1024", "65536", "2000000"})
+    public int payloadSize;
+
+    @Param({"1", "8"})
+    public int serverThreads;
+
+    private Client client;
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int port = Servers.freePort();
+        // the client's own sending threads are never started, JMH's threads send through it
+        client = new SocketClient(port, 1, Main.createResponseProvider(responseType, payloadSize, payloadSize + 1));
+        server = Servers.create(serverType, port, client, serverThreads);
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public int request() {
+        return Servers.checkSent(client.sendDataAndGetResponse(client.responseProvider.getRequestData()));
+    }
+}
@@ -0,0 +1,56 @@
+package Lab1Sockets.http.benchmarks;
+
+import Lab1Sockets.http.Client;
+import Lab1Sockets.http.Server;
+import Lab1Sockets.http.blocking.BlockingAsyncServer;
+import Lab1Sockets.http.blocking.BlockingSyncServer;
+import Lab1Sockets.http.blocking.BlockingVirtualThreadServer;
+import Lab1Sockets.http.nio2.CompletionHandlerServer;
+import Lab1Sockets.http.nonblocking.NonBlockingWRServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+
+/**
+ * What the benchmarks share: the server variants, built like Main builds them but with the number of
+ * server threads as a parameter, and a free port for every trial.
+ */
+final class Servers {
+
+    private Servers() {
+    }
+
+    /**
+     * serverThreads is the worker pool of the async and completion servers, the reactors of the nonblocking one
+     * and the connection limit of the virtual one; the sync server has only its accepting thread.
+     */
+    static Server create(String serverType, int port, Client client, int serverThreads) {
+        return switch (serverType) {
+            case "sync" -> new BlockingSyncServer(port, client);
+            case "async" -> new BlockingAsyncServer(port, client, serverThreads);
+            case "virtual" -> new BlockingVirtualThreadServer(port, client, serverThreads);
+            case "nonblocking" -> new NonBlockingWRServer(port, client, serverThreads);
+            case "completion" -> new CompletionHandlerServer(port, client, serverThreads);
+            default -> throw new IllegalArgumentException("Unknown server type: " + serverType);
+        };
+    }
+
+    static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A request whose response didn't check out must not count as an operation.
+     */
+    static int checkSent(int sentBytes) {
+        if (sentBytes == 0) {
+            throw new IllegalStateException("Request failed");
+        }
+        return sentBytes;
+    }
+}
@@ -0,0 +1,294 @@
+package Lab1Sockets.http;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides at accept time whether a server takes a connection, so that an overloaded server turns the excess
+ * away at once, while it is cheap to do, instead of letting it queue up until every request is slow.
+ * A connection is admitted if both of these let it in:
+ * <ul>
+ * <li>Its client's token bucket. Every remote address gets connectionsPerSecond tokens per second, up to
+ * burst of them, and every connection takes one, so a single client can't take the server for itself.</li>
+ * <li>The concurrency limit on the requests in flight. The limit adapts to the latency of the requests in the
+ * style of TCP Vegas: the latency without load is the lowest one seen, and
+ * limit * (1 - noLoadLatency / latency) estimates how many of the requests are only waiting in a queue.
+ * If that is more than BETA * log10(limit), the limit goes down by log10(limit). If it is less than
+ * ALPHA * log10(limit) while the limit is in use, the limit goes up by log10(limit). Past the limit,
+ * latency would only grow, so while the server has as many requests in flight as the limit, new connections
+ * are rejected and the accepted ones keep their latency.</li>
+ * </ul>
+ * The limit is on requests and not on connections: an idle persistent connection costs the server nothing,
+ * so a client may keep as many of them open as it likes. The requests being served aren't counted one by one,
+ * which would need every server to report every request that starts, and to not lose the count when one
+ * fails half-way. They are taken from Little's law instead: the sum of the latencies of the requests of a
+ * window divided by the length of the window is the average number of them in flight. To that are added the
+ * connections that were admitted but aren't served yet (e.g. waiting for a worker), which are counted exactly
+ * from tryAdmit() to onServing() or onDropped(): a burst of new connections is work the server took on before
+ * any of its requests can be measured.
+ * <p>
+ * A window is at least WINDOW_NS long, and the limit is adapted only after windows of MIN_WINDOW_SAMPLES
+ * requests or more. The no-load latency is taken again every NO_LOAD_RESET_WINDOWS windows, so that it follows
+ * a change of the workload instead of staying at an old minimum. Thread-safe.
+ */
+public class AdmissionController {
+
+    public static final double DEFAULT_CONNECTIONS_PER_SECOND = 1000;
+    public static final int DEFAULT_BURST = 100;
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    private static final double ALPHA = 3;
+    private static final double BETA = 6;
+    private static final long WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final int NO_LOAD_RESET_WINDOWS = 600;
+    private static final long CLEANUP_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double tokensPerNs;
+    private final int burst;
+    private final int minLimit;
+    private final int maxLimit;
+    // System.nanoTime(), or a clock a test moves by hand
+    private final LongSupplier clock;
+
+    private final Map<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextCleanupNs;
+
+    private volatile double limit;
+    // the average number of requests in flight during the last window
+    private volatile double inFlight;
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    // the current window, updated by the threads that record latencies, and taken by the one that ends it
+    private final LongAdder windowLatencySum = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAdder windowWaitSum = new LongAdder();
+    private final LongAdder windowWaits = new LongAdder();
+    private volatile long windowEndNs;
+    // guarded by this
+    private long windowStartNs;
+    private long noLoadLatencyNs = Long.MAX_VALUE;
+    private int windowsSinceNoLoadReset = 0;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overLimit = new LongAdder();
+
+    public AdmissionController() {
+        this(DEFAULT_CONNECTIONS_PER_SECOND, DEFAULT_BURST, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public AdmissionController(double connectionsPerSecond, int burst, int initialLimit, int minLimit, int maxLimit) {
+        this(connectionsPerSecond, burst, initialLimit, minLimit, maxLimit, System::nanoTime);
+    }
+
+    AdmissionController(double connectionsPerSecond, int burst, int initialLimit, int minLimit, int maxLimit,
+                        LongSupplier clock) {
+        if (connectionsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Connection rate and burst must be positive: "
+                    + connectionsPerSecond + ", " + burst);
+        }
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must be 1 <= min <= initial <= max: "
+                    + minLimit + ", " + initialLimit + ", " + maxLimit);
+        }
+        this.tokensPerNs = connectionsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.clock = clock;
+        this.windowStartNs = clock.getAsLong();
+        this.nextCleanupNs = new AtomicLong(windowStartNs + CLEANUP_INTERVAL_NS);
+        this.windowEndNs = windowStartNs + WINDOW_NS;
+    }
+
+    /**
+     * Returns true if a connection from the address is admitted, and then the server has to call onServing()
+     * once it starts serving it, or onDropped() if it closes it before. Nothing has to be given back after that.
+     */
+    public boolean tryAdmit(InetAddress address) {
+        long nowNs = clock.getAsLong();
+        // a window in which every connection was rejected has no requests to end it
+        if (nowNs >= windowEndNs) {
+            endWindow();
+        }
+        // the check and the increment are one step, or connections accepted at the same time would all see
+        // the last free place and all take it
+        int currentPending;
+        do {
+            currentPending = pending.get();
+            if (inFlight + currentPending >= limit) {
+                overLimit.increment();
+                return false;
+            }
+        } while (!pending.compareAndSet(currentPending, currentPending + 1));
+        if (!buckets.computeIfAbsent(address, ignore -> new TokenBucket(burst, nowNs)).tryTake(nowNs)) {
+            pending.decrementAndGet();
+            rateLimited.increment();
+            return false;
+        }
+        admitted.increment();
+        removeIdleBuckets(nowNs);
+        return true;
+    }
+
+    /**
+     * Records that the server started serving an admitted connection after waiting waitNs for it. The latency a
+     * window is judged by is the average wait plus the average latency of the requests: a server that queues its
+     * connections before serving them doesn't take longer to serve the requests when the queue grows.
+     */
+    public void onServing(long waitNs) {
+        pending.decrementAndGet();
+        windowWaitSum.add(waitNs);
+        windowWaits.increment();
+    }
+
+    /**
+     * Records that an admitted connection was closed without being served.
+     */
+    public void onDropped() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Records the latency of a request served by the server, and adapts the limit at the end of the window.
+     */
+    public void recordLatency(long latencyNs) {
+        windowLatencySum.add(latencyNs);
+        windowSamples.increment();
+        if (clock.getAsLong() >= windowEndNs) {
+            endWindow();
+        }
+    }
+
+    private synchronized void endWindow() {
+        long nowNs = clock.getAsLong();
+        // another thread may have ended it while we were waiting for the lock
+        if (nowNs < windowEndNs) {
+            return;
+        }
+        long samples = windowSamples.sumThenReset();
+        long latencySum = windowLatencySum.sumThenReset();
+        long waits = windowWaits.sumThenReset();
+        long waitSum = windowWaitSum.sumThenReset();
+        inFlight = (double) latencySum / (nowNs - windowStartNs);
+        windowStartNs = nowNs;
+        windowEndNs = nowNs + WINDOW_NS;
+        if (samples < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+        long latencyNs = Math.max(1, latencySum / samples + (waits == 0 ? 0 : waitSum / waits));
+        if (++windowsSinceNoLoadReset >= NO_LOAD_RESET_WINDOWS) {
+            windowsSinceNoLoadReset = 0;
+            noLoadLatencyNs = latencyNs;
+        } else {
+            noLoadLatencyNs = Math.min(noLoadLatencyNs, latencyNs);
+        }
+
+        double current = limit;
+        double log = Math.max(1, Math.log10(current));
+        double queued = current * (1 - (double) noLoadLatencyNs / latencyNs);
+        if (queued > BETA * log) {
+            current -= log;
+        } else if (queued < ALPHA * log && (inFlight + pending.get()) * 2 >= current) {
+            // raising a limit that isn't reached would let a burst through later, with nothing measured
+            current += log;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, current));
+    }
+
+    /**
+     * Drops the buckets that have been refilled to the full burst, about once per CLEANUP_INTERVAL_NS: a
+     * client that comes back gets a full bucket anyway. A connection that takes a token from a bucket just
+     * as it is dropped may go uncounted, which only lets that one through.
+     */
+    private void removeIdleBuckets(long nowNs) {
+        long cleanupNs = nextCleanupNs.get();
+        if (nowNs < cleanupNs || !nextCleanupNs.compareAndSet(cleanupNs, nowNs + CLEANUP_INTERVAL_NS)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.isFull(nowNs));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * The average number of requests in flight during the last window, rounded.
+     */
+    public long getInFlight() {
+        return Math.round(inFlight);
+    }
+
+    /**
+     * Connections admitted but not served yet.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public synchronized long getNoLoadLatencyNs() {
+        return noLoadLatencyNs == Long.MAX_VALUE ? 0 : noLoadLatencyNs;
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * Connections rejected because their client had no tokens left.
+     */
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * Connections rejected because the concurrency limit was reached.
+     */
+    public long getOverLimit() {
+        return overLimit.sum();
+    }
+
+    public int getTrackedClients() {
+        return buckets.size();
+    }
+
+    private final class TokenBucket {
+        private double tokens;
+        private long refilledNs;
+
+        TokenBucket(double tokens, long nowNs) {
+            this.tokens = tokens;
+            this.refilledNs = nowNs;
+        }
+
+        synchronized boolean tryTake(long nowNs) {
+            refill(nowNs);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long nowNs) {
+            refill(nowNs);
+            return tokens >= burst;
+        }
+
+        private void refill(long nowNs) {
+            tokens = Math.min(burst, tokens + (nowNs - refilledNs) * tokensPerNs);
+            refilledNs = nowNs;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package Lab1Sockets.http;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers grouped into power-of-two size classes.
+ * <p>
+ * Servers lease a buffer per connection and give it back when the connection is done with it, so that a
+ * 2 MB request doesn't allocate a fresh array (and a temporary direct buffer inside the JDK) every time.
+ * Requests bigger than the largest size class are served with a one-off heap buffer that is not pooled.
+ * Idle buffers are kept only while the pool holds less than maxPooledBytes, the rest is left to the GC.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private final int minSizeClassShift;
+    private final int maxBufferSize;
+    private final long maxPooledBytes;
+
+    private final Queue<ByteBuffer>[] freeBuffers;
+
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicInteger buffersInUse = new AtomicInteger(0);
+    private final AtomicLong bytesInUse = new AtomicLong(0);
+
+    public BufferPool() {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    public BufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytes) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("Invalid buffer size bounds: [" + minBufferSize + ", " + maxBufferSize + "]");
+        }
+        this.minSizeClassShift = shiftFor(minBufferSize);
+        this.maxBufferSize = 1 << shiftFor(maxBufferSize);
+        this.maxPooledBytes = maxPooledBytes;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<ByteBuffer>[] freeBuffers = new Queue[shiftFor(maxBufferSize) - minSizeClassShift + 1];
+        this.freeBuffers = freeBuffers;
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity. It must be given back with release().
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        ByteBuffer buffer;
+        if (minCapacity > maxBufferSize) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocate(minCapacity);
+        } else {
+            int sizeClass = sizeClassFor(minCapacity);
+            buffer = freeBuffers[sizeClass].poll();
+            if (buffer != null) {
+                hits.incrementAndGet();
+                pooledBytes.addAndGet(-buffer.capacity());
+                buffer.clear();
+            } else {
+                misses.incrementAndGet();
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + minSizeClassShift));
+            }
+        }
+        buffersInUse.incrementAndGet();
+        bytesInUse.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Leases a buffer able to hold at least minCapacity bytes, copies the content of the given one into it
+     * and releases the old buffer. The given buffer is expected to be in write mode, and so is the result.
+     */
+    public ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer grown = acquire(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        release(buffer);
+        return grown;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        buffersInUse.decrementAndGet();
+        bytesInUse.addAndGet(-buffer.capacity());
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity > maxBufferSize) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        freeBuffers[sizeClassFor(capacity)].offer(buffer);
+    }
+
+    public void releaseAll(ByteBuffer[] buffers) {
+        if (buffers == null) {
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Number of bytes left to read in all the buffers. Writes of a response's buffers go on until this is 0:
+     * a gathering write drains them in order, but any of them may be empty to begin with.
+     */
+    public static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getBuffersInUse() {
+        return buffersInUse.get();
+    }
+
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private int sizeClassFor(int capacity) {
+        return Math.max(0, shiftFor(capacity) - minSizeClassShift);
+    }
+
+    private static int shiftFor(int capacity) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1);
+    }
+}
@@ -1,10 +1,17 @@
 package Lab1Sockets.http;
 
+import Lab1Sockets.http.protocol.WireProtocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
@@ -15,6 +22,22 @@ public abstract class Client {
 
         public abstract Function<byte[], byte[]> getResponseGeneratorFunction();
 
+        /**
+         * Providers whose responses are (parts of) files may return a function giving the file region to send,
+         * which the servers prefer over getResponseGeneratorFunction(). Returns null if responses are arrays.
+         */
+        public default Function<byte[], FileRegion> getFileResponseFunction() {
+            return null;
+        }
+
+        /**
+         * Providers may also give a StreamingHandler, which the servers then use instead of the functions, getting
+         * the requests in chunks as they are read. Returns null if they don't.
+         */
+        public default StreamingHandler getStreamingHandler() {
+            return null;
+        }
+
         public abstract boolean checkResponseCorectness(byte[] sentData, byte[] receivedData);
 
         public abstract byte[] getRequestData();
@@ -23,11 +46,84 @@ public abstract class Client {
 
     public abstract int sendDataAndGetResponse(byte[] data);
 
-    private final static int NUMBER_OF_REQUESTS = 200;
+    /**
+     * Sends all the requests and returns, for each of them, what sendDataAndGetResponse() would have returned.
+     * Clients that can pipeline write the requests back-to-back and read the responses in order; this default
+     * just sends them one after another.
+     */
+    public int[] sendPipelinedDataAndGetResponses(byte[][] data) {
+        int[] sentBytes = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            sentBytes[i] = sendDataAndGetResponse(data[i]);
+        }
+        return sentBytes;
+    }
+
+    /**
+     * Lets the client negotiate compression with the server. Has to be called before the client starts sending.
+     */
+    public void enableCompression(CompressorPool compressorPool) {
+        this.compressorPool = compressorPool;
+    }
+
+    /**
+     * Returns the pool set by enableCompression(), or null.
+     */
+    public CompressorPool getCompressorPool() {
+        return compressorPool;
+    }
+
+    /**
+     * Makes the client connect over TLS, with sockets from the context. Has to be called before the client
+     * starts sending. Only the socket, pooled and http clients do TLS, and only the nonblocking server serves it.
+     * <p>
+     * Every socket is created for the server's host and port, so a new connection resumes the session of an
+     * earlier one from the context's client session cache, instead of doing a full handshake.
+     */
+    public void enableTls(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Opens a connection to the server, with the TLS handshake done if enableTls() was called.
+     */
+    protected Socket connect() throws IOException {
+        if (sslContext == null) {
+            return new Socket(localhost.getHostName(), port);
+        }
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(localhost.getHostName(), port);
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * The protocol this client speaks. Servers created for this client speak the same one.
+     */
+    public WireProtocol getWireProtocol() {
+        return WireProtocol.CLOSE_DELIMITED;
+    }
+
+    protected final static int NUMBER_OF_REQUESTS = 200;
 
     protected final int port;
+    protected final int pipelineDepth;
     protected InetAddress localhost;
     public ResponseProvider responseProvider;
+    /**
+     * If set, the client offers compression on every connection (see PayloadCompression). Only the pooled and
+     * http clients do, the others have nothing to negotiate it with.
+     */
+    protected CompressorPool compressorPool;
+    protected SSLContext sslContext;
 
     private final List<Thread> sendingThreads = new ArrayList<>();
 
@@ -39,8 +135,28 @@ public abstract class Client {
     public final AtomicLong timeSpentForUnsuccessfulRequestsNs = new AtomicLong(0);
     public final AtomicInteger successfulRequestsCount = new AtomicInteger(0);
 
+    /**
+     * Latencies of the successful requests. Every sending thread records into histograms of its own and merges
+     * them in here when it is done, so they are complete only after waitForWorkFinish(). Besides the histogram
+     * of the whole run there is one per interval of intervalNs, indexed by when the requests completed.
+     * Guarded by the client's monitor, like the merging of the counters above.
+     */
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private final List<LatencyHistogram> intervalLatencyHistograms = new ArrayList<>();
+    private final long intervalNs = TimeUnit.SECONDS.toNanos(1);
+    private long startTimeNs;
+
     public Client(int port, int numberOfSendingThreads, ResponseProvider responseProvider) {
+        this(port, numberOfSendingThreads, responseProvider, 1);
+    }
+
+    /**
+     * With pipelineDepth greater than 1 every sending thread sends batches of that many requests through
+     * sendPipelinedDataAndGetResponses() instead of one request at a time.
+     */
+    public Client(int port, int numberOfSendingThreads, ResponseProvider responseProvider, int pipelineDepth) {
         this.port = port;
+        this.pipelineDepth = pipelineDepth;
         this.responseProvider = responseProvider;
         this.awaitLatch = new CountDownLatch(numberOfSendingThreads);
         try {
@@ -50,9 +166,42 @@ public abstract class Client {
     }
 
     public void startSendingWithStatisticsCollecting() {
+        startTimeNs = System.nanoTime();
+        startSending();
+    }
+
+    /**
+     * Starts the sending threads. Clients that generate their load some other way override this together with
+     * waitForWorkFinish(), and feed the statistics through RequestStatistics and mergeStatistics().
+     */
+    protected void startSending() {
         sendingThreads.forEach(Thread::start);
     }
 
+    public synchronized LatencyHistogram getLatencyHistogram() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(latencyHistogram);
+        return copy;
+    }
+
+    /**
+     * Latency histograms of the consecutive intervals of the run, an empty one for an interval in which no
+     * request completed.
+     */
+    public synchronized List<LatencyHistogram> getIntervalLatencyHistograms() {
+        List<LatencyHistogram> copies = new ArrayList<>();
+        for (LatencyHistogram histogram : intervalLatencyHistograms) {
+            LatencyHistogram copy = new LatencyHistogram();
+            copy.add(histogram);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    public long getIntervalNs() {
+        return intervalNs;
+    }
+
     public void stopSendingThreads() {
         sendingThreads.forEach(Thread::interrupt);
         sendingThreads.clear();
@@ -66,41 +215,102 @@ public abstract class Client {
         }
     }
 
+    /**
+     * Closes the connections the client keeps open between requests, if it keeps any. Only needed when the
+     * client is driven from outside its sending threads, waitForWorkFinish() does it otherwise.
+     */
+    public void closeConnections() {
+    }
+
     private void populateSendingThreads(int numberOfThreads) {
+        if (numberOfThreads == 0) {
+            return;
+        }
         int requestsLimit = NUMBER_OF_REQUESTS / numberOfThreads;
         for (int i = 0; i < numberOfThreads; i++) {
             sendingThreads.add(new Thread(() -> {
-                long timeSpentForSuccessfulRequestsNs = 0;
-                long bytesSent = 0;
-                int unsuccesfulRequestsCount = 0;
-                int successfulRequestsCount = 0;
-                long timeSpentForUnsuccessfulRequestsNs = 0;
+                RequestStatistics statistics = new RequestStatistics();
 
-                while (!Thread.currentThread().isInterrupted() && successfulRequestsCount < requestsLimit) {
-                    byte[] data = responseProvider.getRequestData();
+                while (!Thread.currentThread().isInterrupted() && statistics.successfulRequestsCount < requestsLimit) {
+                    byte[][] data = new byte[Math.min(pipelineDepth, requestsLimit - statistics.successfulRequestsCount)][];
+                    for (int j = 0; j < data.length; j++) {
+                        data[j] = responseProvider.getRequestData();
+                    }
 
                     long currentTime = System.nanoTime();
-                    int sentBytes = sendDataAndGetResponse(data);
-                    long spentTime = System.nanoTime() - currentTime;
+                    int[] sentBytes = data.length == 1
+                            ? new int[]{sendDataAndGetResponse(data[0])}
+                            : sendPipelinedDataAndGetResponses(data);
+                    long finishTime = System.nanoTime();
+                    // A batch takes as long as its slowest request, so its time is shared equally by its requests.
+                    // For the latency histograms every request of the batch counts as slow as the whole batch,
+                    // as we only know when the last response arrived.
+                    long spentTime = (finishTime - currentTime) / data.length;
 
-                    bytesSent += sentBytes;
-
-                    if (sentBytes == 0) {
-                        unsuccesfulRequestsCount++;
-                        timeSpentForUnsuccessfulRequestsNs += spentTime;
-                    } else {
-                        successfulRequestsCount++;
-                        timeSpentForSuccessfulRequestsNs += spentTime;
+                    for (int requestSentBytes : sentBytes) {
+                        statistics.record(requestSentBytes, spentTime, finishTime - currentTime, finishTime);
                     }
                 }
 
-                this.timeSpentForSuccessfulRequestsNs.addAndGet(timeSpentForSuccessfulRequestsNs);
-                this.bytesSent.addAndGet(bytesSent);
-                this.unsuccesfulRequestsCount.addAndGet(unsuccesfulRequestsCount);
-                this.timeSpentForUnsuccessfulRequestsNs.addAndGet(timeSpentForUnsuccessfulRequestsNs);
-                this.successfulRequestsCount.addAndGet(successfulRequestsCount);
+                mergeStatistics(statistics);
                 this.awaitLatch.countDown();
             }));
         }
     }
+
+    /**
+     * Statistics collected by one thread without any synchronization, and added to the client's with
+     * mergeStatistics() when the thread is done.
+     */
+    protected class RequestStatistics {
+        private long timeSpentForSuccessfulRequestsNs = 0;
+        private long bytesSent = 0;
+        private int unsuccesfulRequestsCount = 0;
+        private int successfulRequestsCount = 0;
+        private long timeSpentForUnsuccessfulRequestsNs = 0;
+        private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        private final List<LatencyHistogram> intervalHistograms = new ArrayList<>();
+
+        public RequestStatistics() {
+        }
+
+        /**
+         * Records a request that sent sentBytes (0 when it failed), took spentTimeNs of the thread's time and
+         * got its response latencyNs after it was sent, at finishTimeNs.
+         */
+        public void record(int sentBytes, long spentTimeNs, long latencyNs, long finishTimeNs) {
+            bytesSent += sentBytes;
+            if (sentBytes == 0) {
+                unsuccesfulRequestsCount++;
+                timeSpentForUnsuccessfulRequestsNs += spentTimeNs;
+                return;
+            }
+            successfulRequestsCount++;
+            timeSpentForSuccessfulRequestsNs += spentTimeNs;
+            latencyHistogram.record(latencyNs);
+
+            // a new interval histogram is needed once per interval at most, not per request
+            int interval = (int) ((finishTimeNs - startTimeNs) / intervalNs);
+            while (intervalHistograms.size() <= interval) {
+                intervalHistograms.add(new LatencyHistogram());
+            }
+            intervalHistograms.get(interval).record(latencyNs);
+        }
+    }
+
+    protected synchronized void mergeStatistics(RequestStatistics statistics) {
+        this.timeSpentForSuccessfulRequestsNs.addAndGet(statistics.timeSpentForSuccessfulRequestsNs);
+        this.bytesSent.addAndGet(statistics.bytesSent);
+        this.unsuccesfulRequestsCount.addAndGet(statistics.unsuccesfulRequestsCount);
+        this.timeSpentForUnsuccessfulRequestsNs.addAndGet(statistics.timeSpentForUnsuccessfulRequestsNs);
+        this.successfulRequestsCount.addAndGet(statistics.successfulRequestsCount);
+
+        latencyHistogram.add(statistics.latencyHistogram);
+        for (int i = 0; i < statistics.intervalHistograms.size(); i++) {
+            if (i == intervalLatencyHistograms.size()) {
+                intervalLatencyHistograms.add(new LatencyHistogram());
+            }
+            intervalLatencyHistograms.get(i).add(statistics.intervalHistograms.get(i));
+        }
+    }
 }
@@ -0,0 +1,305 @@
+package Lab1Sockets.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates payloads with pooled Deflaters and Inflaters, and counts what that costs and saves.
+ * <p>
+ * Every Deflater and Inflater holds a zlib stream in native memory (a deflater at the default settings about
+ * 256 KB of it), which is freed only by end() or, much later, by the GC. Creating one per payload therefore
+ * costs more than compressing a small one, so they are reset and kept for the next payload instead, up to
+ * maxIdle of each kind; the ones beyond that are ended right away.
+ * <p>
+ * A pooled deflater keeps the array it deflates into, up to MAX_SCRATCH_SIZE, so compressing a payload
+ * allocates only the array of the result.
+ * <p>
+ * Deflating data that doesn't compress (random bytes, or something compressed already) burns CPU for
+ * nothing, so before a payload is deflated a sample of SAMPLE_SIZE bytes from its middle is: if the sample
+ * doesn't shrink below MAX_SAMPLE_RATIO of its size, the payload is sent as it is. The sample costs well
+ * under 1% of deflating a 2 MB payload.
+ */
+public class CompressorPool {
+
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    /**
+     * Enough for the handful of threads that compress at once in our servers and clients, about 4 MB of native
+     * memory at most for the deflaters at BEST_SPEED.
+     */
+    public static final int DEFAULT_MAX_IDLE = Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Smaller payloads are not worth it, the zlib header and checksum take a part of what they would save.
+     */
+    public static final int MIN_COMPRESSED_SIZE = 1024;
+    private static final int SAMPLE_SIZE = 8 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    /**
+     * An inflated payload may not grow beyond this, so that a small hostile payload can't take all the memory.
+     */
+    private static final int MAX_INFLATED_SIZE = 256 * 1024 * 1024;
+    /**
+     * Large enough for the 2 MB payloads of our benchmarks, and small enough that maxIdle of them are not a
+     * burden on the heap. A larger payload deflates into an array of its own.
+     */
+    private static final int MAX_SCRATCH_SIZE = 2 * 1024 * 1024;
+
+    private final int level;
+    private final int maxInflatedSize;
+    private final BlockingQueue<PooledDeflater> idleDeflaters;
+    private final BlockingQueue<Inflater> idleInflaters;
+
+    private final LongAdder deflatersCreated = new LongAdder();
+    private final LongAdder inflatersCreated = new LongAdder();
+    private final LongAdder compressedPayloads = new LongAdder();
+    private final LongAdder skippedPayloads = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressionNs = new LongAdder();
+    private final LongAdder inflatedPayloads = new LongAdder();
+    private final LongAdder inflatedBytes = new LongAdder();
+    private final LongAdder decompressionNs = new LongAdder();
+
+    public CompressorPool() {
+        this(DEFAULT_LEVEL, DEFAULT_MAX_IDLE);
+    }
+
+    public CompressorPool(int level, int maxIdle) {
+        this(level, maxIdle, MAX_INFLATED_SIZE);
+    }
+
+    CompressorPool(int level, int maxIdle, int maxInflatedSize) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION || maxIdle < 1) {
+            throw new IllegalArgumentException("Invalid compression level or pool size: " + level + ", " + maxIdle);
+        }
+        this.level = level;
+        this.maxInflatedSize = maxInflatedSize;
+        this.idleDeflaters = new ArrayBlockingQueue<>(maxIdle);
+        this.idleInflaters = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * Returns the payload deflated (as a zlib stream), or null if it is too small, its sample doesn't compress
+     * or the whole of it doesn't come out smaller. Time spent on a skipped payload is counted as well, it is
+     * the price of finding out.
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < MIN_COMPRESSED_SIZE) {
+            skippedPayloads.increment();
+            return null;
+        }
+        long start = System.nanoTime();
+        PooledDeflater pooled = acquireDeflater();
+        Deflater deflater = pooled.deflater;
+        try {
+            if (payload.length > 2 * SAMPLE_SIZE && !isSampleCompressible(pooled, payload)) {
+                skippedPayloads.increment();
+                return null;
+            }
+            // anything that doesn't fit into one byte less than the payload is not worth sending compressed
+            int maxLength = payload.length - 1;
+            byte[] output = pooled.scratch(maxLength);
+            deflater.setInput(payload);
+            int length = deflate(deflater, output, maxLength);
+            if (length == -1) {
+                skippedPayloads.increment();
+                return null;
+            }
+            compressedPayloads.increment();
+            bytesBeforeCompression.add(payload.length);
+            bytesAfterCompression.add(length);
+            return Arrays.copyOf(output, length);
+        } finally {
+            releaseDeflater(pooled);
+            compressionNs.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Deflates SAMPLE_SIZE bytes from the middle of the payload, where a format's header doesn't make it
+     * look more compressible than it is, and leaves the deflater reset.
+     */
+    private static boolean isSampleCompressible(PooledDeflater pooled, byte[] payload) {
+        int maxLength = (int) (SAMPLE_SIZE * MAX_SAMPLE_RATIO);
+        pooled.deflater.setInput(payload, (payload.length - SAMPLE_SIZE) / 2, SAMPLE_SIZE);
+        int length = deflate(pooled.deflater, pooled.scratch(maxLength), maxLength);
+        pooled.deflater.reset();
+        return length != -1;
+    }
+
+    /**
+     * Deflates the deflater's whole input into the first maxLength bytes of the output and returns the length
+     * of the result, or -1 if it doesn't fit.
+     */
+    private static int deflate(Deflater deflater, byte[] output, int maxLength) {
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < maxLength) {
+            length += deflater.deflate(output, length, maxLength - length);
+        }
+        return deflater.finished() ? length : -1;
+    }
+
+    /**
+     * Inflates a zlib stream made by compress() (or any other deflater).
+     * Throws IllegalStateException if the data is not a whole zlib stream or inflates beyond MAX_INFLATED_SIZE.
+     */
+    public byte[] decompress(byte[] data) {
+        long start = System.nanoTime();
+        Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(data);
+            byte[] output = new byte[Math.min(maxInflatedSize, Math.max(data.length * 4, MIN_COMPRESSED_SIZE))];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (output.length == maxInflatedSize) {
+                        throw new IllegalStateException("Payload inflates beyond " + maxInflatedSize + " bytes");
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(maxInflatedSize, output.length * 2L));
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed payload is truncated");
+                }
+                length += inflated;
+            }
+            inflatedPayloads.increment();
+            inflatedBytes.add(length);
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed payload is corrupt", e);
+        } finally {
+            releaseInflater(inflater);
+            decompressionNs.add(System.nanoTime() - start);
+        }
+    }
+
+    private PooledDeflater acquireDeflater() {
+        PooledDeflater pooled = idleDeflaters.poll();
+        if (pooled == null) {
+            deflatersCreated.increment();
+            pooled = new PooledDeflater(new Deflater(level));
+        }
+        return pooled;
+    }
+
+    private void releaseDeflater(PooledDeflater pooled) {
+        pooled.deflater.reset();
+        if (!idleDeflaters.offer(pooled)) {
+            pooled.deflater.end();
+        }
+    }
+
+    private Inflater acquireInflater() {
+        Inflater inflater = idleInflaters.poll();
+        if (inflater == null) {
+            inflatersCreated.increment();
+            inflater = new Inflater();
+        }
+        return inflater;
+    }
+
+    private void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!idleInflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Ends the idle deflaters and inflaters, freeing their native memory. The pool can still be used afterwards.
+     */
+    public void close() {
+        PooledDeflater pooled;
+        while ((pooled = idleDeflaters.poll()) != null) {
+            pooled.deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = idleInflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getDeflatersCreated() {
+        return deflatersCreated.sum();
+    }
+
+    public long getInflatersCreated() {
+        return inflatersCreated.sum();
+    }
+
+    public long getCompressedPayloads() {
+        return compressedPayloads.sum();
+    }
+
+    /**
+     * Payloads that compress() returned null for.
+     */
+    public long getSkippedPayloads() {
+        return skippedPayloads.sum();
+    }
+
+    /**
+     * Total size of the compressed payloads before compression. Skipped ones are not counted.
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.sum();
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.sum();
+    }
+
+    /**
+     * Time spent in compress(), on skipped payloads too.
+     */
+    public long getCompressionNs() {
+        return compressionNs.sum();
+    }
+
+    public long getInflatedPayloads() {
+        return inflatedPayloads.sum();
+    }
+
+    public long getInflatedBytes() {
+        return inflatedBytes.sum();
+    }
+
+    public long getDecompressionNs() {
+        return decompressionNs.sum();
+    }
+
+    private static final class PooledDeflater {
+        private static final byte[] NO_SCRATCH = new byte[0];
+
+        final Deflater deflater;
+        private byte[] scratch = NO_SCRATCH;
+
+        PooledDeflater(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        /**
+         * An array of at least the length to deflate into, valid until the deflater goes back to the pool.
+         */
+        byte[] scratch(int length) {
+            if (length > MAX_SCRATCH_SIZE) {
+                return new byte[length];
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.min(MAX_SCRATCH_SIZE, Math.max(length, scratch.length * 2))];
+            }
+            return scratch;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package Lab1Sockets.http;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A part of a file to be sent as a response body. The servers that can do it send it with
+ * FileChannel.transferTo() (sendfile on Linux), so the bytes go from the page cache to the socket
+ * without passing through the Java heap. The channel is only read with positional methods, so one
+ * region may be sent on many connections at once.
+ */
+public record FileRegion(FileChannel fileChannel, long position, long count) {
+}
@@ -0,0 +1,104 @@
+package Lab1Sockets.http;
+
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.WireProtocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pooled client speaking HTTP/1.1: every request is a POST with a Content-Length body, and the connections
+ * are kept alive between requests. It lets us benchmark the servers' HTTP front end with our own statistics,
+ * while standard HTTP load tools can be pointed at the same servers.
+ */
+public class HttpSocketClient extends PooledSocketClient {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    public HttpSocketClient(int port, int numberOfSendingThreads, ResponseProvider responseProvider) {
+        this(port, numberOfSendingThreads, responseProvider, 1);
+    }
+
+    public HttpSocketClient(int port, int numberOfSendingThreads, ResponseProvider responseProvider, int pipelineDepth) {
+        super(port, numberOfSendingThreads, responseProvider, pipelineDepth);
+    }
+
+    @Override
+    public WireProtocol getWireProtocol() {
+        return WireProtocol.HTTP;
+    }
+
+    @Override
+    protected void writeRequest(PooledConnection connection, byte[] data) throws IOException {
+        PayloadCompression.Payload payload = connection.compression.encode(data);
+        String head = "POST / HTTP/1.1\r\nHost: " + localhost.getHostName() + ":" + port
+                + "\r\n" + PayloadCompression.httpHeaders(payload.flags())
+                + "Content-Length: " + payload.data().length + "\r\n\r\n";
+        connection.outputStream.write(head.getBytes(StandardCharsets.US_ASCII));
+        connection.outputStream.write(payload.data());
+    }
+
+    @Override
+    protected byte[] readResponse(PooledConnection connection) throws IOException {
+        DataInputStream inputStream = connection.inputStream;
+        String statusLine = readLine(inputStream);
+        if (!statusLine.startsWith("HTTP/1.1 200")) {
+            throw new ProtocolException("Unexpected status: " + statusLine);
+        }
+        int contentLength = -1;
+        int flags = 0;
+        String line;
+        while (!(line = readLine(inputStream)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(value);
+            } else if (name.equalsIgnoreCase("Content-Encoding") && hasDeflate(value)) {
+                flags |= PayloadCompression.COMPRESSED;
+            } else if (name.equalsIgnoreCase("Accept-Encoding") && hasDeflate(value)) {
+                flags |= PayloadCompression.ACCEPTS_COMPRESSED;
+            }
+        }
+        if (contentLength < 0) {
+            throw new ProtocolException("Response without Content-Length");
+        }
+        byte[] body = new byte[contentLength];
+        inputStream.readFully(body);
+        return connection.compression.decode(body, flags);
+    }
+
+    private static boolean hasDeflate(String encodings) {
+        for (String encoding : encodings.split(",")) {
+            int parameters = encoding.indexOf(';');
+            if ((parameters == -1 ? encoding : encoding.substring(0, parameters)).trim().equalsIgnoreCase("deflate")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String readLine(DataInputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed in the middle of a response head");
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response head line is too long");
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+}
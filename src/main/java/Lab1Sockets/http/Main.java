@@ -1,8 +1,23 @@
 package Lab1Sockets.http;
 
+import Lab1Sockets.http.blocking.BlockingAsyncServer;
+import Lab1Sockets.http.blocking.BlockingSyncServer;
+import Lab1Sockets.http.blocking.BlockingVirtualThreadServer;
+import Lab1Sockets.http.metrics.MetricsRegistry;
+import Lab1Sockets.http.nio2.CompletionHandlerServer;
+import Lab1Sockets.http.nonblocking.NonBlockingWRClient;
 import Lab1Sockets.http.nonblocking.NonBlockingWRServer;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 public class Main {
@@ -62,23 +77,338 @@ public class Main {
         }
     }
 
+    /**
+     * The same requests as CachedRandomResponseProvider, echoed by the servers with StreamingHandler.echo():
+     * every chunk of a request is sent back as soon as it is read, so a 2 MB request is never held whole.
+     */
+    public static class StreamingEchoResponseProvider extends CachedRandomResponseProvider {
+
+        public StreamingEchoResponseProvider(int leftDataBound, int rightDataBound) {
+            super(leftDataBound, rightDataBound);
+        }
+
+        @Override
+        public StreamingHandler getStreamingHandler() {
+            return StreamingHandler.echo();
+        }
+
+        @Override
+        public boolean checkResponseCorectness(byte[] sentData, byte[] receivedData) {
+            return Arrays.equals(sentData, receivedData);
+        }
+    }
+
+    /**
+     * Echoes text that compresses the way logs or JSON do, a few times over with a fast deflater: lines made of
+     * words from a small vocabulary and numbers. With random bytes the compressor should skip every payload,
+     * with these it should shrink them.
+     */
+    public static class TextResponseProvider implements Client.ResponseProvider {
+        private static final String[] WORDS = {"GET", "POST", "/api/v1/orders", "/api/v1/users", "status", "200",
+                "404", "latency_ms", "user_id", "order_id", "region", "eu-west", "us-east", "cache", "hit", "miss"};
+        final byte[] arr;
+
+        public TextResponseProvider(int leftDataBound, int rightDataBound) {
+            Random random = new Random();
+            int length = random.nextInt(leftDataBound, rightDataBound);
+            StringBuilder text = new StringBuilder(length + 64);
+            while (text.length() < length) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? ' ' : '=')
+                        .append(random.nextInt(100_000)).append(random.nextInt(8) == 0 ? '\n' : ' ');
+            }
+            text.setLength(length);
+            this.arr = text.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public Function<byte[], byte[]> getResponseGeneratorFunction() {
+            return (arr1) -> arr1;
+        }
+
+        @Override
+        public boolean checkResponseCorectness(byte[] sentData, byte[] receivedData) {
+            return Arrays.equals(sentData, receivedData);
+        }
+
+        @Override
+        public byte[] getRequestData() {
+            return arr;
+        }
+    }
+
+    /**
+     * Sends small requests and gets the same large fixed response for every one of them, like a static file
+     * server. The response is kept both as an array and as a temporary file; with zeroCopy the servers get the
+     * file region and send it with transferTo(), otherwise they copy the array like for any other response.
+     */
+    public static class StaticResponseProvider implements Client.ResponseProvider {
+        final byte[] request;
+        final byte[] response;
+        final FileRegion responseFileRegion;
+        final boolean zeroCopy;
+
+        public StaticResponseProvider(int requestSize, int responseSize, boolean zeroCopy) {
+            Random random = new Random();
+            this.request = new byte[requestSize];
+            random.nextBytes(request);
+            this.response = new byte[responseSize];
+            random.nextBytes(response);
+            this.zeroCopy = zeroCopy;
+            try {
+                Path file = Files.createTempFile("static-response", ".bin");
+                file.toFile().deleteOnExit();
+                Files.write(file, response);
+                this.responseFileRegion = new FileRegion(FileChannel.open(file, StandardOpenOption.READ), 0, responseSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Function<byte[], byte[]> getResponseGeneratorFunction() {
+            return (arr1) -> response;
+        }
+
+        @Override
+        public Function<byte[], FileRegion> getFileResponseFunction() {
+            return zeroCopy ? (arr1) -> responseFileRegion : null;
+        }
+
+        @Override
+        public boolean checkResponseCorectness(byte[] sentData, byte[] receivedData) {
+            return receivedData.length == response.length;
+        }
+
+        @Override
+        public byte[] getRequestData() {
+            return request;
+        }
+    }
+
+    /**
+     * Response providers, selected by the fourth program argument: "echo" sends the same 2 MB array back,
+     * "static" and "static-file" answer small requests with a fixed 2 MB response, copied from the heap or
+     * sent from a file with transferTo() respectively, and "stream-echo" echoes like "echo" through the
+     * servers' streaming handler path, and "text" echoes compressible text instead of random bytes.
+     */
+    public static Client.ResponseProvider createResponseProvider(String responseType, int leftDataBound, int rightDataBound) {
+        return switch (responseType) {
+            case "echo" -> new CachedRandomResponseProvider(leftDataBound, rightDataBound);
+            case "stream-echo" -> new StreamingEchoResponseProvider(leftDataBound, rightDataBound);
+            case "text" -> new TextResponseProvider(leftDataBound, rightDataBound);
+            case "static" -> new StaticResponseProvider(64, rightDataBound, false);
+            case "static-file" -> new StaticResponseProvider(64, rightDataBound, true);
+            default -> throw new IllegalArgumentException("Unknown response type: " + responseType);
+        };
+    }
+
+    /**
+     * Backlog of every listening socket. The default of 50 overflows when all the client's threads connect at once.
+     */
+    private static final int LISTEN_BACKLOG = 1024;
+
+    /**
+     * Server variants that can be benchmarked, selected by the first program argument. With more than one
+     * listener, the sync and async servers get an acceptor thread per listener, and the nonblocking one accepts
+     * in its reactors. The completion server has a single listener, with the same backlog. Only the nonblocking
+     * server serves TLS, and all but the completion server can put an AdmissionController in front of accept().
+     */
+    private static Server createServer(String serverType, int port, Client client, int listeners,
+                                       long responseCacheBytes, boolean compression, boolean tls,
+                                       boolean admissionControl) {
+        Server server = switch (serverType) {
+            case "nonblocking" -> new NonBlockingWRServer(port, client, Runtime.getRuntime().availableProcessors());
+            case "sync" -> new BlockingSyncServer(port, client);
+            case "async" -> new BlockingAsyncServer(port, client, 10);
+            case "virtual" -> new BlockingVirtualThreadServer(port, client, 100);
+            case "completion" -> new CompletionHandlerServer(port, client, Runtime.getRuntime().availableProcessors());
+            default -> throw new IllegalArgumentException("Unknown server type: " + serverType);
+        };
+        server.setListeners(listeners, LISTEN_BACKLOG);
+        if (responseCacheBytes > 0) {
+            server.enableResponseCache(responseCacheBytes);
+        }
+        if (compression) {
+            server.enableCompression(new CompressorPool());
+        }
+        if (tls) {
+            if (!(server instanceof NonBlockingWRServer nonBlockingServer)) {
+                throw new IllegalArgumentException("TLS is served only by the nonblocking server");
+            }
+            SelfSignedTls.createKeystore(SelfSignedTls.DEFAULT_KEYSTORE, SelfSignedTls.DEFAULT_PASSWORD);
+            nonBlockingServer.enableTls(SelfSignedTls.serverContext(SelfSignedTls.DEFAULT_KEYSTORE,
+                    SelfSignedTls.DEFAULT_PASSWORD));
+        }
+        if (admissionControl) {
+            if (server instanceof CompletionHandlerServer) {
+                throw new IllegalArgumentException("The completion server has no admission control");
+            }
+            server.enableAdmissionControl(new AdmissionController());
+        }
+        return server;
+    }
+
+    /**
+     * While a run is going on, the server's metrics can be watched with curl http://127.0.0.1:9103/metrics
+     */
+    private static final int METRICS_PORT = 9103;
+
+    /**
+     * Connections the nonblocking client keeps busy, all of them driven by one selector thread per core.
+     */
+    private static final int NON_BLOCKING_CLIENT_CONNECTIONS = 100;
+
+    /**
+     * Client variants, selected by the second program argument. The third one is the pipeline depth,
+     * which only the pooled and http clients support, and so is compression. All but the nonblocking client
+     * can connect over TLS.
+     */
+    private static Client createClient(String clientType, int port, Client.ResponseProvider responseProvider,
+                                       int pipelineDepth, boolean compression, boolean tls) {
+        Client client = switch (clientType) {
+            case "socket" -> new SocketClient(port, 10, responseProvider);
+            case "pooled" -> new PooledSocketClient(port, 10, responseProvider, pipelineDepth);
+            case "http" -> new HttpSocketClient(port, 10, responseProvider, pipelineDepth);
+            case "nonblocking" -> new NonBlockingWRClient(port, Runtime.getRuntime().availableProcessors(),
+                    NON_BLOCKING_CLIENT_CONNECTIONS, 2, responseProvider);
+            default -> throw new IllegalArgumentException("Unknown client type: " + clientType);
+        };
+        if (compression) {
+            client.enableCompression(new CompressorPool());
+        }
+        if (tls) {
+            if (client instanceof NonBlockingWRClient) {
+                throw new IllegalArgumentException("The nonblocking client doesn't connect over TLS");
+            }
+            SelfSignedTls.createKeystore(SelfSignedTls.DEFAULT_KEYSTORE, SelfSignedTls.DEFAULT_PASSWORD);
+            client.enableTls(SelfSignedTls.clientContext(SelfSignedTls.DEFAULT_KEYSTORE, SelfSignedTls.DEFAULT_PASSWORD));
+        }
+        if (client instanceof NonBlockingWRClient nonBlockingClient) {
+            // once it is configured
+            nonBlockingClient.start();
+        }
+        return client;
+    }
+
+    /**
+     * What compression saved and cost on one side: the bytes of the payloads it compressed before and after,
+     * the ones it skipped, and the CPU time spent deflating (skipped payloads included) and inflating.
+     */
+    private static void printCompression(String side, CompressorPool pool) {
+        long before = pool.getBytesBeforeCompression();
+        long after = pool.getBytesAfterCompression();
+        System.out.printf("Compression (%s): %d compressed, %d skipped, %d -> %d bytes (%.1f%%), deflate %.1f ms, "
+                        + "inflate %.1f ms, %d deflaters and %d inflaters created%n",
+                side, pool.getCompressedPayloads(), pool.getSkippedPayloads(), before, after,
+                before == 0 ? 100.0 : after * 100.0 / before, pool.getCompressionNs() / 1e6,
+                pool.getDecompressionNs() / 1e6, pool.getDeflatersCreated(), pool.getInflatersCreated());
+    }
+
+    private static String formatPercentiles(LatencyHistogram histogram) {
+        return String.format("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6);
+    }
+
+    /**
+     * Prints the latencies of every interval of the client's run, to show whether they drift during the run.
+     */
+    private static void printLatencyTimeSeries(Client client) {
+        List<LatencyHistogram> intervals = client.getIntervalLatencyHistograms();
+        double intervalSeconds = client.getIntervalNs() / 1e9;
+        for (int i = 0; i < intervals.size(); i++) {
+            LatencyHistogram interval = intervals.get(i);
+            System.out.printf("  %6.1f s: %5d requests, %s%n", i * intervalSeconds, interval.getTotalCount(),
+                    formatPercentiles(interval));
+        }
+    }
+
+    /**
+     * Open-loop measurement: one server and client, and an OpenLoopLoadGenerator raising the request rate
+     * step by step until the server can't keep up with it.
+     */
+    private static void runRateSweep(String serverType, String clientType, int pipelineDepth, String responseType,
+                                     int leftDataBound, int rightDataBound, int port, int listeners,
+                                     long responseCacheBytes, boolean compression, boolean tls,
+                                     boolean admissionControl) {
+        Client client = createClient(clientType, port,
+                createResponseProvider(responseType, leftDataBound, rightDataBound), pipelineDepth, compression, tls);
+        Server server = createServer(serverType, port, client, listeners, responseCacheBytes, compression, tls,
+                admissionControl);
+
+        server.start();
+        List<OpenLoopLoadGenerator.Result> results = new OpenLoopLoadGenerator(client)
+                .sweep(10, 1.5, 20, TimeUnit.SECONDS.toNanos(5));
+        client.closeConnections();
+        server.stop();
+
+        System.out.printf("Rate sweep (%s server, %s client, %s responses):%n", serverType, clientType, responseType);
+        System.out.println("Target rps  Achieved rps  Failed  Latency");
+        for (OpenLoopLoadGenerator.Result result : results) {
+            System.out.printf("%10.1f  %12.1f  %6d  %s%n", result.targetRate(), result.achievedRate(),
+                    result.unsuccessfulRequests(), formatPercentiles(result.latencyHistogram()));
+        }
+        OpenLoopLoadGenerator.Result last = results.get(results.size() - 1);
+        if (last.isSaturated()) {
+            System.out.printf("Saturated at %.1f requests per second%n", last.targetRate());
+        } else {
+            System.out.printf("Not saturated up to %.1f requests per second%n", last.targetRate());
+        }
+        AdmissionController admission = server.getAdmissionController();
+        if (admission != null) {
+            System.out.printf("Admission: %d admitted, %d rate limited, %d over the limit, final limit %d%n",
+                    admission.getAdmitted(), admission.getRateLimited(), admission.getOverLimit(),
+                    admission.getLimit());
+        }
+    }
+
+    /**
+     * Arguments: server type, client type, pipeline depth, response type (see the create* methods), the
+     * load mode, "closed" for the client's own sending threads or "sweep" for an open-loop rate sweep, and
+     * the number of listening sockets (more than one binds them with SO_REUSEPORT, Linux only) and the size
+     * of the server's response cache in megabytes (0, the default, for none), and "deflate" to let the client
+     * and the server negotiate compression ("none", the default, to send the payloads as they are), and "tls"
+     * to connect over TLS with a self-signed certificate (see SelfSignedTls), or "plain", the default. Comparing
+     * a run with "tls" to one with "plain" shows what TLS costs per request, and the server's tls_* metrics
+     * show the handshakes, how many of them resumed a session, and how long they took. Last, "admit" puts an
+     * AdmissionController in front of the server's accept() ("all", the default, serves every connection): run
+     * a sweep past saturation with and without it to see the rejected requests keep the others' p99 down.
+     */
     public static void main(String[] args) {
+        String serverType = args.length > 0 ? args[0] : "nonblocking";
+        String clientType = args.length > 1 ? args[1] : "socket";
+        int pipelineDepth = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String responseType = args.length > 3 ? args[3] : "echo";
+        String loadMode = args.length > 4 ? args[4] : "closed";
+        int listeners = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        long responseCacheBytes = (args.length > 6 ? Long.parseLong(args[6]) : 0) * 1024 * 1024;
+        boolean compression = args.length > 7 && args[7].equals("deflate");
+        boolean tls = args.length > 8 && args[8].equals("tls");
+        boolean admissionControl = args.length > 9 && args[9].equals("admit");
         int leftDataBound = 1999999, rightDataBound = 2000000;
         int port = 8103;
 
+        if (loadMode.equals("sweep")) {
+            runRateSweep(serverType, clientType, pipelineDepth, responseType, leftDataBound, rightDataBound, port,
+                    listeners, responseCacheBytes, compression, tls, admissionControl);
+            return;
+        }
+
         long timeSum = 0;
         long requestsSum = 0;
         long bytesSum = 0;
+        LatencyHistogram latencySum = new LatencyHistogram();
 
         for (int i = 0; i < 4; i++) {
-            Client client = new SocketClient(port, 10, new CachedRandomResponseProvider(leftDataBound, rightDataBound));
-
-            Server server = new NonBlockingWRServer(port, client);
+            Client client = createClient(clientType, port,
+                    createResponseProvider(responseType, leftDataBound, rightDataBound), pipelineDepth, compression, tls);
 
-//            Server server = new BlockingSyncServer(port, client);
-//            Server server = new BlockingAsyncServer(port, client, 10);
+            Server server = createServer(serverType, port, client, listeners, responseCacheBytes, compression, tls,
+                    admissionControl);
 
             server.start();
+            server.startMetricsEndpoint(METRICS_PORT);
             client.startSendingWithStatisticsCollecting();
             client.waitForWorkFinish();
             server.stop();
@@ -93,6 +423,36 @@ public class Main {
                     client.successfulRequestsCount.get(), client.unsuccesfulRequestsCount.get(),
                     client.bytesSent.get(), client.timeSpentForSuccessfulRequestsNs.get());
 
+            LatencyHistogram latency = client.getLatencyHistogram();
+            System.out.println("Latency: " + formatPercentiles(latency));
+            printLatencyTimeSeries(client);
+            latencySum.add(latency);
+
+            // the buffer pool and backpressure statistics are among the server's metrics
+            MetricsRegistry.Snapshot metrics = server.getMetrics().snapshot();
+            System.out.print("Server metrics:\n" + metrics.toPlainText());
+            if (server.getResponseCache() != null) {
+                System.out.printf("Response cache hit rate: %.1f%%%n", server.getResponseCache().getHitRate() * 100);
+            }
+            // the server counts what went through its sockets, so these are the bytes on the wire either way
+            // (but for TLS, where it counts the plaintext)
+            System.out.printf("Bytes on the wire: %d received, %d sent, for %d bytes of requests%n",
+                    metrics.counters().get("received_bytes"), metrics.counters().get("sent_bytes"),
+                    client.bytesSent.get());
+            if (client.getCompressorPool() != null) {
+                printCompression("client", client.getCompressorPool());
+            }
+            if (server.getCompressorPool() != null) {
+                printCompression("server", server.getCompressorPool());
+            }
+
+            if (server instanceof NonBlockingWRServer nonBlockingServer) {
+                nonBlockingServer.getReactors().forEach(reactor -> System.out.printf(
+                        "Reactor %d: connections %d, received %d, sent %d%n",
+                        reactor.getIndex(), reactor.acceptedConnections.get(),
+                        reactor.receivedBytes.get(), reactor.sentBytes.get()));
+            }
+
             timeSum += client.timeSpentForSuccessfulRequestsNs.get();
             requestsSum += client.successfulRequestsCount.get();
             bytesSum += client.bytesSent.get();
@@ -109,11 +469,13 @@ public class Main {
         double bytesPerSecond = (double) bytesSum / timeInSeconds;
 
         System.out.printf("""
-                        Test:
+                        Test (%s server, %s client, pipeline depth %d, %s responses):
                         Requests per second: %.1f
                         Bytes per second:  %.1f
+                        Latency: %s
                         Data size (in bytes): [%d, %d]""",
-                requestsPerSecond, bytesPerSecond, leftDataBound, rightDataBound);
+                serverType, clientType, pipelineDepth, responseType, requestsPerSecond, bytesPerSecond,
+                formatPercentiles(latencySum), leftDataBound, rightDataBound);
 
     }
 }
\ No newline at end of file
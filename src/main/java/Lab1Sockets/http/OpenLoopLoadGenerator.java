@@ -0,0 +1,143 @@
+package Lab1Sockets.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load: requests are sent at a constant rate from a fixed timetable, whether or not the responses
+ * to the earlier ones have arrived.
+ * <p>
+ * The sending threads of Client work in a closed loop, so a slow server makes them send less, and the time
+ * a request would have waited in a queue is never measured (coordinated omission). Here every request has
+ * its intended send time, and its latency is measured from that time, so a request that goes out late because
+ * the server (or the number of outstanding requests) holds us back is counted as slow. Every request is sent
+ * from its own virtual thread through the client's sendDataAndGetResponse().
+ */
+public class OpenLoopLoadGenerator {
+
+    public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 64;
+
+    /**
+     * A step is saturated when the server completes less than this share of the target rate.
+     */
+    private static final double SATURATION_THRESHOLD = 0.9;
+
+    private final Client client;
+    private final int maxOutstandingRequests;
+
+    public OpenLoopLoadGenerator(Client client) {
+        this(client, DEFAULT_MAX_OUTSTANDING_REQUESTS);
+    }
+
+    /**
+     * At most maxOutstandingRequests requests are in flight, so an overloaded server doesn't make us open
+     * connections without a bound. Requests over the limit wait for a free slot, and that wait is part of
+     * their latency.
+     */
+    public OpenLoopLoadGenerator(Client client, int maxOutstandingRequests) {
+        if (maxOutstandingRequests < 1) {
+            throw new IllegalArgumentException("Max outstanding requests must be positive: " + maxOutstandingRequests);
+        }
+        this.client = client;
+        this.maxOutstandingRequests = maxOutstandingRequests;
+    }
+
+    /**
+     * Outcome of sending at one rate. The histogram holds the latencies of the successful requests.
+     */
+    public record Result(double targetRate, double achievedRate, int successfulRequests, int unsuccessfulRequests,
+                         long bytesSent, LatencyHistogram latencyHistogram) {
+
+        public boolean isSaturated() {
+            return achievedRate < targetRate * SATURATION_THRESHOLD;
+        }
+    }
+
+    /**
+     * Sends requestsPerSecond requests per second for durationNs and waits for all of them to complete.
+     */
+    public Result run(double requestsPerSecond, long durationNs) {
+        int count = Math.max(1, (int) (requestsPerSecond * durationNs / 1_000_000_000L));
+        long intervalNs = (long) (1_000_000_000L / requestsPerSecond);
+
+        // latencies[i] is written by the thread of request i, and read after done.await()
+        long[] latencies = new long[count];
+        AtomicInteger unsuccessful = new AtomicInteger(0);
+        AtomicLong bytesSent = new AtomicLong(0);
+        CountDownLatch done = new CountDownLatch(count);
+        Semaphore outstanding = new Semaphore(maxOutstandingRequests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long intendedSendTime = start + i * intervalNs;
+            long delay;
+            while ((delay = intendedSendTime - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            outstanding.acquireUninterruptibly();
+
+            byte[] data = client.responseProvider.getRequestData();
+            int request = i;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    int sent = client.sendDataAndGetResponse(data);
+                    bytesSent.addAndGet(sent);
+                    if (sent == 0) {
+                        unsuccessful.incrementAndGet();
+                        latencies[request] = -1;
+                    } else {
+                        latencies[request] = System.nanoTime() - intendedSendTime;
+                    }
+                } finally {
+                    outstanding.release();
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        LatencyHistogram latencyHistogram = new LatencyHistogram();
+        for (long latency : latencies) {
+            if (latency >= 0) {
+                latencyHistogram.record(latency);
+            }
+        }
+        int successful = (int) latencyHistogram.getTotalCount();
+        double achievedRate = successful * 1_000_000_000.0 / elapsedNs;
+        return new Result(requestsPerSecond, achievedRate, successful, unsuccessful.get(), bytesSent.get(),
+                latencyHistogram);
+    }
+
+    /**
+     * Runs steps of durationNs at startRate, startRate * rateFactor and so on, up to maxSteps of them, and stops
+     * after the first step at which the server could no longer keep up. That step's target rate is past the
+     * saturation point and the one before it is the highest rate the server sustains.
+     */
+    public List<Result> sweep(double startRate, double rateFactor, int maxSteps, long stepDurationNs) {
+        if (rateFactor <= 1) {
+            throw new IllegalArgumentException("Rate factor must be greater than 1: " + rateFactor);
+        }
+        List<Result> results = new ArrayList<>();
+        double rate = startRate;
+        for (int step = 0; step < maxSteps; step++) {
+            Result result = run(rate, stepDurationNs);
+            results.add(result);
+            if (result.isSaturated()) {
+                break;
+            }
+            rate *= rateFactor;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,161 @@
+package Lab1Sockets.http;
+
+import Lab1Sockets.http.protocol.LengthPrefixedFraming;
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.WireProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Client that keeps its connections open and reuses them for many requests. Requests and responses are
+ * length-prefixed frames, so neither side has to close the connection to mark the end of a message.
+ * <p>
+ * A sending thread takes an idle connection from the pool (or opens a new one), does one request/response
+ * exchange and puts the connection back. A connection that fails in any way is closed and not returned.
+ */
+public class PooledSocketClient extends Client {
+
+    /**
+     * A response header announcing more than this is taken for garbage, rather than allocated for.
+     */
+    protected static final int MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+
+    protected static class PooledConnection {
+        final Socket socket;
+        final DataInputStream inputStream;
+        final DataOutputStream outputStream;
+        final PayloadCompression compression;
+
+        PooledConnection(Socket socket, CompressorPool compressorPool) throws IOException {
+            this.socket = socket;
+            this.compression = new PayloadCompression(compressorPool, true);
+            socket.setTcpNoDelay(true);
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private final BlockingQueue<PooledConnection> idleConnections;
+
+    public PooledSocketClient(int port, int numberOfSendingThreads, ResponseProvider responseProvider) {
+        this(port, numberOfSendingThreads, responseProvider, 1);
+    }
+
+    public PooledSocketClient(int port, int numberOfSendingThreads, ResponseProvider responseProvider, int pipelineDepth) {
+        super(port, numberOfSendingThreads, responseProvider, pipelineDepth);
+        this.idleConnections = new ArrayBlockingQueue<>(numberOfSendingThreads);
+    }
+
+    @Override
+    public WireProtocol getWireProtocol() {
+        return WireProtocol.LENGTH_PREFIXED;
+    }
+
+    @Override
+    public int sendDataAndGetResponse(byte[] data) {
+        PooledConnection connection = null;
+        try {
+            connection = borrowConnection();
+            writeRequest(connection, data);
+            connection.outputStream.flush();
+            byte[] response = readResponse(connection);
+            releaseConnection(connection);
+            return responseProvider.checkResponseCorectness(data, response) ? data.length : 0;
+        } catch (Exception e) {
+            System.out.println("Not accepted");
+            e.printStackTrace();
+            if (connection != null) {
+                connection.close();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Writes all the requests on one connection without waiting for responses, and reads the responses, which
+     * come in the same order. The requests are written from a separate virtual thread: with big payloads a
+     * server that answers the first request while we are still writing the last ones would otherwise block on
+     * a full socket buffer that we never read, and we would block on its full one.
+     */
+    @Override
+    public int[] sendPipelinedDataAndGetResponses(byte[][] data) {
+        int[] sentBytes = new int[data.length];
+        PooledConnection connection = null;
+        try {
+            PooledConnection writingConnection = connection = borrowConnection();
+            Thread writingThread = Thread.ofVirtual().start(() -> {
+                try {
+                    for (byte[] request : data) {
+                        writeRequest(writingConnection, request);
+                    }
+                    writingConnection.outputStream.flush();
+                } catch (IOException e) {
+                    writingConnection.close();
+                }
+            });
+            for (int i = 0; i < data.length; i++) {
+                byte[] response = readResponse(connection);
+                sentBytes[i] = responseProvider.checkResponseCorectness(data[i], response) ? data[i].length : 0;
+            }
+            writingThread.join();
+            releaseConnection(connection);
+        } catch (Exception e) {
+            System.out.println("Not accepted");
+            e.printStackTrace();
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        return sentBytes;
+    }
+
+    protected void writeRequest(PooledConnection connection, byte[] data) throws IOException {
+        PayloadCompression.Payload payload = connection.compression.encode(data);
+        LengthPrefixedFraming.writeFrame(connection.outputStream, payload.data(), payload.flags());
+    }
+
+    protected byte[] readResponse(PooledConnection connection) throws IOException {
+        return LengthPrefixedFraming.readFrame(connection.inputStream, connection.compression, MAX_RESPONSE_SIZE);
+    }
+
+    protected PooledConnection borrowConnection() throws IOException {
+        PooledConnection connection = idleConnections.poll();
+        if (connection != null && !connection.socket.isClosed()) {
+            return connection;
+        }
+        return new PooledConnection(connect(), compressorPool);
+    }
+
+    protected void releaseConnection(PooledConnection connection) {
+        if (!idleConnections.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void waitForWorkFinish() {
+        super.waitForWorkFinish();
+        closeConnections();
+    }
+
+    @Override
+    public void closeConnections() {
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package Lab1Sockets.http;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Responses of a response function by request, for handlers that are expensive and get the same requests
+ * again and again.
+ * <p>
+ * Entries are found by a 64-bit hash of the request bytes, and a hit is taken only if the cached request is
+ * equal to the new one byte for byte, so a hash collision costs a miss and never a wrong response. The hash
+ * and the comparison run outside the lock, which is held only to look an entry up and to move it.
+ * <p>
+ * The cache holds at most maxBytes of requests and responses, evicted as a segmented LRU: a new entry goes to
+ * the probation segment, and its first hit promotes it to the protected one, which takes up to
+ * PROTECTED_FRACTION of the space. The least recently used entries of the protected segment fall back to
+ * probation, and the least recently used ones of probation are evicted. A burst of requests that are seen
+ * only once therefore passes through probation without pushing out the entries that are hit repeatedly.
+ * <p>
+ * The cache keeps the request and response arrays it is given, so neither may be changed afterwards.
+ */
+public class ResponseCache {
+
+    private static final double PROTECTED_FRACTION = 0.8;
+    /**
+     * An entry bigger than maxBytes / MAX_ENTRY_FRACTION is not cached, it would evict most of the others.
+     */
+    private static final int MAX_ENTRY_FRACTION = 8;
+    /**
+     * Rough size of an entry besides its arrays: the entry, the map node and the boxed key.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // guarded by this, both in LRU order (the first entry is the least recently used one)
+    private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, Entry> protectedEntries = new LinkedHashMap<>();
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private record Entry(byte[] request, byte[] response, long size) {
+    }
+
+    public ResponseCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_FRACTION);
+    }
+
+    /**
+     * Returns the cached response to the request, or calls the handler and caches what it returns.
+     */
+    public byte[] get(byte[] request, Function<byte[], byte[]> handler) {
+        long key = hash(request);
+        Entry entry = find(key);
+        if (entry != null && Arrays.equals(entry.request(), request)) {
+            hits.incrementAndGet();
+            onHit(key, entry);
+            return entry.response();
+        }
+        misses.incrementAndGet();
+        byte[] response = handler.apply(request);
+        // an echo handler returns the request itself, which is then counted once
+        long size = ENTRY_OVERHEAD + request.length + (response == request ? 0 : response.length);
+        if (size <= maxBytes / MAX_ENTRY_FRACTION) {
+            add(key, new Entry(request, response, size));
+        }
+        return response;
+    }
+
+    private synchronized Entry find(long key) {
+        Entry entry = protectedEntries.get(key);
+        return entry != null ? entry : probation.get(key);
+    }
+
+    /**
+     * Moves the entry to the most recently used end of the protected segment, unless it was evicted or
+     * replaced since find().
+     */
+    private synchronized void onHit(long key, Entry entry) {
+        if (protectedEntries.get(key) == entry) {
+            protectedEntries.remove(key);
+            protectedEntries.put(key, entry);
+            return;
+        }
+        if (probation.get(key) != entry) {
+            return;
+        }
+        probation.remove(key);
+        probationBytes -= entry.size();
+        protectedEntries.put(key, entry);
+        protectedBytes += entry.size();
+
+        Iterator<Map.Entry<Long, Entry>> leastRecentlyUsed = protectedEntries.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes) {
+            Map.Entry<Long, Entry> demoted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            protectedBytes -= demoted.getValue().size();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().size();
+        }
+    }
+
+    /**
+     * Adds the entry to probation, replacing one with the same key (which is either the same request cached by
+     * another thread in the meantime, or a request whose hash collides with this one's).
+     */
+    private synchronized void add(long key, Entry entry) {
+        Entry replaced = protectedEntries.remove(key);
+        if (replaced != null) {
+            protectedBytes -= replaced.size();
+        }
+        replaced = probation.remove(key);
+        if (replaced != null) {
+            probationBytes -= replaced.size();
+        }
+        probation.put(key, entry);
+        probationBytes += entry.size();
+
+        while (probationBytes + protectedBytes > maxBytes) {
+            LinkedHashMap<Long, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+            Iterator<Entry> leastRecentlyUsed = segment.values().iterator();
+            long size = leastRecentlyUsed.next().size();
+            leastRecentlyUsed.remove();
+            if (segment == probation) {
+                probationBytes -= size;
+            } else {
+                protectedBytes -= size;
+            }
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * A 64-bit hash of the bytes in the style of xxHash64: four independent lanes over 32-byte blocks, so that
+     * the multiplications of one lane don't wait for the others, then the tail and a final avalanche. It is
+     * not meant to be compatible with xxHash, only fast on megabyte requests and well mixed.
+     */
+    static long hash(byte[] data) {
+        int length = data.length;
+        int i = 0;
+        long hash;
+        if (length >= 32) {
+            long lane1 = PRIME_1 + PRIME_2;
+            long lane2 = PRIME_2;
+            long lane3 = 0;
+            long lane4 = -PRIME_1;
+            for (; i <= length - 32; i += 32) {
+                lane1 = round(lane1, (long) LONGS.get(data, i));
+                lane2 = round(lane2, (long) LONGS.get(data, i + 8));
+                lane3 = round(lane3, (long) LONGS.get(data, i + 16));
+                lane4 = round(lane4, (long) LONGS.get(data, i + 24));
+            }
+            hash = Long.rotateLeft(lane1, 1) + Long.rotateLeft(lane2, 7)
+                    + Long.rotateLeft(lane3, 12) + Long.rotateLeft(lane4, 18);
+        } else {
+            hash = PRIME_3;
+        }
+        hash += length;
+        for (; i <= length - 8; i += 8) {
+            hash = Long.rotateLeft(hash ^ round(0, (long) LONGS.get(data, i)), 27) * PRIME_1 + PRIME_3;
+        }
+        for (; i < length; i++) {
+            hash = Long.rotateLeft(hash ^ (data[i] & 0xFFL) * PRIME_3, 11) * PRIME_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long lane, long input) {
+        return Long.rotateLeft(lane + input * PRIME_2, 31) * PRIME_1;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Share of the lookups that were answered from the cache, 0 before the first one.
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized int getEntries() {
+        return probation.size() + protectedEntries.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,101 @@
+package Lab1Sockets.http;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * SSLContexts for benchmarking TLS locally: the server's key and its self-signed certificate are in a PKCS12
+ * keystore made by keytool, and the client context trusts that certificate and nothing else.
+ * <p>
+ * The key is EC (P-256), which makes the server's part of a full handshake much cheaper than with RSA, so
+ * the measured cost is closer to what a real deployment pays. The keystore is the same one keytool makes with:
+ * <pre>
+ * keytool -genkeypair -alias server -keyalg EC -groupname secp256r1 -dname CN=localhost
+ *         -ext SAN=dns:localhost,ip:127.0.0.1 -validity 3650 -storetype PKCS12
+ *         -keystore /tmp/lab1-sockets-tls.p12 -storepass changeit
+ * </pre>
+ */
+public final class SelfSignedTls {
+
+    public static final Path DEFAULT_KEYSTORE = Path.of(System.getProperty("java.io.tmpdir"), "lab1-sockets-tls.p12");
+    public static final String DEFAULT_PASSWORD = "changeit";
+
+    private static final String ALIAS = "server";
+
+    private SelfSignedTls() {}
+
+    /**
+     * Makes the keystore with the JDK's keytool, unless the file already exists.
+     */
+    public static void createKeystore(Path keystore, String password) {
+        if (Files.exists(keystore)) {
+            return;
+        }
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        ProcessBuilder builder = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "3650", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", password)
+                .redirectErrorStream(true);
+        try {
+            Process process = builder.start();
+            String output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("keytool failed: " + output);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static SSLContext serverContext(Path keystore, String password) {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keystore, password), password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A context that trusts only the certificate of the keystore. One context has to be shared by all the
+     * connections of a client, its session cache is what lets them resume their sessions.
+     */
+    public static SSLContext clientContext(Path keystore, String password) {
+        try {
+            KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+            trusted.load(null, null);
+            trusted.setCertificateEntry(ALIAS, load(keystore, password).getCertificate(ALIAS));
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static KeyStore load(Path keystore, String password) {
+        try (InputStream inputStream = Files.newInputStream(keystore)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(inputStream, password.toCharArray());
+            return keyStore;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,6 +1,22 @@
 package Lab1Sockets.http;
 
-import java.util.concurrent.atomic.AtomicLong;
+import Lab1Sockets.http.metrics.MetricsEndpoint;
+import Lab1Sockets.http.metrics.MetricsRegistry;
+import Lab1Sockets.http.metrics.StripedLatencyHistogram;
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 public abstract class Server {
@@ -8,22 +24,326 @@ public abstract class Server {
     protected final int port;
 
     protected Function<byte[], byte[]> responseGeneratorFunction;
+    /**
+     * If the response provider serves file regions, this is used instead of responseGeneratorFunction.
+     */
+    protected Function<byte[], FileRegion> fileResponseFunction;
+    /**
+     * If set, the servers serve every request with it, as the request is read, instead of with the functions.
+     */
+    protected StreamingHandler streamingHandler;
+    protected final WireProtocol wireProtocol;
     protected Thread workingThread;
 
-    protected final AtomicLong receivedBytes = new AtomicLong(0);
-    protected final AtomicLong sentBytes = new AtomicLong(0);
+    /**
+     * Everything the server counts goes through the registry, so it can be read while the server runs, with
+     * getMetrics().snapshot() or from the endpoint started by startMetricsEndpoint(). Subclasses register the
+     * gauges and counters of their own next to these.
+     */
+    protected final MetricsRegistry metrics = new MetricsRegistry();
+    protected final LongAdder receivedBytes = metrics.counter("received_bytes");
+    protected final LongAdder sentBytes = metrics.counter("sent_bytes");
+    protected final LongAdder acceptedConnections = metrics.counter("accepted_connections");
+    /**
+     * Accepted connections that were closed right away because the server was overloaded.
+     */
+    protected final LongAdder rejectedConnections = metrics.counter("rejected_connections");
+    protected final LongAdder requests = metrics.counter("requests");
+    protected final AtomicInteger openConnections = new AtomicInteger(0);
+    /**
+     * Time from a whole request being read to its response being fully written.
+     */
+    protected final StripedLatencyHistogram requestLatency = metrics.histogram("request_latency_ns");
+    private MetricsEndpoint metricsEndpoint;
+    private ResponseCache responseCache;
+    private CompressorPool compressorPool;
+    private AdmissionController admissionController;
+
+    protected BufferPool bufferPool = new BufferPool();
+
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    private int listeners = 1;
+    private int backlog = DEFAULT_BACKLOG;
+    private int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
 
     public Server(int port, Client client) {
         this.port = port;
         this.responseGeneratorFunction = client.responseProvider.getResponseGeneratorFunction();
+        this.fileResponseFunction = client.responseProvider.getFileResponseFunction();
+        this.streamingHandler = client.responseProvider.getStreamingHandler();
+        this.wireProtocol = client.getWireProtocol();
+
+        metrics.gauge("open_connections", openConnections::get);
+        // read through the field, as the pool may be replaced before start()
+        metrics.gauge("buffer_pool_buffers_in_use", () -> bufferPool.getBuffersInUse());
+        metrics.gauge("buffer_pool_bytes_in_use", () -> bufferPool.getBytesInUse());
+        metrics.gauge("buffer_pool_pooled_bytes", () -> bufferPool.getPooledBytes());
+        metrics.gauge("buffer_pool_hits", () -> bufferPool.getHits());
+        metrics.gauge("buffer_pool_misses", () -> bufferPool.getMisses());
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Serves the metrics as plain text on http://127.0.0.1:port/metrics until the server is stopped.
+     */
+    public void startMetricsEndpoint(int port) {
+        try {
+            metricsEndpoint = new MetricsEndpoint(metrics, port);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        metricsEndpoint.start();
+    }
+
+    /**
+     * Counts a served request whose whole body was read at requestStartNs (a System.nanoTime() value).
+     */
+    protected void recordRequest(long requestStartNs) {
+        long latencyNs = System.nanoTime() - requestStartNs;
+        requests.increment();
+        requestLatency.record(latencyNs);
+        if (admissionController != null) {
+            admissionController.recordLatency(latencyNs);
+        }
+    }
+
+    /**
+     * Puts the controller in front of the servers that accept through BlockingServer and NonBlockingWRServer:
+     * the connections it doesn't admit are turned away with rejectConnection() right after accept(), and the
+     * request latencies adapt its concurrency limit. Has to be called before start().
+     */
+    public void enableAdmissionControl(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+
+        metrics.gauge("admission_limit", admissionController::getLimit);
+        metrics.gauge("admission_in_flight", admissionController::getInFlight);
+        metrics.gauge("admission_pending", admissionController::getPending);
+        metrics.gauge("admission_no_load_latency_ns", admissionController::getNoLoadLatencyNs);
+        metrics.gauge("admission_admitted", admissionController::getAdmitted);
+        metrics.gauge("admission_rate_limited", admissionController::getRateLimited);
+        metrics.gauge("admission_over_limit", admissionController::getOverLimit);
+        metrics.gauge("admission_tracked_clients", admissionController::getTrackedClients);
+    }
+
+    /**
+     * Returns the controller set by enableAdmissionControl(), or null.
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Whether a connection accepted from the address is to be served. An admitted connection has to be reported
+     * with recordAdmissionWait() when the server starts serving it, or with dropAdmission() if it is closed before.
+     */
+    protected boolean admit(InetAddress address) {
+        return admissionController == null || admissionController.tryAdmit(address);
+    }
+
+    /**
+     * Records how long an admitted connection waited for the server to start serving it, e.g. in a worker
+     * pool's queue. This queue is made of admitted connections, so the controller has to see it to keep it short.
+     */
+    protected void recordAdmissionWait(long waitNs) {
+        if (admissionController != null) {
+            admissionController.onServing(waitNs);
+        }
+    }
+
+    protected void dropAdmission() {
+        if (admissionController != null) {
+            admissionController.onDropped();
+        }
+    }
+
+    /**
+     * Turns a connection away without reading from it: sends the protocol's rejection response, if it has one,
+     * and closes. Without one the connection is reset, so that the client fails at once instead of taking the
+     * closed connection for an empty response.
+     */
+    protected void rejectConnection(SocketChannel channel) {
+        rejectedConnections.increment();
+        byte[] rejection = wireProtocol.rejectionResponse();
+        try (channel) {
+            if (rejection.length == 0) {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } else {
+                // a fresh socket's send buffer always takes it whole, so this doesn't block, nor come short
+                // when the channel is non-blocking
+                channel.write(ByteBuffer.wrap(rejection));
+            }
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * Serves the requests with the handler, as they are read, instead of with the response functions. Has to
+     * be called before start(). A response function can be used this way too, see StreamingHandler.of().
+     */
+    public void setStreamingHandler(StreamingHandler streamingHandler) {
+        this.streamingHandler = streamingHandler;
+    }
+
+    /**
+     * Puts a ResponseCache of maxBytes in front of the response function, so repeated requests skip it.
+     * Has to be called before start(). File region responses are not cached, they are already served from
+     * the page cache, and neither are the responses of a streaming handler.
+     */
+    public void enableResponseCache(long maxBytes) {
+        ResponseCache cache = new ResponseCache(maxBytes);
+        Function<byte[], byte[]> handler = responseGeneratorFunction;
+        this.responseGeneratorFunction = request -> cache.get(request, handler);
+        this.responseCache = cache;
+
+        metrics.gauge("response_cache_hits", cache::getHits);
+        metrics.gauge("response_cache_misses", cache::getMisses);
+        metrics.gauge("response_cache_evictions", cache::getEvictions);
+        metrics.gauge("response_cache_entries", cache::getEntries);
+        metrics.gauge("response_cache_bytes", cache::getBytes);
+    }
+
+    /**
+     * Returns the cache set up by enableResponseCache(), or null.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Lets the clients that offer it negotiate compression of the payloads (see PayloadCompression). Has to be
+     * called before start(). Only the LENGTH_PREFIXED and HTTP protocols can negotiate, and only responses from
+     * the response function are compressed: file regions are sent as they are, and so is what a streaming
+     * handler writes.
+     */
+    public void enableCompression(CompressorPool compressorPool) {
+        this.compressorPool = compressorPool;
+
+        metrics.gauge("compression_compressed_payloads", compressorPool::getCompressedPayloads);
+        metrics.gauge("compression_skipped_payloads", compressorPool::getSkippedPayloads);
+        metrics.gauge("compression_bytes_before", compressorPool::getBytesBeforeCompression);
+        metrics.gauge("compression_bytes_after", compressorPool::getBytesAfterCompression);
+        metrics.gauge("compression_ns", compressorPool::getCompressionNs);
+        metrics.gauge("decompression_ns", compressorPool::getDecompressionNs);
+        metrics.gauge("compression_deflaters_created", compressorPool::getDeflatersCreated);
+        metrics.gauge("compression_inflaters_created", compressorPool::getInflatersCreated);
+    }
+
+    /**
+     * Returns the pool set by enableCompression(), or null.
+     */
+    public CompressorPool getCompressorPool() {
+        return compressorPool;
+    }
+
+    /**
+     * The compression state of a new connection, which passes the payloads through if compression is not enabled.
+     */
+    protected PayloadCompression newPayloadCompression() {
+        return new PayloadCompression(compressorPool, false);
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Replaces the default pool, e.g. to change its limits. Has to be called before start().
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets how many sockets listen on the port and the backlog of each one. Has to be called before start().
+     * With more than one listener, the sockets are bound with SO_REUSEPORT and every one gets its own accept
+     * thread or selector (see openListeners()), so accepting is not serialized on a single socket.
+     */
+    public void setListeners(int listeners, int backlog) {
+        if (listeners < 1 || backlog < 1) {
+            throw new IllegalArgumentException("Number of listeners and backlog must be positive: "
+                    + listeners + ", " + backlog);
+        }
+        this.listeners = listeners;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Sets the longest request the server takes: the payload of a frame, the body of an HTTP message or all
+     * that a CLOSE_DELIMITED connection sends. A connection whose request announces a longer one is closed
+     * before a buffer is leased for it, one that sends more is closed once it does. Has to be called before
+     * start().
+     */
+    public void setMaxRequestSize(int maxRequestSize) {
+        if (maxRequestSize < 0) {
+            throw new IllegalArgumentException("Max request size must not be negative: " + maxRequestSize);
+        }
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public int getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public int getListeners() {
+        return listeners;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Opens count sockets listening on the server's port. When there are more of them, they are bound with
+     * SO_REUSEPORT, and the kernel spreads the incoming connections over them: Linux picks the socket by a hash
+     * of the connection's addresses and ports, so every socket has its own accept queue of the given backlog.
+     * On systems that don't support the option, setOption() throws UnsupportedOperationException.
+     */
+    protected List<ServerSocketChannel> openListeners(InetAddress address, int count) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (count > 1) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(address, port), backlog);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeListeners(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    protected static void closeListeners(List<ServerSocketChannel> channels) {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public void start() {
-        workingThread.start();
+        if (workingThread != null) {
+            workingThread.start();
+        }
     }
 
     public void stop() {
-        workingThread.interrupt();
-        workingThread = null;
+        if (workingThread != null) {
+            workingThread.interrupt();
+            workingThread = null;
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
     }
 }
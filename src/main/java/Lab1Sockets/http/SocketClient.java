@@ -12,7 +12,7 @@ public class SocketClient extends Client{
 
     @Override
     public int sendDataAndGetResponse(byte[] data) {
-        try (Socket socket = new Socket(localhost.getHostName(), port);
+        try (Socket socket = connect();
              InputStream inputStream = socket.getInputStream()) {
             OutputStream outputStream = socket.getOutputStream();
             outputStream.write(data);
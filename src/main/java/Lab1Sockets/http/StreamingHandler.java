@@ -0,0 +1,106 @@
+package Lab1Sockets.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * A request handler that gets the request body in chunks, as they are read, and may send the response in chunks
+ * while the request is still arriving. The servers then hold only a chunk of a request instead of all of it,
+ * and the first bytes of the response leave as soon as the handler has them.
+ * <p>
+ * A response function (Function&lt;byte[], byte[]&gt;) becomes a StreamingHandler with of(), which collects the
+ * body and sends the function's result at the end of the request.
+ */
+public interface StreamingHandler {
+
+    /**
+     * Called when a request starts, with the length of its body if the protocol tells it up front
+     * (LENGTH_PREFIXED, HTTP with Content-Length), -1 otherwise (CLOSE_DELIMITED, chunked HTTP). Returns the
+     * exchange that gets the body, one per request, so it may keep state.
+     */
+    Exchange newExchange(long requestLength);
+
+    interface Exchange {
+
+        /**
+         * A chunk of the request body, between its position and limit. The chunk is a view of the server's read
+         * buffer, valid only during the call: whatever is needed later has to be copied.
+         */
+        void onRequestChunk(ByteBuffer chunk, ResponseSink response) throws IOException;
+
+        /**
+         * The request is over. The response has to be complete when this returns: if it was never started, an
+         * empty one is sent.
+         */
+        void onRequestEnd(ResponseSink response) throws IOException;
+    }
+
+    interface ResponseSink {
+
+        /**
+         * Starts the response, whose body is going to be length bytes long, or of an unknown length if it is -1.
+         * An HTTP response of unknown length is sent chunked, a LENGTH_PREFIXED one can't have an unknown length.
+         */
+        void start(long length) throws IOException;
+
+        /**
+         * Sends the bytes between position and limit of the chunk. The chunk may be reused when this returns.
+         */
+        void write(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * Sends every chunk back as soon as it arrives.
+     */
+    static StreamingHandler echo() {
+        return requestLength -> new Exchange() {
+            private boolean started = false;
+
+            @Override
+            public void onRequestChunk(ByteBuffer chunk, ResponseSink response) throws IOException {
+                if (!started) {
+                    response.start(requestLength);
+                    started = true;
+                }
+                response.write(chunk);
+            }
+
+            @Override
+            public void onRequestEnd(ResponseSink response) throws IOException {
+                if (!started) {
+                    response.start(Math.max(requestLength, 0));
+                }
+            }
+        };
+    }
+
+    /**
+     * The adapter for response functions: collects the whole body into an array and sends what the function
+     * returns for it.
+     */
+    static StreamingHandler of(Function<byte[], byte[]> function) {
+        return requestLength -> new Exchange() {
+            private byte[] body = new byte[requestLength >= 0 ? (int) requestLength : 64 * 1024];
+            private int bodyLength = 0;
+
+            @Override
+            public void onRequestChunk(ByteBuffer chunk, ResponseSink response) {
+                if (body.length - bodyLength < chunk.remaining()) {
+                    body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + chunk.remaining()));
+                }
+                int length = chunk.remaining();
+                chunk.get(body, bodyLength, length);
+                bodyLength += length;
+            }
+
+            @Override
+            public void onRequestEnd(ResponseSink response) throws IOException {
+                byte[] result = function.apply(body.length == bodyLength ? body : Arrays.copyOf(body, bodyLength));
+                response.start(result.length);
+                response.write(ByteBuffer.wrap(result));
+            }
+        };
+    }
+}
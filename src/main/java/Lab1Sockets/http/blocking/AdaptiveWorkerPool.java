@@ -0,0 +1,137 @@
+package Lab1Sockets.http.blocking;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ThreadPoolExecutor with a bounded queue, whose number of threads follows the time the tasks wait in it.
+ * <p>
+ * Every task is stamped when it is submitted, and a worker taking it feeds the wait into a moving average.
+ * While the average is above the target, the core size grows by half (up to maxThreads), so the queued
+ * tasks get new threads right away. When a worker finds the queue empty and at most half of the threads busy,
+ * the core size shrinks by one (down to minThreads) and the extra threads exit as soon as they are idle.
+ * The size changes at most once per ADJUSTMENT_INTERVAL_NS, so one slow task doesn't start a crowd of threads.
+ * <p>
+ * When the queue is full and all maxThreads are busy, the shedding policy decides: REJECT throws
+ * RejectedExecutionException from execute() at once, STOP_ACCEPTING blocks the submitting thread until
+ * there is room in the queue.
+ */
+public class AdaptiveWorkerPool extends ThreadPoolExecutor {
+
+    public enum SheddingPolicy {
+        /**
+         * execute() throws RejectedExecutionException, so the caller can turn the task away cheaply.
+         */
+        REJECT,
+        /**
+         * execute() waits for room in the queue. For a server, the accept loop stops and new connections
+         * wait in the listen backlog.
+         */
+        STOP_ACCEPTING
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 5;
+    private static final long ADJUSTMENT_INTERVAL_NS = 10_000_000;
+    /**
+     * Weight of a new sample in the moving average of queue wait, as a shift: 1/8.
+     */
+    private static final int QUEUE_WAIT_SMOOTHING_SHIFT = 3;
+
+    private final int minThreads;
+    private final long targetQueueWaitNs;
+
+    // guarded by this
+    private long queueWaitAverageNs;
+    private long lastAdjustmentNs = System.nanoTime();
+
+    /**
+     * Returns a pool whose minThreads are already running: the tasks put straight into the queue by
+     * waitForRoom() need threads that are already there. The threads are started here rather than in the
+     * constructor, so that they never see a pool that isn't fully constructed.
+     */
+    public static AdaptiveWorkerPool start(int minThreads, int maxThreads, int queueCapacity, long targetQueueWaitNs,
+                                           SheddingPolicy sheddingPolicy) {
+        AdaptiveWorkerPool pool = new AdaptiveWorkerPool(minThreads, maxThreads, queueCapacity, targetQueueWaitNs,
+                sheddingPolicy);
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    private AdaptiveWorkerPool(int minThreads, int maxThreads, int queueCapacity, long targetQueueWaitNs,
+                               SheddingPolicy sheddingPolicy) {
+        super(minThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                sheddingPolicy == SheddingPolicy.STOP_ACCEPTING ? AdaptiveWorkerPool::waitForRoom : new AbortPolicy());
+        this.minThreads = minThreads;
+        this.targetQueueWaitNs = targetQueueWaitNs;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command, System.nanoTime()));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        if (task instanceof QueuedTask queuedTask) {
+            onQueueWait(System.nanoTime() - queuedTask.submittedNs());
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable throwable) {
+        if (getQueue().isEmpty()) {
+            onQueueEmpty();
+        }
+    }
+
+    private synchronized void onQueueWait(long waitNs) {
+        queueWaitAverageNs += (waitNs - queueWaitAverageNs) >> QUEUE_WAIT_SMOOTHING_SHIFT;
+        long now = System.nanoTime();
+        int coreThreads = getCorePoolSize();
+        if (queueWaitAverageNs > targetQueueWaitNs && coreThreads < getMaximumPoolSize()
+                && now - lastAdjustmentNs >= ADJUSTMENT_INTERVAL_NS) {
+            setCorePoolSize(Math.min(getMaximumPoolSize(), coreThreads + Math.max(1, coreThreads / 2)));
+            lastAdjustmentNs = now;
+        }
+    }
+
+    /**
+     * An empty queue counts as a wait of zero, otherwise the average would stay where the last burst left it.
+     */
+    private synchronized void onQueueEmpty() {
+        queueWaitAverageNs -= queueWaitAverageNs >> QUEUE_WAIT_SMOOTHING_SHIFT;
+        long now = System.nanoTime();
+        int coreThreads = getCorePoolSize();
+        if (coreThreads > minThreads && getActiveCount() <= coreThreads / 2
+                && queueWaitAverageNs < targetQueueWaitNs / 2
+                && now - lastAdjustmentNs >= ADJUSTMENT_INTERVAL_NS) {
+            setCorePoolSize(coreThreads - 1);
+            lastAdjustmentNs = now;
+        }
+    }
+
+    public synchronized long getQueueWaitAverageNs() {
+        return queueWaitAverageNs;
+    }
+
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The pool is shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    private record QueuedTask(Runnable task, long submittedNs) implements Runnable {
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
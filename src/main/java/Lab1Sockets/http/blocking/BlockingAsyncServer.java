@@ -1,43 +1,66 @@
 package Lab1Sockets.http.blocking;
 
 import Lab1Sockets.http.Client;
+import Lab1Sockets.http.events.WorkerQueueEvent;
 
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Serves every accepted connection on a worker of an AdaptiveWorkerPool. The pool grows between
+ * minThreads and maxThreads while connections wait for a worker longer than TARGET_QUEUE_WAIT_NS, and holds
+ * at most queueCapacity waiting connections. Past that, the shedding policy applies: with REJECT the
+ * connection is turned away at once (see rejectConnection()), with STOP_ACCEPTING the accept loop waits for
+ * room and new connections wait in the listen backlog.
+ */
 public class BlockingAsyncServer extends BlockingServer {
 
-    private final ExecutorService executorService;
+    public static final int DEFAULT_MAX_THREADS_FACTOR = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long TARGET_QUEUE_WAIT_NS = 5_000_000;
+
+    private final AdaptiveWorkerPool workers;
 
     public BlockingAsyncServer(int port, Client client, int numberOfWorkingTreads) {
+        this(port, client, numberOfWorkingTreads, numberOfWorkingTreads * DEFAULT_MAX_THREADS_FACTOR,
+                DEFAULT_QUEUE_CAPACITY, AdaptiveWorkerPool.SheddingPolicy.REJECT);
+    }
+
+    public BlockingAsyncServer(int port, Client client, int minThreads, int maxThreads, int queueCapacity,
+                               AdaptiveWorkerPool.SheddingPolicy sheddingPolicy) {
         super(port, client);
-        executorService = Executors.newFixedThreadPool(numberOfWorkingTreads);
+        workers = AdaptiveWorkerPool.start(minThreads, maxThreads, queueCapacity, TARGET_QUEUE_WAIT_NS, sheddingPolicy);
+        // connections waiting for a worker, and workers busy with one
+        metrics.gauge("worker_queue_depth", () -> workers.getQueue().size());
+        metrics.gauge("worker_active_threads", workers::getActiveCount);
+        metrics.gauge("worker_threads", workers::getPoolSize);
+        metrics.gauge("worker_core_threads", workers::getCorePoolSize);
+        metrics.gauge("worker_queue_wait_average_ns", workers::getQueueWaitAverageNs);
     }
 
     @Override
-    public void handleConnection(Socket clientSocket) {
-        executorService.submit(() -> {
-            try (InputStream inputStream = clientSocket.getInputStream()) {
-                OutputStream outputStream = clientSocket.getOutputStream();
-                byte[] inputData = inputStream.readAllBytes();
-                this.receivedBytes.addAndGet(inputData.length);
-                byte[] response = responseGeneratorFunction.apply(inputData);
-                outputStream.write(response);
-                clientSocket.shutdownOutput();
-//                this.sentBytes.addAndGet(response.length);
-                clientSocket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+    public void handleConnection(Socket clientSocket, long acceptedNs) {
+        WorkerQueueEvent queueEvent = new WorkerQueueEvent();
+        queueEvent.begin();
+        int queueDepth = workers.getQueue().size();
+        try {
+            workers.execute(() -> {
+                queueEvent.finish(queueDepth);
+                serveConnection(clientSocket, acceptedNs);
+            });
+        } catch (RejectedExecutionException e) {
+            dropAdmission();
+            rejectConnection(clientSocket.getChannel());
+        }
+    }
+
+    public AdaptiveWorkerPool getWorkers() {
+        return workers;
     }
 
     @Override
     public void stop() {
         super.stop();
-        executorService.shutdown();
+        workers.shutdown();
     }
 }
@@ -1,55 +1,398 @@
 package Lab1Sockets.http.blocking;
 
+import Lab1Sockets.http.BufferPool;
 import Lab1Sockets.http.Server;
 import Lab1Sockets.http.Client;
+import Lab1Sockets.http.FileRegion;
+import Lab1Sockets.http.events.ConnectionAcceptedEvent;
+import Lab1Sockets.http.events.HandlerEvent;
+import Lab1Sockets.http.events.RequestReadEvent;
+import Lab1Sockets.http.events.ResponseWriteEvent;
+import Lab1Sockets.http.protocol.LengthPrefixedFraming;
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.RequestBuffer;
+import Lab1Sockets.http.protocol.StreamingSession;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class BlockingServer extends Server {
 
-    public abstract void handleConnection(Socket clientSocket);
+    /**
+     * Serves the admitted connection, accepted at acceptedNs (a System.nanoTime() value), or turns it away.
+     */
+    public abstract void handleConnection(Socket clientSocket, long acceptedNs);
 
-    private ServerSocket serverSocket;
+    private static final int INITIAL_REQUEST_CAPACITY = 64 * 1024;
+    private static final int STREAMING_READ_CAPACITY = 64 * 1024;
+
+    private List<ServerSocketChannel> serverSocketChannels = List.of();
+    private final List<Thread> acceptorThreads = new ArrayList<>();
 
     public BlockingServer(int port, Client client) {
         super(port, client);
-        this.workingThread = new Thread(() -> {
-//            long sumTimeOfHandling = 0;
-//            int i = 0;
-            while (!Thread.currentThread().isInterrupted()) {
+    }
+
+    /**
+     * The loop of an acceptor thread, one per listening socket.
+     */
+    private void acceptConnections(ServerSocketChannel serverSocketChannel) {
+//        long sumTimeOfHandling = 0;
+//        int i = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ConnectionAcceptedEvent acceptedEvent = new ConnectionAcceptedEvent();
+                acceptedEvent.begin();
+                Socket socket = serverSocketChannel.accept().socket();
+                long acceptedNs = System.nanoTime();
+                acceptedEvent.finish(socket.getPort());
+                acceptedConnections.increment();
+                if (!admit(socket.getInetAddress())) {
+                    rejectConnection(socket.getChannel());
+                    continue;
+                }
+//                long curr = System.nanoTime();
+                handleConnection(socket, acceptedNs);
+//                sumTimeOfHandling += System.nanoTime() - curr;
+//                i++;
+            } catch (Exception ignore) {}
+        }
+
+//        System.out.println("Server: i = " + i + ", avgTime: " + (sumTimeOfHandling / i));
+    }
+
+    /**
+     * Serves the requests of one connection, as delimited by the wire protocol, and closes it. The sockets
+     * are accepted through a (blocking) ServerSocketChannel, so we can read and write through the socket's
+     * channel using direct buffers leased from the pool instead of the stream's heap copies. The connection
+     * was admitted in the accept loop (see Server.admit()), and the time it waited since is recorded for the
+     * admission controller.
+     */
+    protected void serveConnection(Socket clientSocket, long acceptedNs) {
+        recordAdmissionWait(System.nanoTime() - acceptedNs);
+        openConnections.incrementAndGet();
+        try (SocketChannel channel = clientSocket.getChannel()) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (streamingHandler != null) {
+                serveStreaming(channel);
+                return;
+            }
+            switch (wireProtocol) {
+                case LENGTH_PREFIXED -> serveFrames(channel);
+                case HTTP -> serveParsedRequests(channel);
+                default -> serveUntilEndOfStream(channel);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Serves the connection with the streaming handler: every read goes to the session right away, and what
+     * the handler writes is written to the socket before the next read. The connection holds one read buffer,
+     * whatever the size of its requests.
+     */
+    private void serveStreaming(SocketChannel channel) throws IOException {
+        StreamingSession session = new StreamingSession(bufferPool, wireProtocol, streamingHandler) {
+            @Override
+            protected void send(ByteBuffer... data) throws IOException {
+                writeFully(channel, data);
+            }
+
+            @Override
+            protected void onResponseComplete(long requestStartNs) {
+                recordRequest(requestStartNs);
+            }
+        };
+        ByteBuffer input = bufferPool.acquire(STREAMING_READ_CAPACITY);
+        try {
+            while (!session.isClosed()) {
+                int read = channel.read(input);
+                if (read == -1) {
+                    session.endOfStream();
+                    break;
+                }
+                this.receivedBytes.add(read);
+                input.flip();
+                session.decode(input);
+                input.compact();
+                if (!input.hasRemaining()) {
+                    // only an HTTP head is kept whole, and the parser doesn't let one grow without a bound
+                    input = bufferPool.grow(input, input.capacity() * 2);
+                }
+            }
+        } finally {
+            bufferPool.release(input);
+        }
+    }
+
+    private void serveUntilEndOfStream(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire(INITIAL_REQUEST_CAPACITY);
+        try {
+            RequestReadEvent readEvent = new RequestReadEvent();
+            readEvent.begin();
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                this.receivedBytes.add(read);
+                if (buffer.position() > getMaxRequestSize()) {
+                    throw new IllegalStateException("Request is longer than " + getMaxRequestSize() + " bytes");
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer = bufferPool.grow(buffer, buffer.capacity() * 2);
+                }
+            }
+            readEvent.finish(buffer.position());
+            long requestStart = System.nanoTime();
+            // nothing can be negotiated without a frame, so this compression passes everything through
+            respond(channel, buffer, newPayloadCompression(), 0);
+            recordRequest(requestStart);
+            channel.shutdownOutput();
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * The body is read with a scattering read into the body buffer and the header buffer: when the client
+     * pipelines, the tail of one frame and the header of the next one usually arrive together, and this way
+     * they are taken in one read instead of two.
+     */
+    private void serveFrames(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LengthPrefixedFraming.HEADER_SIZE);
+        ByteBuffer[] bodyAndNextHeader = new ByteBuffer[2];
+        PayloadCompression compression = newPayloadCompression();
+        while (readFully(channel, header)) {
+            // from the header on, waiting for the next request is over
+            RequestReadEvent readEvent = new RequestReadEvent();
+            readEvent.begin();
+            int length = LengthPrefixedFraming.length(header.getInt(0));
+            int flags = LengthPrefixedFraming.flags(header.getInt(0));
+            if (length > getMaxRequestSize()) {
+                throw new IllegalStateException("Frame of " + length + " bytes is longer than "
+                        + getMaxRequestSize() + " bytes");
+            }
+            header.clear();
+            ByteBuffer buffer = bufferPool.acquire(length);
+            try {
+                buffer.limit(length);
+                bodyAndNextHeader[0] = buffer;
+                bodyAndNextHeader[1] = header;
+                while (buffer.hasRemaining()) {
+                    long read = channel.read(bodyAndNextHeader);
+                    if (read == -1) {
+                        throw new EOFException("Connection closed in the middle of a frame");
+                    }
+                    this.receivedBytes.add(read);
+                }
+                readEvent.finish(LengthPrefixedFraming.HEADER_SIZE + length);
+                long requestStart = System.nanoTime();
+                respond(channel, buffer, compression, flags);
+                recordRequest(requestStart);
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * HTTP messages can't be read by length up front, so the bytes go through a RequestBuffer, which parses
+     * them as they come, the same way the non-blocking servers do it.
+     */
+    private void serveParsedRequests(SocketChannel channel) throws IOException {
+        RequestBuffer request = new RequestBuffer(bufferPool, wireProtocol, getMaxRequestSize());
+        PayloadCompression compression = newPayloadCompression();
+        try {
+            boolean endOfStream = false;
+            while (!request.isCloseRequested()) {
+                byte[] data = request.nextRequest(endOfStream);
+                if (data == null) {
+                    if (endOfStream) {
+                        return;
+                    }
+                    int read = channel.read(request.writableBuffer());
+                    if (read == -1) {
+                        endOfStream = true;
+                    } else {
+                        this.receivedBytes.add(read);
+                    }
+                    continue;
+                }
+
+                long requestStart = System.nanoTime();
+                data = compression.decode(data, request.getRequestFlags());
+                if (fileResponseFunction != null) {
+                    sendFileResponse(channel, applyFileResponseFunction(data));
+                    recordRequest(requestStart);
+                    continue;
+                }
+                ByteBuffer[] response = wireProtocol.encodeResponse(bufferPool,
+                        compression.encode(applyResponseFunction(data)));
                 try {
-                    Socket socket = serverSocket.accept();
-//                    long curr = System.nanoTime();
-                    handleConnection(socket);
-//                    sumTimeOfHandling += System.nanoTime() - curr;
-//                    i++;
-                } catch (Exception ignore) {}
+                    ResponseWriteEvent writeEvent = new ResponseWriteEvent();
+                    writeEvent.begin();
+                    writeEvent.finish(writeFully(channel, response));
+                } finally {
+                    bufferPool.releaseAll(response);
+                }
+                recordRequest(requestStart);
             }
+        } finally {
+            request.release();
+        }
+    }
+
+    /**
+     * Takes the request from the buffer (in write mode), applies the response function and writes the
+     * response back (or sends the file region, if the provider serves files). The request and the response
+     * go through the connection's compression, the request with the flags it came with. The buffer is reused
+     * for the response if it is big enough. It stays the caller's to release; a bigger one leased for the
+     * response is released here, whether the write succeeds or not.
+     */
+    private void respond(SocketChannel channel, ByteBuffer buffer, PayloadCompression compression,
+                         int requestFlags) throws IOException {
+        buffer.flip();
+        byte[] inputData = new byte[buffer.remaining()];
+        buffer.get(inputData);
+        inputData = compression.decode(inputData, requestFlags);
+
+        if (fileResponseFunction != null) {
+            sendFileResponse(channel, applyFileResponseFunction(inputData));
+            return;
+        }
+
+        PayloadCompression.Payload response = compression.encode(applyResponseFunction(inputData));
+        byte[] responseData = response.data();
+
+        ByteBuffer body = buffer.capacity() < responseData.length ? bufferPool.acquire(responseData.length) : buffer;
+        ByteBuffer head = null;
+        try {
+            body.clear();
+            body.put(responseData).flip();
+            head = wireProtocol.encodeResponseHead(bufferPool, responseData.length, response.flags());
+            ResponseWriteEvent writeEvent = new ResponseWriteEvent();
+            writeEvent.begin();
+            writeEvent.finish(writeFully(channel, new ByteBuffer[]{head, body}));
+        } finally {
+            bufferPool.release(head);
+            if (body != buffer) {
+                bufferPool.release(body);
+            }
+        }
+    }
+
+    private byte[] applyResponseFunction(byte[] request) {
+        HandlerEvent handlerEvent = new HandlerEvent();
+        handlerEvent.begin();
+        byte[] response = responseGeneratorFunction.apply(request);
+        handlerEvent.finish(request.length, response.length);
+        return response;
+    }
+
+    private FileRegion applyFileResponseFunction(byte[] request) {
+        HandlerEvent handlerEvent = new HandlerEvent();
+        handlerEvent.begin();
+        FileRegion region = fileResponseFunction.apply(request);
+        handlerEvent.finish(request.length, region.count());
+        return region;
+    }
+
+    /**
+     * One gathering write per round, so a response head and its body are never copied together, until every
+     * buffer is drained. Returns the number of bytes written.
+     */
+    private long writeFully(SocketChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = BufferPool.remaining(buffers);
+        long written = 0;
+        while (written < remaining) {
+            written += channel.write(buffers);
+        }
+        this.sentBytes.add(written);
+        return written;
+    }
+
+    /**
+     * Writes the protocol's head and then lets the kernel copy the file region straight to the socket.
+     */
+    private void sendFileResponse(SocketChannel channel, FileRegion region) throws IOException {
+        ResponseWriteEvent writeEvent = new ResponseWriteEvent();
+        writeEvent.begin();
+        ByteBuffer head = wireProtocol.encodeResponseHead(bufferPool, region.count());
+        long written;
+        try {
+            written = writeFully(channel, new ByteBuffer[]{head});
+        } finally {
+            bufferPool.release(head);
+        }
+
+        long position = region.position();
+        long remaining = region.count();
+        while (remaining > 0) {
+            long transferred = region.fileChannel().transferTo(position, remaining, channel);
+            if (transferred <= 0) {
+                throw new EOFException("File region is beyond the end of the file");
+            }
+            position += transferred;
+            remaining -= transferred;
+            this.sentBytes.add(transferred);
+        }
+        writeEvent.finish(written + region.count());
+    }
 
-//            System.out.println("Server: i = " + i + ", avgTime: " + (sumTimeOfHandling / i));
-        });
+    /**
+     * Reads until the buffer is full. Returns false if the stream ended before the first byte
+     * (counting the bytes that were already in the buffer).
+     */
+    private boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        boolean started = buffer.position() > 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                if (started) {
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+                return false;
+            }
+            started = true;
+            this.receivedBytes.add(read);
+        }
+        return true;
     }
 
+    /**
+     * Opens the listening sockets (see setListeners()) and starts an acceptor thread for each of them. A sync
+     * server therefore serves as many connections at once as it has listeners.
+     */
     @Override
     public void start() {
         try {
-            this.serverSocket = new ServerSocket(port, 50, InetAddress.getLocalHost());
+            this.serverSocketChannels = openListeners(InetAddress.getLocalHost(), getListeners());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        for (ServerSocketChannel serverSocketChannel : serverSocketChannels) {
+            Thread acceptorThread = new Thread(() -> acceptConnections(serverSocketChannel),
+                    "acceptor-" + acceptorThreads.size());
+            acceptorThreads.add(acceptorThread);
+            acceptorThread.start();
+        }
         super.start();
     }
 
     @Override
     public void stop() {
         super.stop();
-        try {
-            this.serverSocket.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        acceptorThreads.forEach(Thread::interrupt);
+        acceptorThreads.clear();
+        closeListeners(serverSocketChannels);
     }
 }
@@ -2,10 +2,13 @@ package Lab1Sockets.http.blocking;
 
 import Lab1Sockets.http.Client;
 
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 
+/**
+ * Serves connections one at a time on the accepting thread. With a persistent-connection client
+ * (LENGTH_PREFIXED) that means one client connection at a time: the next one is accepted only when
+ * the current one is closed, so it is meant to be benchmarked with a single sending thread.
+ */
 public class BlockingSyncServer extends BlockingServer {
 
     public BlockingSyncServer(int port, Client client) {
@@ -13,18 +16,7 @@ public class BlockingSyncServer extends BlockingServer {
     }
 
     @Override
-    public void handleConnection(Socket clientSocket) {
-        try (InputStream inputStream = clientSocket.getInputStream()) {
-            OutputStream outputStream = clientSocket.getOutputStream();
-            byte[] inputData = inputStream.readAllBytes();
-            this.receivedBytes.addAndGet(inputData.length);
-            byte[] response = responseGeneratorFunction.apply(inputData);
-            outputStream.write(response);
-            clientSocket.shutdownOutput();
-            this.sentBytes.addAndGet(response.length);
-            clientSocket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public void handleConnection(Socket clientSocket, long acceptedNs) {
+        serveConnection(clientSocket, acceptedNs);
     }
 }
@@ -0,0 +1,47 @@
+package Lab1Sockets.http.blocking;
+
+import Lab1Sockets.http.Client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Handles every accepted connection on its own virtual thread, so a slow client blocks only its own thread.
+ * <p>
+ * Virtual threads are cheap, but the 2 MB buffers of the requests they serve are not. The number of connections
+ * served at once is therefore limited by a semaphore: when the limit is reached, the accept loop waits for a
+ * permit, and new connections queue up in the listen backlog instead of in memory.
+ */
+public class BlockingVirtualThreadServer extends BlockingServer {
+
+    private final Semaphore connectionPermits;
+
+    public BlockingVirtualThreadServer(int port, Client client, int maxConcurrentConnections) {
+        super(port, client);
+        connectionPermits = new Semaphore(maxConcurrentConnections);
+        metrics.gauge("connection_permits_available", connectionPermits::availablePermits);
+    }
+
+    @Override
+    public void handleConnection(Socket clientSocket, long acceptedNs) {
+        try {
+            connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropAdmission();
+            try {
+                clientSocket.close();
+            } catch (IOException ignore) {}
+            return;
+        }
+
+        Thread.ofVirtual().start(() -> {
+            try {
+                serveConnection(clientSocket, acceptedNs);
+            } finally {
+                connectionPermits.release();
+            }
+        });
+    }
+}
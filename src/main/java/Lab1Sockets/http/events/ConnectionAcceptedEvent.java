@@ -0,0 +1,31 @@
+package Lab1Sockets.http.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A connection accepted by a server's accepting thread. The duration is the time spent in accept(), which is
+ * mostly waiting for the next client.
+ */
+@Name("Lab1Sockets.http.ConnectionAccepted")
+@Label("Connection Accepted")
+@Category({"Lab1Sockets", "Server"})
+@Description("A connection accepted by a server")
+@StackTrace(false)
+public class ConnectionAcceptedEvent extends Event {
+
+    @Label("Remote Port")
+    public int remotePort;
+
+    public void finish(int remotePort) {
+        end();
+        if (shouldCommit()) {
+            this.remotePort = remotePort;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package Lab1Sockets.http.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * One call of the server's response function (or file response function), recorded when it takes 1 ms or more.
+ */
+@Name("Lab1Sockets.http.Handler")
+@Label("Handler")
+@Category({"Lab1Sockets", "Server"})
+@Description("Execution of the response function for one request")
+@StackTrace(false)
+@Threshold("1 ms")
+public class HandlerEvent extends Event {
+
+    @Label("Request Bytes")
+    @DataAmount(DataAmount.BYTES)
+    public long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount(DataAmount.BYTES)
+    public long responseBytes;
+
+    public void finish(long requestBytes, long responseBytes) {
+        end();
+        if (shouldCommit()) {
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            commit();
+        }
+    }
+}
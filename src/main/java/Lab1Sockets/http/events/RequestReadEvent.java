@@ -0,0 +1,36 @@
+package Lab1Sockets.http.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Reading from a connection: a whole request in the blocking servers, everything a connection had for us on
+ * one readiness event in the non-blocking one. Only reads of at least 1 ms are recorded by default, lower the
+ * threshold in the recording settings to see them all.
+ */
+@Name("Lab1Sockets.http.RequestRead")
+@Label("Request Read")
+@Category({"Lab1Sockets", "Server"})
+@Description("Bytes read from a connection")
+@StackTrace(false)
+@Threshold("1 ms")
+public class RequestReadEvent extends Event {
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+
+    public void finish(long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package Lab1Sockets.http.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Writing to a connection: a whole response in the blocking servers, one drain of the response queue on a
+ * writability event in the non-blocking one. Recorded when it takes 1 ms or more.
+ */
+@Name("Lab1Sockets.http.ResponseWrite")
+@Label("Response Write")
+@Category({"Lab1Sockets", "Server"})
+@Description("Bytes written to a connection")
+@StackTrace(false)
+@Threshold("1 ms")
+public class ResponseWriteEvent extends Event {
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+
+    public void finish(long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
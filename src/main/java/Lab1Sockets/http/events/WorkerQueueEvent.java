@@ -0,0 +1,33 @@
+package Lab1Sockets.http.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Time an accepted connection waited for a worker thread of a pooled server, recorded when it is 1 ms or more.
+ * The event is committed by the worker that took the connection.
+ */
+@Name("Lab1Sockets.http.WorkerQueue")
+@Label("Worker Queue Wait")
+@Category({"Lab1Sockets", "Server"})
+@Description("An accepted connection waiting for a worker thread")
+@StackTrace(false)
+@Threshold("1 ms")
+public class WorkerQueueEvent extends Event {
+
+    @Label("Queue Depth")
+    public int queueDepth;
+
+    public void finish(int queueDepth) {
+        end();
+        if (shouldCommit()) {
+            this.queueDepth = queueDepth;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package Lab1Sockets.http.metrics;
+
+import Lab1Sockets.http.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a server, by name.
+ * <p>
+ * Counters are LongAdders, which keep a cell per contending thread instead of one contended word, so the
+ * byte counts can be bumped on every read and write. Gauges are read only when a snapshot is taken, so they
+ * cost nothing in between. Histograms are StripedLatencyHistograms, in nanoseconds.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, StripedLatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignore -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge, replacing the one with the same name if there is one. The supplier is called from the
+     * thread taking the snapshot, so it must be safe to call from any thread.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public StripedLatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, ignore -> new StripedLatencyHistogram());
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Long> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+        Map<String, LatencyHistogram> histogramValues = new TreeMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        return new Snapshot(counterValues, gaugeValues, histogramValues);
+    }
+
+    /**
+     * Values of all the metrics at one moment (each one read separately, so not an atomic view of them all).
+     */
+    public record Snapshot(Map<String, Long> counters, Map<String, Long> gauges,
+                           Map<String, LatencyHistogram> histograms) {
+
+        private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+        /**
+         * The snapshot in the Prometheus text format: one "name value" line per counter and gauge, and
+         * quantiles, count, sum and max for every histogram.
+         */
+        public String toPlainText() {
+            StringBuilder text = new StringBuilder();
+            counters.forEach((name, value) -> text.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(value).append('\n'));
+            gauges.forEach((name, value) -> text.append("# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ').append(value).append('\n'));
+            histograms.forEach((name, histogram) -> {
+                text.append("# TYPE ").append(name).append(" summary\n");
+                for (String quantile : QUANTILES) {
+                    text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100)).append('\n');
+                }
+                text.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+                text.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+                text.append(name).append("_max ").append(histogram.getMax()).append('\n');
+            });
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package Lab1Sockets.http.metrics;
+
+import Lab1Sockets.http.LatencyHistogram;
+
+/**
+ * A LatencyHistogram that many threads can record into at once. The recordings are spread over stripes by
+ * thread id, each stripe being a plain histogram under its own lock, so two threads contend only when their
+ * ids fall on the same stripe; snapshot() merges the stripes.
+ */
+public class StripedLatencyHistogram {
+
+    private final LatencyHistogram[] stripes;
+    private final int mask;
+
+    public StripedLatencyHistogram() {
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.stripes = new LatencyHistogram[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new LatencyHistogram();
+        }
+        this.mask = stripeCount - 1;
+    }
+
+    public void record(long value) {
+        LatencyHistogram stripe = stripes[(int) Thread.currentThread().threadId() & mask];
+        synchronized (stripe) {
+            stripe.record(value);
+        }
+    }
+
+    public LatencyHistogram snapshot() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram stripe : stripes) {
+            synchronized (stripe) {
+                merged.add(stripe);
+            }
+        }
+        return merged;
+    }
+}
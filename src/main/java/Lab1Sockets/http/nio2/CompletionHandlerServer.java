@@ -0,0 +1,309 @@
+package Lab1Sockets.http.nio2;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.Client;
+import Lab1Sockets.http.Server;
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.RequestBuffer;
+import Lab1Sockets.http.protocol.StreamingSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proactor-style server built on NIO.2 asynchronous channels.
+ * <p>
+ * Nothing here waits for readiness: we start an accept, read or write and the channel group calls the
+ * completion handler on one of its threads when the operation is done. Every handler then starts the next
+ * operation of the chain (accept the next client, read more, write the rest), so the group's threads are
+ * the only threads this server uses.
+ */
+public class CompletionHandlerServer extends Server {
+
+    private static final int STREAMING_READ_CAPACITY = 64 * 1024;
+
+    private final AsynchronousChannelGroup channelGroup;
+    private AsynchronousServerSocketChannel serverChannel;
+
+    public CompletionHandlerServer(int port, Client client, int numberOfWorkingThreads) {
+        super(port, client);
+        try {
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(numberOfWorkingThreads, Executors.defaultThreadFactory());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void start() {
+        try {
+            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", port), getBacklog());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        serverChannel.accept(null, acceptHandler);
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        try {
+            serverChannel.close();
+            channelGroup.shutdownNow();
+            channelGroup.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Void attachment) {
+            serverChannel.accept(null, this);
+            acceptedConnections.increment();
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException ignore) {}
+            new Connection(channel).read();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (serverChannel.isOpen()) {
+                exc.printStackTrace();
+                serverChannel.accept(null, this);
+            }
+        }
+    };
+
+    /**
+     * One client connection. Reads go on until a whole request is buffered, then the response is written,
+     * possibly over several writes. After that the connection is closed (CLOSE_DELIMITED, or HTTP without
+     * keep-alive) or goes on with the next request.
+     * <p>
+     * With a streaming handler, every read goes to the session, and what the handler wrote meanwhile is
+     * written before the next read, so a connection holds one read buffer and the output of one read.
+     */
+    private class Connection {
+
+        private final AsynchronousSocketChannel channel;
+        private final RequestBuffer request;
+        private final PayloadCompression compression = newPayloadCompression();
+        private ByteBuffer[] response;
+        private long requestStart;
+        private boolean closed = false;
+
+        private final StreamingSession session;
+        private ByteBuffer input;
+        private final List<ByteBuffer> output = new ArrayList<>();
+        private final List<Long> completedRequestStarts = new ArrayList<>();
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+            this.request = new RequestBuffer(bufferPool, wireProtocol, getMaxRequestSize());
+            this.session = streamingHandler != null ? new StreamingSession(bufferPool, wireProtocol, streamingHandler) {
+                @Override
+                protected void send(ByteBuffer... data) {
+                    int length = 0;
+                    for (ByteBuffer buffer : data) {
+                        length += buffer.remaining();
+                    }
+                    ByteBuffer copy = bufferPool.acquire(length);
+                    for (ByteBuffer buffer : data) {
+                        copy.put(buffer);
+                    }
+                    output.add(copy.flip());
+                }
+
+                @Override
+                protected void onResponseComplete(long requestStartNs) {
+                    completedRequestStarts.add(requestStartNs);
+                }
+            } : null;
+            openConnections.incrementAndGet();
+        }
+
+        void read() {
+            if (session != null) {
+                if (input == null) {
+                    input = bufferPool.acquire(STREAMING_READ_CAPACITY);
+                }
+                channel.read(input, this, readHandler);
+                return;
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = request.writableBuffer();
+            } catch (IllegalStateException e) {
+                // a CLOSE_DELIMITED request over the limit
+                close();
+                return;
+            }
+            channel.read(buffer, this, readHandler);
+        }
+
+        void onRead(int read) {
+            if (read > 0) {
+                receivedBytes.add(read);
+            }
+            if (session != null) {
+                onStreamingRead(read);
+                return;
+            }
+            byte[] data;
+            try {
+                data = request.nextRequest(read == -1);
+                if (data != null) {
+                    data = compression.decode(data, request.getRequestFlags());
+                }
+            } catch (IllegalStateException e) {
+                // the client doesn't speak our protocol, there is no point in answering it
+                close();
+                return;
+            }
+            if (data != null) {
+                respond(data);
+            } else if (read == -1) {
+                close();
+            } else {
+                read();
+            }
+        }
+
+        void onStreamingRead(int read) {
+            try {
+                input.flip();
+                session.decode(input);
+                input.compact();
+                if (!input.hasRemaining()) {
+                    // only an HTTP head is kept whole, and the parser doesn't let one grow without a bound
+                    input = bufferPool.grow(input, input.capacity() * 2);
+                }
+                if (read == -1) {
+                    session.endOfStream();
+                }
+            } catch (IllegalStateException | IOException e) {
+                close();
+                return;
+            }
+            if (output.isEmpty()) {
+                onStreamingOutputWritten();
+                return;
+            }
+            response = output.toArray(new ByteBuffer[0]);
+            output.clear();
+            write();
+        }
+
+        void onStreamingOutputWritten() {
+            completedRequestStarts.forEach(CompletionHandlerServer.this::recordRequest);
+            completedRequestStarts.clear();
+            if (session.isClosed()) {
+                close();
+            } else {
+                read();
+            }
+        }
+
+        /**
+         * Asynchronous socket channels can't be the target of FileChannel.transferTo(), so file region
+         * responses are read into the buffer and written like any other.
+         */
+        void respond(byte[] data) {
+            requestStart = System.nanoTime();
+            try {
+                response = fileResponseFunction != null
+                        ? wireProtocol.encodeResponse(bufferPool, fileResponseFunction.apply(data))
+                        : wireProtocol.encodeResponse(bufferPool, compression.encode(responseGeneratorFunction.apply(data)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            write();
+        }
+
+        void write() {
+            // a gathering write, so the head and the body go out together without being copied together
+            channel.write(response, 0, response.length, 0L, TimeUnit.MILLISECONDS, this, writeHandler);
+        }
+
+        void onWritten(long written) {
+            sentBytes.add(written);
+            if (BufferPool.remaining(response) > 0) {
+                write();
+                return;
+            }
+            bufferPool.releaseAll(response);
+            response = null;
+            if (session != null) {
+                onStreamingOutputWritten();
+                return;
+            }
+            recordRequest(requestStart);
+            if (request.isCloseRequested()) {
+                close();
+                return;
+            }
+            // as if nothing new was read: serves the next request if it is already buffered, reads otherwise
+            onRead(0);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+            request.release();
+            bufferPool.releaseAll(response);
+            response = null;
+            bufferPool.releaseAll(output.toArray(new ByteBuffer[0]));
+            output.clear();
+            bufferPool.release(input);
+            input = null;
+            // last, so that a connection that isn't counted any more holds no buffers
+            openConnections.decrementAndGet();
+        }
+    }
+
+    private final CompletionHandler<Integer, Connection> readHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer read, Connection connection) {
+            connection.onRead(read);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
+        }
+    };
+
+    private final CompletionHandler<Long, Connection> writeHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(Long written, Connection connection) {
+            connection.onWritten(written);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
+        }
+    };
+}
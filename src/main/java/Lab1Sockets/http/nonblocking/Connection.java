@@ -0,0 +1,319 @@
+package Lab1Sockets.http.nonblocking;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.FileRegion;
+import Lab1Sockets.http.StreamingHandler;
+import Lab1Sockets.http.protocol.PayloadCompression;
+import Lab1Sockets.http.protocol.RequestBuffer;
+import Lab1Sockets.http.protocol.StreamingSession;
+import Lab1Sockets.http.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * State of a single client connection, attached to its SelectionKey.
+ * <p>
+ * A request arrives in as many reads as the network likes, so the bytes are collected in a RequestBuffer until
+ * a whole request is available. A client may pipeline requests (send the next ones before it got the responses),
+ * so the responses are queued in the order the requests arrived and drained over as many OP_WRITE events as
+ * the socket needs. All buffers are leased from the server's BufferPool and must be given back with release().
+ * <p>
+ * The connection counts the bytes of its queued responses, so that the reactor can stop reading from a client
+ * that sends requests faster than it takes the responses.
+ * <p>
+ * With a streaming handler, the requests are not collected: every read goes to a StreamingSession, and what the
+ * handler writes is queued as parts of a response, so the connection holds one read buffer and the output.
+ * <p>
+ * Over TLS, the reactor reads and writes through the connection's TlsChannel instead of the socket.
+ * <p>
+ * The connection also knows what it is waiting for and until when (see updateDeadline()), and holds the timer
+ * that the reactor schedules in its TimingWheel for that deadline.
+ */
+class Connection {
+
+    private final BufferPool bufferPool;
+    private final WireProtocol wireProtocol;
+
+    private final RequestBuffer request;
+    private final PayloadCompression compression;
+    // null for plaintext
+    private final TlsChannel tls;
+    private final Queue<Response> responses = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean endOfStream = false;
+    private boolean throttled = false;
+    private boolean admissionPending = true;
+
+    /**
+     * What the connection waits for, which decides how long it may wait.
+     */
+    enum Timeout { IDLE, READ, WRITE }
+
+    private TimingWheel.Timer<SelectionKey> timer;
+    private Timeout timeout = Timeout.IDLE;
+    private long timeoutSinceNs = System.nanoTime();
+    private long lastWriteNs = 0;
+    private long deadlineNs;
+
+    private static final int STREAMING_READ_CAPACITY = 64 * 1024;
+
+    private final StreamingSession session;
+    // streaming only, in write mode between calls
+    private ByteBuffer input;
+
+    Connection(BufferPool bufferPool, WireProtocol wireProtocol, int maxRequestSize, PayloadCompression compression,
+               StreamingHandler streamingHandler, TlsChannel tls) {
+        this.bufferPool = bufferPool;
+        this.wireProtocol = wireProtocol;
+        this.request = new RequestBuffer(bufferPool, wireProtocol, maxRequestSize);
+        this.compression = compression;
+        this.tls = tls;
+        this.session = streamingHandler != null ? new QueueingSession(streamingHandler) : null;
+    }
+
+    ByteBuffer requestBuffer() {
+        if (session == null) {
+            return request.writableBuffer();
+        }
+        if (input == null) {
+            input = bufferPool.acquire(STREAMING_READ_CAPACITY);
+        }
+        return input;
+    }
+
+    /**
+     * Returns true only the first time it is called. The reactor calls it when the first response is written and
+     * when the connection is closed, so the admission controller hears about the connection exactly once:
+     * until then, a connection that was admitted but has sent nothing yet is work the server took on.
+     */
+    boolean takeAdmission() {
+        boolean pending = admissionPending;
+        admissionPending = false;
+        return pending;
+    }
+
+    /**
+     * The TLS layer of the connection, or null if it is plaintext.
+     */
+    TlsChannel getTls() {
+        return tls;
+    }
+
+    boolean isStreaming() {
+        return session != null;
+    }
+
+    /**
+     * Streaming only: hands what was read to the session, and the end of the stream once it is reached.
+     * Returns the bytes of the response parts this queued.
+     */
+    long decode() throws IOException {
+        long queuedBefore = queuedBytes;
+        if (input != null) {
+            input.flip();
+            try {
+                session.decode(input);
+            } finally {
+                input.compact();
+            }
+            if (!input.hasRemaining()) {
+                // only an HTTP head is kept whole, and the parser doesn't let one grow without a bound
+                input = bufferPool.grow(input, input.capacity() * 2);
+            }
+        }
+        if (endOfStream && !session.isClosed()) {
+            session.endOfStream();
+        }
+        if (session.isClosed()) {
+            endOfStream = true;
+        }
+        return queuedBytes - queuedBefore;
+    }
+
+    /**
+     * Returns the next whole request, inflated if it came compressed, or null if there is none yet.
+     */
+    byte[] nextRequest() {
+        byte[] data = request.nextRequest(endOfStream);
+        if (request.isCloseRequested()) {
+            // nothing after the last request is going to be served, so we can stop reading
+            endOfStream = true;
+        }
+        return data == null ? null : compression.decode(data, request.getRequestFlags());
+    }
+
+    /**
+     * Marks that the client won't send anything more. The connection is done once the queued responses are written.
+     */
+    void setEndOfStream() {
+        endOfStream = true;
+    }
+
+    boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Queues the response, compressed if that was negotiated, and returns its size in bytes.
+     */
+    long addResponse(byte[] data) {
+        return addResponse(new Response(wireProtocol.encodeResponse(bufferPool, compression.encode(data))));
+    }
+
+    long addResponse(FileRegion fileRegion) {
+        return addResponse(new Response(new ByteBuffer[]{wireProtocol.encodeResponseHead(bufferPool, fileRegion.count())}, fileRegion));
+    }
+
+    private long addResponse(Response response) {
+        responses.add(response);
+        queuedBytes += response.size();
+        return response.size();
+    }
+
+    /**
+     * Bytes of the queued responses, counting the ones that are partly written in full.
+     */
+    long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    /**
+     * Returns the response that is being written now, or null if there is nothing to write.
+     */
+    Response currentResponse() {
+        return responses.peek();
+    }
+
+    /**
+     * Whether anything is left to write: a queued response, or the encrypted bytes of one that was handed to
+     * the TLS layer whole but not written yet.
+     */
+    boolean hasPendingResponses() {
+        return !responses.isEmpty() || (tls != null && tls.hasPendingOutput());
+    }
+
+    /**
+     * Called when the current response has been fully written. Returns the size of the response.
+     */
+    long finishResponse() {
+        Response response = responses.poll();
+        response.release(bufferPool);
+        queuedBytes -= response.size();
+        return response.size();
+    }
+
+    TimingWheel.Timer<SelectionKey> getTimer() {
+        return timer;
+    }
+
+    void setTimer(TimingWheel.Timer<SelectionKey> timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Whether bytes of a request have arrived and the rest of it hasn't. The TLS handshake counts as a part of
+     * the first request.
+     */
+    boolean isReadingRequest() {
+        if (tls != null && tls.isHandshaking()) {
+            return true;
+        }
+        if (session != null) {
+            return session.isInRequest() || (input != null && input.position() > 0);
+        }
+        return request.hasPartialRequest();
+    }
+
+    void recordWriteProgress(long nowNs) {
+        lastWriteNs = nowNs;
+    }
+
+    /**
+     * Works out what the connection waits for now, and returns until when it may wait. With something to write,
+     * that is writeTimeoutNs after the last write that made progress. While a request is arriving, it is
+     * readTimeoutNs after its first bytes: progress doesn't extend it, so a client that sends a byte at a time
+     * can't hold the connection for longer. Otherwise the connection is idle, for up to idleTimeoutNs.
+     */
+    long updateDeadline(long nowNs, long idleTimeoutNs, long readTimeoutNs, long writeTimeoutNs) {
+        Timeout current = hasPendingResponses() ? Timeout.WRITE : isReadingRequest() ? Timeout.READ : Timeout.IDLE;
+        if (current != timeout) {
+            timeout = current;
+            timeoutSinceNs = nowNs;
+        }
+        deadlineNs = switch (timeout) {
+            case IDLE -> timeoutSinceNs + idleTimeoutNs;
+            case READ -> timeoutSinceNs + readTimeoutNs;
+            case WRITE -> Math.max(timeoutSinceNs, lastWriteNs) + writeTimeoutNs;
+        };
+        return deadlineNs;
+    }
+
+    /**
+     * The deadline computed by the last updateDeadline().
+     */
+    long getDeadlineNs() {
+        return deadlineNs;
+    }
+
+    Timeout getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Gives back all the buffers and returns the bytes of the responses that were still queued.
+     */
+    long release() {
+        request.release();
+        bufferPool.release(input);
+        input = null;
+        Response response;
+        while ((response = responses.poll()) != null) {
+            response.release(bufferPool);
+        }
+        long dropped = queuedBytes;
+        queuedBytes = 0;
+        return dropped;
+    }
+
+    /**
+     * Copies what the handler writes into pooled buffers and queues them, so the handler never waits for the
+     * socket. An empty part marks the end of every response, for the request latency to be recorded when the
+     * whole response is written.
+     */
+    private class QueueingSession extends StreamingSession {
+
+        QueueingSession(StreamingHandler streamingHandler) {
+            super(Connection.this.bufferPool, wireProtocol, streamingHandler);
+        }
+
+        @Override
+        protected void send(ByteBuffer... data) {
+            int length = 0;
+            for (ByteBuffer buffer : data) {
+                length += buffer.remaining();
+            }
+            ByteBuffer part = bufferPool.acquire(length);
+            for (ByteBuffer buffer : data) {
+                part.put(buffer);
+            }
+            addResponse(Response.part(part.flip(), System.nanoTime(), false));
+        }
+
+        @Override
+        protected void onResponseComplete(long requestStartNs) {
+            addResponse(Response.part(bufferPool.acquire(0).flip(), requestStartNs, true));
+        }
+    }
+}
@@ -1,120 +1,454 @@
 package Lab1Sockets.http.nonblocking;
 
 import Lab1Sockets.http.Client;
+import Lab1Sockets.http.protocol.WireProtocol;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
-
-import static java.nio.channels.SelectionKey.OP_READ;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
+ * Multiplexing client: a few selector loops drive any number of persistent LENGTH_PREFIXED connections, so
+ * thousands of concurrent connections don't need thousands of threads.
+ * <p>
+ * The selector loops run once start() is called, after the client is configured (e.g. with
+ * enableCompression()) and before anything is sent. Started with startSendingWithStatisticsCollecting(),
+ * every connection sends requestsPerConnection requests
+ * one after another, each as soon as the response to the previous one arrived, and the loops record the
+ * statistics the way the sending threads of other clients do. sendDataAndGetResponse() works too, from any
+ * thread: the request is handed to a loop, sent on an idle connection (or a new one) and the calling thread
+ * waits for the response.
+ *
  * Created by teocci.
  *
  * @author teocci@yandex.com on 2018-Apr-24
  */
-public class NonBlockingWRClient extends Client implements Runnable
+public class NonBlockingWRClient extends Client
 {
     private final static String HOSTNAME = "127.0.0.1";
 
+    /**
+     * Connects in progress per loop. Starting thousands at once would only overflow the server's accept backlog
+     * and leave the connects to SYN retransmission timeouts.
+     */
+    private static final int MAX_PENDING_CONNECTS = 64;
+
+    private final int numberOfConnections;
+    private final int requestsPerConnection;
+    private final List<SelectorLoop> loops = new ArrayList<>();
+    private final AtomicInteger nextLoopIndex = new AtomicInteger(0);
+    private final CountDownLatch finishLatch;
+    private volatile boolean started = false;
+
+    /**
+     * One loop with numberOfSendingThreads connections, which together send as many requests as the other
+     * clients do with that many threads.
+     */
     public NonBlockingWRClient(int port, int numberOfSendingThreads, ResponseProvider responseProvider) {
-        super(port, numberOfSendingThreads, responseProvider);
+        this(port, 1, numberOfSendingThreads, Math.max(1, NUMBER_OF_REQUESTS / numberOfSendingThreads), responseProvider);
+    }
+
+    public NonBlockingWRClient(int port, int numberOfSelectorThreads, int numberOfConnections, int requestsPerConnection,
+                               ResponseProvider responseProvider) {
+        super(port, 0, responseProvider);
+        if (numberOfSelectorThreads < 1) {
+            throw new IllegalArgumentException("Number of selector threads must be positive: " + numberOfSelectorThreads);
+        }
+        this.numberOfConnections = numberOfConnections;
+        this.requestsPerConnection = requestsPerConnection;
+        this.finishLatch = new CountDownLatch(numberOfSelectorThreads);
+        for (int i = 0; i < numberOfSelectorThreads; i++) {
+            loops.add(new SelectorLoop(i));
+        }
+    }
+
+    /**
+     * Starts the selector loops. The constructor doesn't, so that the loop threads never see a client that
+     * isn't fully constructed or configured.
+     */
+    public void start() {
+        loops.forEach(SelectorLoop::start);
+        started = true;
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("The client's selector loops are not started, call start() first");
+        }
+    }
+
+    @Override
+    public WireProtocol getWireProtocol() {
+        return WireProtocol.LENGTH_PREFIXED;
     }
 
     @Override
     public int sendDataAndGetResponse(byte[] data) {
-        return 0;
+        checkStarted();
+        CompletableFuture<byte[]> responseFuture = new CompletableFuture<>();
+        nextLoop().submit(new PendingRequest(data, responseFuture::complete));
+        try {
+            byte[] response = responseFuture.get();
+            return response != null && responseProvider.checkResponseCorectness(data, response) ? data.length : 0;
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Not accepted");
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private SelectorLoop nextLoop() {
+        return loops.get(Math.floorMod(nextLoopIndex.getAndIncrement(), loops.size()));
     }
 
     @Override
-    public void run() {
-        try (SocketChannel channel = SocketChannel.open();
-             Selector selector = Selector.open()) {
-            channel.configureBlocking(false);
+    protected void startSending() {
+        checkStarted();
+        for (int i = 0; i < loops.size(); i++) {
+            // the first loops take one more connection when they can't be shared equally
+            int connections = numberOfConnections / loops.size() + (i < numberOfConnections % loops.size() ? 1 : 0);
+            loops.get(i).startUsers(connections);
+        }
+    }
+
+    @Override
+    public void waitForWorkFinish() {
+        try {
+            finishLatch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        closeConnections();
+    }
+
+    @Override
+    public void closeConnections() {
+        loops.forEach(SelectorLoop::stop);
+    }
+
+    private record PendingRequest(byte[] data, Consumer<byte[]> onResponse) {
+    }
+
+    /**
+     * One selector thread with the connections it owns. Requests come in through submittedRequests from any
+     * thread, wait in waitingRequests for a connection, and everything else happens on the loop's thread.
+     */
+    private class SelectorLoop {
+
+        private final Thread thread;
+        private final Selector selector;
+        private volatile boolean running = true;
 
-            channel.register(selector, SelectionKey.OP_CONNECT);
-            channel.connect(new InetSocketAddress(HOSTNAME, port));
+        private final Queue<PendingRequest> submittedRequests = new ConcurrentLinkedQueue<>();
+        private final Queue<PendingRequest> waitingRequests = new ArrayDeque<>();
+        private final Queue<ClientConnection> idleConnections = new ArrayDeque<>();
+        private final Set<ClientConnection> connections = new HashSet<>();
+        private int pendingConnects = 0;
 
-            selector.select(1000);
+        private final RequestStatistics statistics = new RequestStatistics();
+        private int activeUsers = 0;
 
-            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        SelectorLoop(int index) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't open the selector of loop " + index, e);
+            }
+            this.thread = new Thread(this::runSelectorLoop, "client-selector-" + index);
+            this.thread.setDaemon(true);
+        }
 
-            while (keys.hasNext()) {
-                SelectionKey key = keys.next();
-                keys.remove();
+        void start() {
+            thread.start();
+        }
 
-                if (!key.isValid()) continue;
+        void stop() {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-                if (key.isConnectable()) {
-                    connect(key);
+        void submit(PendingRequest request) {
+            if (!running) {
+                request.onResponse().accept(null);
+            } else if (Thread.currentThread() == thread) {
+                waitingRequests.add(request);
+            } else {
+                submittedRequests.add(request);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Starts the given number of closed-loop users, each with a connection of its own once the loop
+         * has opened enough of them.
+         */
+        void startUsers(int users) {
+            if (users == 0) {
+                mergeStatistics(statistics);
+                finishLatch.countDown();
+                return;
+            }
+            submit(new PendingRequest(null, ignore -> {
+                activeUsers = users;
+                for (int i = 0; i < users; i++) {
+                    sendNext(requestsPerConnection);
                 }
+            }));
+        }
 
-                if (key.isWritable()) {
-                    write(key);
+        private void sendNext(int remaining) {
+            byte[] data = responseProvider.getRequestData();
+            long submitTime = System.nanoTime();
+            submit(new PendingRequest(data, response -> {
+                long finishTime = System.nanoTime();
+                long latency = finishTime - submitTime;
+                int sent = response != null && responseProvider.checkResponseCorectness(data, response) ? data.length : 0;
+                statistics.record(sent, latency, latency, finishTime);
+                if (remaining > 1) {
+                    sendNext(remaining - 1);
+                } else if (--activeUsers == 0) {
+                    mergeStatistics(statistics);
+                    finishLatch.countDown();
                 }
+            }));
+        }
+
+        private void runSelectorLoop() {
+            try {
+                while (running) {
+                    selector.select();
+                    takeSubmittedRequests();
+                    dispatch();
 
-                if (key.isReadable()) {
-                    read(key);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ClientConnection connection = (ClientConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                connection.finishConnect();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException e) {
+                            connection.fail(e);
+                        }
+                    }
+                    dispatch();
                 }
+            } catch (ClosedSelectorException ignore) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (ClientConnection connection : new ArrayList<>(connections)) {
+                    connection.fail(null);
+                }
+                // failing a request of a closed-loop user makes it send the next one, until it has none left
+                PendingRequest request;
+                do {
+                    takeSubmittedRequests();
+                    while ((request = waitingRequests.poll()) != null) {
+                        request.onResponse().accept(null);
+                    }
+                } while (!submittedRequests.isEmpty());
+                try {
+                    selector.close();
+                } catch (IOException ignore) {}
             }
+        }
 
-        } catch (IOException ignored) {
-        } finally {
+        private void takeSubmittedRequests() {
+            PendingRequest request;
+            while ((request = submittedRequests.poll()) != null) {
+                if (request.data() == null) {
+                    // a task to be run on the loop's thread, see startUsers()
+                    request.onResponse().accept(null);
+                } else {
+                    waitingRequests.add(request);
+                }
+            }
+        }
 
+        /**
+         * Hands the waiting requests to idle connections, and opens new connections for the rest.
+         */
+        private void dispatch() {
+            while (!waitingRequests.isEmpty()) {
+                ClientConnection connection = idleConnections.poll();
+                if (connection != null) {
+                    connection.start(waitingRequests.poll());
+                } else if (pendingConnects < MAX_PENDING_CONNECTS) {
+                    openConnection(waitingRequests.poll());
+                } else {
+                    return;
+                }
+            }
         }
-    }
 
-//    private void close() {
-//        try {
-//            selector.close();
-//        } catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
-//    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ByteBuffer readBuffer = ByteBuffer.allocate(1000);
-        readBuffer.clear();
-        int length;
-        try {
-            length = channel.read(readBuffer);
-        } catch (IOException e) {
-            System.out.println("Reading problem, closing connection");
-            key.cancel();
-            channel.close();
-            return;
-        }
-        if (length == -1) {
-            System.out.println("Nothing was read from server");
-            channel.close();
-            key.cancel();
-            return;
-        }
-        readBuffer.flip();
-        byte[] buff = new byte[1024];
-        readBuffer.get(buff, 0, length);
-        System.out.println("Server said: " + new String(buff));
-    }
+        private void openConnection(PendingRequest request) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ClientConnection connection = new ClientConnection(channel);
+                connection.request = request;
+                connections.add(connection);
+                if (channel.connect(new InetSocketAddress(HOSTNAME, port))) {
+                    connection.key = channel.register(selector, 0, connection);
+                    connection.start(request);
+                } else {
+                    pendingConnects++;
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException e) {
+                System.out.println("Not accepted: " + e);
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) {}
+                }
+                request.onResponse().accept(null);
+            }
+        }
 
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        channel.write(ByteBuffer.wrap("message".getBytes()));
+        /**
+         * A persistent connection carrying one request at a time. The request goes out as a header and the
+         * caller's array in one gathering write, the response is read into a header buffer and then a buffer
+         * of exactly its length; both may take any number of selector rounds.
+         */
+        private class ClientConnection {
 
-        // Lets get ready to read.
-        key.interestOps(OP_READ);
-    }
+            private final SocketChannel channel;
+            private SelectionKey key;
+            private boolean connected = false;
 
-    private void connect(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        if (channel.isConnectionPending()) {
-            channel.finishConnect();
+            private PendingRequest request;
+            private final ByteBuffer requestHeader = ByteBuffer.allocate(Integer.BYTES);
+            private final ByteBuffer[] requestBuffers = new ByteBuffer[2];
+            private final ByteBuffer responseHeader = ByteBuffer.allocate(Integer.BYTES);
+            private ByteBuffer responseBody;
+
+            ClientConnection(SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            void finishConnect() throws IOException {
+                channel.finishConnect();
+                pendingConnects--;
+                connected = true;
+                start(request);
+            }
+
+            void start(PendingRequest request) {
+                this.request = request;
+                connected = true;
+                requestHeader.clear();
+                requestHeader.putInt(request.data().length).flip();
+                requestBuffers[0] = requestHeader;
+                requestBuffers[1] = ByteBuffer.wrap(request.data());
+                responseHeader.clear();
+                responseBody = null;
+                try {
+                    // most requests fit into the socket buffer, so we write right away instead of waiting for OP_WRITE
+                    write();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            void write() throws IOException {
+                channel.write(requestBuffers);
+                key.interestOps(requestBuffers[1].hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+
+            void read() throws IOException {
+                if (request == null) {
+                    // an idle connection is readable only when the server closed it
+                    fail(null);
+                    return;
+                }
+                if (responseBody == null) {
+                    if (channel.read(responseHeader) == -1) {
+                        throw new IOException("Connection closed before the response");
+                    }
+                    if (responseHeader.hasRemaining()) {
+                        return;
+                    }
+                    int length = responseHeader.getInt(0);
+                    if (length < 0) {
+                        throw new IOException("Negative response length: " + length);
+                    }
+                    responseBody = ByteBuffer.allocate(length);
+                }
+                while (responseBody.hasRemaining()) {
+                    int read = channel.read(responseBody);
+                    if (read == -1) {
+                        throw new IOException("Connection closed in the middle of the response");
+                    }
+                    if (read == 0) {
+                        return;
+                    }
+                }
+                PendingRequest finished = request;
+                byte[] response = responseBody.array();
+                request = null;
+                responseBody = null;
+                requestBuffers[1] = null;
+                idleConnections.add(this);
+                finished.onResponse().accept(response);
+            }
+
+            void fail(IOException e) {
+                if (e != null) {
+                    System.out.println("Not accepted: " + e);
+                }
+                if (!connected) {
+                    pendingConnects--;
+                }
+                connections.remove(this);
+                idleConnections.remove(this);
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException ignore) {}
+                PendingRequest failed = request;
+                request = null;
+                if (failed != null) {
+                    failed.onResponse().accept(null);
+                }
+            }
         }
-        channel.configureBlocking(false);
-//        channel.register(selector, OP_WRITE);
     }
-}
\ No newline at end of file
+}
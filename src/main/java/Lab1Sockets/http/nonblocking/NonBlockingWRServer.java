@@ -1,18 +1,41 @@
 package Lab1Sockets.http.nonblocking;
 
 import Lab1Sockets.http.Client;
+import Lab1Sockets.http.FileRegion;
 import Lab1Sockets.http.Server;
+import Lab1Sockets.http.events.ConnectionAcceptedEvent;
+import Lab1Sockets.http.events.HandlerEvent;
+import Lab1Sockets.http.events.RequestReadEvent;
+import Lab1Sockets.http.events.ResponseWriteEvent;
+import Lab1Sockets.http.metrics.StripedLatencyHistogram;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by teocci.
@@ -21,43 +44,427 @@ import java.util.Map;
  */
 public class NonBlockingWRServer extends Server
 {
-    private ServerSocketChannel serverChannel;
-    private Selector selector;
+    private List<ServerSocketChannel> serverChannels = List.of();
 
-    private ByteBuffer buffer = ByteBuffer.allocate(2100000);
     /**
-     * This HashMap is important. It keeps track of the data that will be written to the clients.
-     * This is needed because we read/write asynchronously and we might be reading while the server
-     * wants to write. In other words, we tell the Selector we are ready to write (SelectionKey.OP_WRITE)
-     * and when we get a key for writing, we then write from the HashMap. The write() method explains this further.
+     * With one listener, the working thread of this server only accepts connections. Every accepted channel is
+     * handed to one of the reactors, and from then on that reactor's selector loop owns it: reads, writes and
+     * closing all happen on the reactor thread, so reactors never share state with each other.
+     * <p>
+     * With more listeners (see setListeners()) there is no acceptor thread: every reactor gets at least one of
+     * the SO_REUSEPORT sockets registered for OP_ACCEPT in its own selector and serves what it accepts, so the
+     * kernel does the load balancing and accepted channels never cross threads.
      */
-    private Map<SocketChannel, byte[]> socketChannelToWriteData = new HashMap<>();
+    private final List<Reactor> reactors;
+    private int nextReactorIndex = 0;
+
+    public static final long DEFAULT_MAX_QUEUED_BYTES_PER_CONNECTION = 4L * 1024 * 1024;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 256L * 1024 * 1024;
+
+    public static final int TLS_SESSION_CACHE_SIZE = 10_000;
+    public static final int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+
+    // How often a reactor with throttled connections looks whether the other reactors freed enough of the global queue
+    private static final long THROTTLE_RECHECK_INTERVAL_MS = 10;
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    public static final long DEFAULT_READ_TIMEOUT_MS = 30_000;
+    public static final long DEFAULT_WRITE_TIMEOUT_MS = 30_000;
+
+    // The timing wheels of the reactors: 1024 ticks of 100 ms make a round of 102.4 s, longer than the default timeouts
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_SLOTS = 1024;
+
+    /**
+     * Timeouts: a connection is closed when it has been idle (nothing to read or write) for idleTimeoutNs, when
+     * a request has been arriving for readTimeoutNs, or when its client hasn't taken any of its responses for
+     * writeTimeoutNs (see Connection.updateDeadline()). Every reactor tracks the deadlines of its connections in
+     * a TimingWheel, advanced by its selector loop, which wakes up every tick while it has connections.
+     */
+    private long idleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MS);
+    private long readTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_READ_TIMEOUT_MS);
+    private long writeTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITE_TIMEOUT_MS);
+    private final LongAdder idleTimeouts = metrics.counter("idle_timeouts");
+    private final LongAdder readTimeouts = metrics.counter("read_timeouts");
+    private final LongAdder writeTimeouts = metrics.counter("write_timeouts");
+
+    /**
+     * Backpressure: a connection is not read from (and its already buffered requests are not answered) while its
+     * queued responses take maxQueuedBytesPerConnection or more, or while the responses of all connections
+     * together take maxQueuedBytes or more. A client that doesn't read its responses then fills its own socket
+     * buffers and is stopped by TCP flow control, instead of making the server buffer responses without a bound.
+     */
+    private final long maxQueuedBytesPerConnection;
+    private final long maxQueuedBytes;
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicInteger throttledConnections = new AtomicInteger(0);
+    private final AtomicLong throttleEvents = new AtomicLong(0);
+
+    private SSLContext sslContext;
+    private LongAdder tlsHandshakes;
+    private LongAdder tlsResumedSessions;
+    private StripedLatencyHistogram tlsHandshakeLatency;
 
     public NonBlockingWRServer(int port, Client client) {
+        this(port, client, 1);
+    }
+
+    public NonBlockingWRServer(int port, Client client, int numberOfReactors) {
+        this(port, client, numberOfReactors, DEFAULT_MAX_QUEUED_BYTES_PER_CONNECTION, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    public NonBlockingWRServer(int port, Client client, int numberOfReactors,
+                               long maxQueuedBytesPerConnection, long maxQueuedBytes) {
         super(port, client);
-        init();
-        this.workingThread = createWorkingThread();
+        if (numberOfReactors < 1) {
+            throw new IllegalArgumentException("Number of reactors must be positive: " + numberOfReactors);
+        }
+        if (maxQueuedBytesPerConnection < 1 || maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("Output queue limits must be positive: "
+                    + maxQueuedBytesPerConnection + ", " + maxQueuedBytes);
+        }
+        this.maxQueuedBytesPerConnection = maxQueuedBytesPerConnection;
+        this.maxQueuedBytes = maxQueuedBytes;
+        Reactor[] reactors = new Reactor[numberOfReactors];
+        for (int i = 0; i < numberOfReactors; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        this.reactors = List.of(reactors);
+
+        metrics.gauge("selector_keys", () -> this.reactors.stream().mapToLong(Reactor::getKeyCount).sum());
+        metrics.gauge("queued_response_bytes", queuedBytes::get);
+        metrics.gauge("throttled_connections", throttledConnections::get);
+        metrics.gauge("throttle_events", throttleEvents::get);
     }
 
-    private void init() {
-        try {
-            serverChannel = ServerSocketChannel.open();
-            serverChannel.configureBlocking(false);
-            serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", port));
+    public List<Reactor> getReactors() {
+        return Collections.unmodifiableList(reactors);
+    }
 
-            selector = Selector.open();
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Bytes of the responses that are queued on all connections and not yet fully written.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Number of connections that are not read from right now, because their output queue is full.
+     */
+    public int getThrottledConnections() {
+        return throttledConnections.get();
+    }
+
+    /**
+     * How many times a connection was throttled since the server was created.
+     */
+    public long getThrottleEvents() {
+        return throttleEvents.get();
+    }
+
+    /**
+     * Serves every connection over TLS, with engines from the context. Has to be called before start().
+     * <p>
+     * The handshake runs on the reactor threads like the rest of the I/O (see TlsChannel). Clients that come
+     * back resume their session instead of doing a full handshake: with TLS 1.3 the server sends them a session
+     * ticket, with TLS 1.2 it keeps the session in the context's cache, which enableTls() sizes with
+     * TLS_SESSION_CACHE_SIZE and TLS_SESSION_TIMEOUT_SECONDS. The metrics count the handshakes, how many of
+     * them resumed a session, and how long they took, from the accept to the client's Finished message.
+     */
+    public void enableTls(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        sslContext.getServerSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getServerSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        tlsHandshakes = metrics.counter("tls_handshakes");
+        tlsResumedSessions = metrics.counter("tls_resumed_sessions");
+        tlsHandshakeLatency = metrics.histogram("tls_handshake_ns");
+    }
+
+    private void recordHandshake(long durationNs, boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumedSessions.increment();
         }
+        tlsHandshakeLatency.record(durationNs);
     }
 
-    private Thread createWorkingThread() {
+    /**
+     * Sets the timeouts of the connections, see idleTimeoutNs. Has to be called before start().
+     */
+    public void setTimeouts(long idleTimeoutMs, long readTimeoutMs, long writeTimeoutMs) {
+        if (idleTimeoutMs < 1 || readTimeoutMs < 1 || writeTimeoutMs < 1) {
+            throw new IllegalArgumentException("Timeouts must be positive: "
+                    + idleTimeoutMs + ", " + readTimeoutMs + ", " + writeTimeoutMs);
+        }
+        this.idleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.readTimeoutNs = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        this.writeTimeoutNs = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+    }
+
+    /**
+     * Number of connections closed because one of their timeouts expired.
+     */
+    public long getTimedOutConnections() {
+        return idleTimeouts.sum() + readTimeouts.sum() + writeTimeouts.sum();
+    }
+
+    private boolean isOutputFull(Connection connection) {
+        return connection.getQueuedBytes() >= maxQueuedBytesPerConnection || queuedBytes.get() >= maxQueuedBytes;
+    }
+
+    private Thread createAcceptorThread(ServerSocketChannel serverChannel) {
         return new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    ConnectionAcceptedEvent acceptedEvent = new ConnectionAcceptedEvent();
+                    acceptedEvent.begin();
+                    SocketChannel socketChannel = serverChannel.accept();
+                    InetSocketAddress remoteAddress = (InetSocketAddress) socketChannel.getRemoteAddress();
+                    acceptedEvent.finish(remoteAddress.getPort());
+                    configureAccepted(socketChannel);
+                    if (!admitAccepted(socketChannel, remoteAddress)) {
+                        continue;
+                    }
+                    chooseReactor().register(socketChannel);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Turns the channel away right after accept() if the admission controller doesn't admit it. A rejected
+     * connection counts as accepted, as in BlockingServer, but never gets a reactor or a Connection. An admitted
+     * one stays pending for the controller until its first response is written, or until it is closed (see
+     * Connection.takeAdmission()).
+     */
+    private boolean admitAccepted(SocketChannel socketChannel, InetSocketAddress remoteAddress) {
+        if (admit(remoteAddress.getAddress())) {
+            return true;
+        }
+        acceptedConnections.increment();
+        rejectConnection(socketChannel);
+        return false;
+    }
+
+    private static void configureAccepted(SocketChannel socketChannel) throws IOException {
+        socketChannel.configureBlocking(false);
+        // Pipelined responses are small writes that follow each other, Nagle's algorithm would delay them
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Picks the reactor with the fewest open connections. The scan starts from a rotating index, so when the
+     * reactors are equally loaded (which is the common case) this degrades to plain round-robin.
+     */
+    private Reactor chooseReactor() {
+        int size = reactors.size();
+        Reactor chosen = reactors.get(nextReactorIndex);
+        for (int i = 1; i < size; i++) {
+            Reactor candidate = reactors.get((nextReactorIndex + i) % size);
+            if (candidate.openConnections.get() < chosen.openConnections.get()) {
+                chosen = candidate;
+            }
+        }
+        nextReactorIndex = (nextReactorIndex + 1) % size;
+        return chosen;
+    }
+
+    /**
+     * With more than one listener, every reactor gets at least one, so there are max(listeners, reactors)
+     * listening sockets.
+     */
+    @Override
+    public void start() {
+        int listeners = getListeners() == 1 ? 1 : Math.max(getListeners(), reactors.size());
+        try {
+            serverChannels = openListeners(InetAddress.getByName("127.0.0.1"), listeners);
+            if (listeners == 1) {
+                this.workingThread = createAcceptorThread(serverChannels.get(0));
+            } else {
+                for (int i = 0; i < listeners; i++) {
+                    reactors.get(i % reactors.size()).listen(serverChannels.get(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        reactors.forEach(Reactor::start);
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        closeListeners(serverChannels);
+        reactors.forEach(Reactor::stop);
+    }
+
+    /**
+     * One selector loop together with the connections it owns. The counters are updated only by the reactor
+     * thread, but are atomic so that they can be read from outside while the server is running.
+     */
+    public class Reactor {
+
+        private final int index;
+        private final Thread thread;
+        private final Selector selector;
+
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Connections that are throttled. Those whose own queue is full get going again when write() drains it,
+         * but those stopped only by the global limit may have nothing to write, so the loop looks at them again
+         * every THROTTLE_RECHECK_INTERVAL_MS.
+         */
+        private final Set<SelectionKey> throttledKeys = new HashSet<>();
+
+        /**
+         * TLS connections whose TlsChannel holds input that the selector won't signal, because it was already
+         * read from the socket (see TlsChannel.hasBufferedInput()). The loop reads them without waiting.
+         */
+        private final Set<SelectionKey> bufferedInputKeys = new HashSet<>();
+
+        private final TimingWheel<SelectionKey> timers =
+                new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(TIMER_TICK_MS), TIMER_SLOTS, System.nanoTime());
+
+        public final AtomicLong receivedBytes = new AtomicLong(0);
+        public final AtomicLong sentBytes = new AtomicLong(0);
+        public final AtomicLong acceptedConnections = new AtomicLong(0);
+        public final AtomicInteger openConnections = new AtomicInteger(0);
+
+        private Reactor(int index) {
+            this.index = index;
             try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                // a reactor without a selector would fail on its first connection, better not to start at all
+                throw new UncheckedIOException("Can't open the selector of reactor " + index, e);
+            }
+            this.thread = new Thread(this::runSelectorLoop, "reactor-" + index);
+        }
 
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Number of keys registered with the reactor's selector. The key set is not thread-safe, but its size
+         * is good enough for a gauge.
+         */
+        public int getKeyCount() {
+            try {
+                return selector.keys().size();
+            } catch (ClosedSelectorException e) {
+                return 0;
+            }
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            thread.interrupt();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Called from the acceptor thread. The channel can't be registered here directly, because
+         * register() blocks while the reactor thread sits in select(), so we queue it and wake the selector up.
+         */
+        private void register(SocketChannel socketChannel) {
+            countAccepted();
+            pendingChannels.add(socketChannel);
+            selector.wakeup();
+        }
+
+        private Connection newConnection(SocketChannel socketChannel) {
+            TlsChannel tls = sslContext == null ? null : new TlsChannel(socketChannel, sslContext.createSSLEngine(),
+                    bufferPool, NonBlockingWRServer.this::recordHandshake);
+            return new Connection(bufferPool, wireProtocol, getMaxRequestSize(), newPayloadCompression(),
+                    streamingHandler, tls);
+        }
+
+        private void countAccepted() {
+            openConnections.incrementAndGet();
+            acceptedConnections.incrementAndGet();
+            NonBlockingWRServer.this.acceptedConnections.increment();
+            NonBlockingWRServer.this.openConnections.incrementAndGet();
+        }
+
+        /**
+         * Called from start(), before the reactor thread runs.
+         */
+        private void listen(ServerSocketChannel serverChannel) throws IOException {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Accepts everything that waits on one of this reactor's listening sockets. The channels are served by
+         * this reactor, so they are registered right away, without going through pendingChannels. A failed
+         * accept (e.g. out of file descriptors) is only printed: the reactor's other connections go on.
+         */
+        private void accept(SelectionKey key) throws ClosedChannelException {
+            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+            while (true) {
+                ConnectionAcceptedEvent acceptedEvent = new ConnectionAcceptedEvent();
+                acceptedEvent.begin();
+                SocketChannel socketChannel;
+                InetSocketAddress remoteAddress;
+                try {
+                    socketChannel = serverChannel.accept();
+                    if (socketChannel == null) {
+                        return;
+                    }
+                    remoteAddress = (InetSocketAddress) socketChannel.getRemoteAddress();
+                    acceptedEvent.finish(remoteAddress.getPort());
+                    configureAccepted(socketChannel);
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                if (!admitAccepted(socketChannel, remoteAddress)) {
+                    continue;
+                }
+                countAccepted();
+                registerConnection(socketChannel);
+            }
+        }
+
+        private void registerPendingChannels() throws IOException {
+            SocketChannel socketChannel;
+            while ((socketChannel = pendingChannels.poll()) != null) {
+                registerConnection(socketChannel);
+            }
+        }
+
+        private void registerConnection(SocketChannel socketChannel) throws ClosedChannelException {
+            Connection connection = newConnection(socketChannel);
+            SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            connection.setTimer(new TimingWheel.Timer<>(key));
+            updateDeadline(key, connection);
+        }
+
+        private void runSelectorLoop() {
+            try {
                 while (!Thread.currentThread().isInterrupted()) {
-                    selector.select();
+                    if (bufferedInputKeys.isEmpty()) {
+                        selector.select(selectTimeoutMs());
+                    } else {
+                        selector.selectNow();
+                    }
+                    registerPendingChannels();
 
                     Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -70,102 +477,315 @@ public class NonBlockingWRServer extends Server
                             continue;
                         }
 
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        }
+                        try {
+                            if (key.isAcceptable()) {
+                                accept(key);
+                                continue;
+                            }
 
-                        if (key.isWritable()) {
-                            write(key);
-                        }
+                            if (key.isWritable()) {
+                                write(key);
+                            }
 
-                        if (key.isReadable()) {
-                            read(key);
+                            if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            }
+                        } catch (CancelledKeyException ignore) {
+                            // the selector was closed by stop() while we were handling the key
                         }
                     }
+                    resumeThrottledConnections();
+                    readBufferedInput();
+                    expireTimers();
                 }
+            } catch (ClosedChannelException | ClosedSelectorException ignore) {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        });
-    }
+        }
 
-    @Override
-    public void stop() {
-        super.stop();
-        if (selector != null) {
-            try {
-                selector.close();
-                serverChannel.socket().close();
-                serverChannel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        /**
+         * How long select() may wait: until the next tick of the timing wheel while there are connections,
+         * and no longer than the throttle recheck interval while some of them are throttled. 0 is for ever.
+         */
+        private long selectTimeoutMs() {
+            long timeoutMs = timers.size() > 0 ? TIMER_TICK_MS : 0;
+            if (!throttledKeys.isEmpty()) {
+                timeoutMs = timeoutMs == 0 ? THROTTLE_RECHECK_INTERVAL_MS : Math.min(timeoutMs, THROTTLE_RECHECK_INTERVAL_MS);
             }
+            return timeoutMs;
         }
-    }
 
-    /**
-     * Since we are accepting, we must instantiate a serverSocketChannel by calling key.channel().
-     * We use this in order to get a socketChannel (which is like a socket in I/O) by calling
-     * serverSocketChannel.accept() and we register that channel to the selector to listen
-     * to a WRITE OPERATION. I do this because my server sends a hello message to each
-     * client that connects to it. This doesn't mean that I will write right NOW. It means that I
-     * told the selector that I am ready to write and that next time Selector.select() gets called
-     * it should give me a key with isWritable(). More on this in the write() method.
-     */
-    private void accept(SelectionKey key) throws IOException {
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-
-        socketChannel.register(selector, SelectionKey.OP_READ);
-    }
+        /**
+         * Moves the connection's timer to its current deadline. Only an earlier deadline moves it right away: a
+         * later one, which is what most reads and writes make, is noticed when the timer fires (see
+         * expireTimers()), so the timer isn't unlinked and linked again on every read of a big request.
+         */
+        private void updateDeadline(SelectionKey key, Connection connection) {
+            long deadlineNs = connection.updateDeadline(System.nanoTime(), idleTimeoutNs, readTimeoutNs, writeTimeoutNs);
+            TimingWheel.Timer<SelectionKey> timer = connection.getTimer();
+            if (!timer.isScheduled() || deadlineNs < timer.deadlineNs()) {
+                timers.schedule(timer, deadlineNs);
+            }
+        }
 
-    /**
-     * We read data from the channel. In this case, my server works as an echo, so it calls the echo() method.
-     * The echo() method, sets the server in the WRITE OPERATION. When the while loop in run() happens again,
-     * one of those keys from Selector.select() will be key.isWritable() and this is where the actual
-     * write will happen by calling the write() method.
-     */
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        buffer.clear();
+        /**
+         * Closes the connections whose deadline passed, and schedules the timers of those whose deadline moved
+         * on since their timer was scheduled again.
+         */
+        private void expireTimers() throws IOException {
+            long nowNs = System.nanoTime();
+            for (TimingWheel.Timer<SelectionKey> timer : timers.advance(nowNs)) {
+                SelectionKey key = timer.owner();
+                if (!key.isValid()) {
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (nowNs < connection.getDeadlineNs()) {
+                    timers.schedule(timer, connection.getDeadlineNs());
+                    continue;
+                }
+                switch (connection.getTimeout()) {
+                    case IDLE -> idleTimeouts.increment();
+                    case READ -> readTimeouts.increment();
+                    case WRITE -> writeTimeouts.increment();
+                }
+                close(key);
+            }
+        }
 
-        int read;
-        try {
-            read = channel.read(buffer);
-        } catch (IOException e) {
+        private void close(SelectionKey key) throws IOException {
             key.cancel();
-            channel.close();
-            return;
+            Connection connection = (Connection) key.attachment();
+            timers.cancel(connection.getTimer());
+            if (connection.getTls() != null) {
+                connection.getTls().close();
+            } else {
+                key.channel().close();
+            }
+            bufferedInputKeys.remove(key);
+            setThrottled(key, connection, false);
+            queuedBytes.addAndGet(-connection.release());
+            if (connection.takeAdmission()) {
+                dropAdmission();
+            }
+            openConnections.decrementAndGet();
+            NonBlockingWRServer.this.openConnections.decrementAndGet();
         }
 
-        if (read == -1) {
-            channel.close();
-            key.cancel();
-            return;
+        private void resumeThrottledConnections() throws IOException {
+            if (throttledKeys.isEmpty() || queuedBytes.get() >= maxQueuedBytes) {
+                return;
+            }
+            for (SelectionKey key : new ArrayList<>(throttledKeys)) {
+                if (key.isValid()) {
+                    respond(key, (Connection) key.attachment());
+                }
+            }
         }
 
-        buffer.flip();
-        byte[] data = new byte[read];
-        buffer.get(data, 0, read);
+        private void readBufferedInput() throws IOException {
+            if (bufferedInputKeys.isEmpty()) {
+                return;
+            }
+            List<SelectionKey> keys = new ArrayList<>(bufferedInputKeys);
+            bufferedInputKeys.clear();
+            for (SelectionKey key : keys) {
+                if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                    read(key);
+                }
+            }
+        }
 
-        socketChannelToWriteData.put(channel, responseGeneratorFunction.apply(data));
-        key.interestOps(SelectionKey.OP_WRITE);
-    }
+        /**
+         * We read whatever the channel has for us straight into the connection's request buffer, and then
+         * respond to every whole request that is buffered (see RequestBuffer.nextRequest()). The responses are
+         * queued on the connection and the key gets the WRITE OPERATION, so that the write() method can send
+         * them when the socket is ready. We keep reading meanwhile, so a pipelining client is never stalled,
+         * unless its output queue is full (see maxQueuedBytesPerConnection).
+         */
+        private void read(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            ReadableByteChannel channel = connection.getTls() != null ? connection.getTls() : (SocketChannel) key.channel();
 
-    /**
-     * We registered this channel in the Selector. This means that the SocketChannel we are receiving
-     * back from the key.channel() is the same channel that was used to register the selector in the accept()
-     * method. Again, I am just explaining as if things are synchronous to make things easy to understand.
-     * This means that later, we might register to write from the read() method (for example).
-     */
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
+            RequestReadEvent readEvent = new RequestReadEvent();
+            readEvent.begin();
+            long total = 0;
+            int read;
+            do {
+                try {
+                    read = channel.read(connection.requestBuffer());
+                } catch (IllegalStateException | IOException e) {
+                    close(key);
+                    return;
+                }
+                if (read > 0) {
+                    total += read;
+                    receivedBytes.addAndGet(read);
+                    NonBlockingWRServer.this.receivedBytes.add(read);
+                }
+            } while (read > 0);
+            readEvent.finish(total);
 
-        byte[] data = socketChannelToWriteData.remove(channel);
+            if (read == -1) {
+                connection.setEndOfStream();
+            }
+            respond(key, connection);
+        }
 
-        channel.write(ByteBuffer.wrap(data));
+        /**
+         * Answers the buffered requests until there are no more whole ones or the output queue is full. The
+         * requests left in the buffer are answered when the queue drains, the client may well be waiting for
+         * their responses without sending anything more.
+         */
+        private void respond(SelectionKey key, Connection connection) throws IOException {
+            if (connection.isStreaming()) {
+                respondStreaming(key, connection);
+                return;
+            }
+            try {
+                byte[] data;
+                while (!isOutputFull(connection) && (data = connection.nextRequest()) != null) {
+                    HandlerEvent handlerEvent = new HandlerEvent();
+                    handlerEvent.begin();
+                    long size;
+                    if (fileResponseFunction != null) {
+                        FileRegion region = fileResponseFunction.apply(data);
+                        handlerEvent.finish(data.length, region.count());
+                        size = connection.addResponse(region);
+                    } else {
+                        byte[] response = responseGeneratorFunction.apply(data);
+                        handlerEvent.finish(data.length, response.length);
+                        size = connection.addResponse(response);
+                    }
+                    queuedBytes.addAndGet(size);
+                }
+            } catch (IllegalStateException e) {
+                // the client doesn't speak our protocol, there is no point in answering it
+                close(key);
+                return;
+            }
+            updateInterest(key, connection);
+        }
 
-        key.interestOps(SelectionKey.OP_READ);
+        /**
+         * With a streaming handler there are no whole requests to count: the handler gets whatever was read, and
+         * its output counts against the limits as it is queued. Handing over what was read waits while the
+         * output queue is full, like answering buffered requests does.
+         */
+        private void respondStreaming(SelectionKey key, Connection connection) throws IOException {
+            if (!isOutputFull(connection)) {
+                try {
+                    queuedBytes.addAndGet(connection.decode());
+                } catch (IllegalStateException | IOException e) {
+                    // a client that doesn't speak our protocol, or a handler that failed: nobody is going to
+                    // make sense of what follows on this connection
+                    close(key);
+                    return;
+                }
+            }
+            updateInterest(key, connection);
+        }
+
+        /**
+         * The socket may accept only a part of a response, so we write as much as it takes and stay
+         * interested in OP_WRITE until the whole queue is drained. File region bodies go out with
+         * transferTo(), straight from the page cache. Over TLS, a response counts as written once the TLS layer
+         * took all of it, and the sent bytes are the plaintext ones.
+         */
+        private void write(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            TlsChannel tls = connection.getTls();
+            GatheringByteChannel channel = tls != null ? tls : (SocketChannel) key.channel();
+
+            ResponseWriteEvent writeEvent = new ResponseWriteEvent();
+            writeEvent.begin();
+            if (tls != null) {
+                // what is left of the previous response, or of the handshake, goes first
+                try {
+                    tls.flushPendingOutput();
+                } catch (IOException e) {
+                    close(key);
+                    return;
+                }
+            }
+            long total = 0;
+            Response response;
+            while ((response = connection.currentResponse()) != null) {
+                long written;
+                try {
+                    written = response.writeTo(channel);
+                } catch (IOException e) {
+                    close(key);
+                    return;
+                }
+                total += written;
+                sentBytes.addAndGet(written);
+                NonBlockingWRServer.this.sentBytes.add(written);
+
+                if (!response.isWritten()) {
+                    break;
+                }
+                if (response.endsResponse()) {
+                    recordRequest(response.getCreatedNs());
+                    if (connection.takeAdmission()) {
+                        // a reactor reads a connection as soon as it is registered, so there is no queue to
+                        // have waited in: the time to the first response is the latency just recorded
+                        recordAdmissionWait(0);
+                    }
+                }
+                queuedBytes.addAndGet(-connection.finishResponse());
+            }
+            writeEvent.finish(total);
+            if (total > 0) {
+                connection.recordWriteProgress(System.nanoTime());
+            }
+            // the freed space may be just what the requests that are still buffered were waiting for
+            respond(key, connection);
+        }
+
+        /**
+         * We read as long as the client may send something and write as long as there is something to write.
+         * When neither is the case the connection is done: for CLOSE_DELIMITED that is right after the response,
+         * and closing is how the client knows the response is over. A connection with a full output queue is
+         * not read from until the queue drains.
+         */
+        private void updateInterest(SelectionKey key, Connection connection) throws IOException {
+            boolean throttled = isOutputFull(connection);
+            setThrottled(key, connection, throttled);
+
+            int interestOps = 0;
+            if (!connection.isEndOfStream() && !throttled) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            if (connection.hasPendingResponses()) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+            if (interestOps == 0 && !throttled) {
+                close(key);
+            } else {
+                key.interestOps(interestOps);
+                updateDeadline(key, connection);
+                if ((interestOps & SelectionKey.OP_READ) != 0 && connection.getTls() != null
+                        && connection.getTls().hasBufferedInput()) {
+                    bufferedInputKeys.add(key);
+                }
+            }
+        }
+
+        private void setThrottled(SelectionKey key, Connection connection, boolean throttled) {
+            if (connection.isThrottled() == throttled) {
+                return;
+            }
+            connection.setThrottled(throttled);
+            if (throttled) {
+                throttledKeys.add(key);
+                throttledConnections.incrementAndGet();
+                throttleEvents.incrementAndGet();
+            } else {
+                throttledKeys.remove(key);
+                throttledConnections.decrementAndGet();
+            }
+        }
     }
-}
\ No newline at end of file
+}
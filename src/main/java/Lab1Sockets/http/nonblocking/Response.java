@@ -0,0 +1,118 @@
+package Lab1Sockets.http.nonblocking;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.FileRegion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A queued response of a connection: buffers (the protocol's head and the body, or only the head when the body
+ * is a file region) followed by an optional file region, which is sent with transferTo(). The buffers go out
+ * with one gathering write, so the head never has to be copied in front of the body. Both parts may take
+ * several writes, so the response remembers how far it got.
+ */
+class Response {
+
+    private final ByteBuffer[] buffers;
+    private final FileRegion fileRegion;
+    private final long size;
+    private final long createdNs;
+    private final boolean endsResponse;
+    private long buffersRemaining;
+    private long filePosition;
+    private long fileRemaining;
+
+    Response(ByteBuffer[] buffers) {
+        this(buffers, null);
+    }
+
+    Response(ByteBuffer[] buffers, FileRegion fileRegion) {
+        this(buffers, fileRegion, System.nanoTime(), true);
+    }
+
+    /**
+     * A part of a streamed response (see Connection.QueueingSession). Only the last part ends the
+     * response, and it carries the time its request started instead of the time it was queued.
+     */
+    static Response part(ByteBuffer buffer, long createdNs, boolean endsResponse) {
+        return new Response(new ByteBuffer[]{buffer}, null, createdNs, endsResponse);
+    }
+
+    private Response(ByteBuffer[] buffers, FileRegion fileRegion, long createdNs, boolean endsResponse) {
+        this.createdNs = createdNs;
+        this.endsResponse = endsResponse;
+        this.buffers = buffers;
+        // any of the buffers may be empty, e.g. the body of a response without one, so the response counts
+        // what is left in all of them instead of looking at the last one
+        this.buffersRemaining = BufferPool.remaining(buffers);
+        this.fileRegion = fileRegion;
+        if (fileRegion != null) {
+            this.filePosition = fileRegion.position();
+            this.fileRemaining = fileRegion.count();
+        }
+        this.size = buffersRemaining + fileRemaining;
+    }
+
+    /**
+     * Number of bytes the whole response takes on the wire.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes as much as the socket takes now and returns the number of bytes written. The channel is the socket,
+     * or a TlsChannel on top of it, which transferTo() feeds through a buffer instead of from the page cache.
+     * Throws EOFException if the file is shorter than its region, e.g. because it was truncated after the
+     * response was queued: the response can't be finished, and the client would wait for the rest forever.
+     */
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        long written = 0;
+        if (buffersRemaining > 0) {
+            written += channel.write(buffers);
+            buffersRemaining -= written;
+            if (buffersRemaining > 0) {
+                return written;
+            }
+        }
+        while (fileRemaining > 0) {
+            long transferred = fileRegion.fileChannel().transferTo(filePosition, fileRemaining, channel);
+            if (transferred <= 0) {
+                // transferTo() says "socket full" and "end of file" both with 0, and only the second won't pass
+                if (filePosition >= fileRegion.fileChannel().size()) {
+                    throw new EOFException("File ends " + fileRemaining + " bytes before the end of its region");
+                }
+                break;
+            }
+            filePosition += transferred;
+            fileRemaining -= transferred;
+            written += transferred;
+        }
+        return written;
+    }
+
+    /**
+     * When the response was queued, which is right after its request was read.
+     */
+    long getCreatedNs() {
+        return createdNs;
+    }
+
+    /**
+     * False for the parts of a streamed response but the last one.
+     */
+    boolean endsResponse() {
+        return endsResponse;
+    }
+
+    boolean isWritten() {
+        return buffersRemaining == 0 && fileRemaining == 0;
+    }
+
+    void release(BufferPool bufferPool) {
+        bufferPool.releaseAll(buffers);
+    }
+}
@@ -0,0 +1,145 @@
+package Lab1Sockets.http.nonblocking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: a ring of slots, one per tick, every slot holding a doubly-linked list of the timers
+ * that expire at one of its ticks. Scheduling links a timer into the slot of its deadline and cancelling
+ * unlinks it, both in constant time. advance() only looks at the slots of the ticks that passed, so its cost
+ * depends on the timers that expire (or are a whole round of the ring early) and not on how many are scheduled.
+ * <p>
+ * A deadline further away than a round of the ring goes into its slot with the number of rounds to skip.
+ * Timers fire at the first tick at or after their deadline, so up to a tick late.
+ * <p>
+ * Not thread-safe: every reactor has a wheel of its own, used only by its thread.
+ */
+class TimingWheel<T> {
+
+    static final class Timer<T> {
+        private final T owner;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private int slot = -1;
+        private long rounds;
+        private long deadlineNs;
+
+        Timer(T owner) {
+            this.owner = owner;
+        }
+
+        T owner() {
+            return owner;
+        }
+
+        boolean isScheduled() {
+            return slot != -1;
+        }
+
+        /**
+         * The deadline the timer was last scheduled for.
+         */
+        long deadlineNs() {
+            return deadlineNs;
+        }
+    }
+
+    private final long tickNs;
+    private final long startNs;
+    // the heads of the slots' lists
+    private final Timer<T>[] slots;
+    private final List<Timer<T>> expired = new ArrayList<>();
+    private long currentTick = 0;
+    private int size = 0;
+
+    TimingWheel(long tickNs, int slotCount, long nowNs) {
+        if (tickNs < 1 || slotCount < 1) {
+            throw new IllegalArgumentException("Tick and number of slots must be positive: " + tickNs + ", " + slotCount);
+        }
+        this.tickNs = tickNs;
+        this.startNs = nowNs;
+        // there are no generic arrays, and the slots only ever hold timers of this wheel
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Timer<T>[] slots = new Timer[slotCount];
+        this.slots = slots;
+    }
+
+    long getTickNs() {
+        return tickNs;
+    }
+
+    /**
+     * Number of timers that are scheduled.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the timer to fire at deadlineNs (a System.nanoTime() value), moving it if it was scheduled already.
+     */
+    void schedule(Timer<T> timer, long deadlineNs) {
+        cancel(timer);
+        timer.deadlineNs = deadlineNs;
+        long deadlineTick = Math.max(currentTick + 1, Math.ceilDiv(deadlineNs - startNs, tickNs));
+        long ticks = deadlineTick - currentTick;
+        timer.slot = (int) (deadlineTick % slots.length);
+        timer.rounds = (ticks - 1) / slots.length;
+        timer.previous = null;
+        timer.next = slots[timer.slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[timer.slot] = timer;
+        size++;
+    }
+
+    void cancel(Timer<T> timer) {
+        if (!timer.isScheduled()) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * Processes the ticks up to nowNs and returns the timers that expired, which are not scheduled any more.
+     * The list is reused by the next call, the caller may schedule and cancel timers while it goes through it.
+     */
+    List<Timer<T>> advance(long nowNs) {
+        expired.clear();
+        long targetTick = (nowNs - startNs) / tickNs;
+        while (currentTick < targetTick) {
+            currentTick++;
+            collectExpired((int) (currentTick % slots.length));
+            // after a long pause there may be more ticks to catch up with than slots, but not more work
+            if (size == 0) {
+                currentTick = targetTick;
+            }
+        }
+        return expired;
+    }
+
+    private void collectExpired(int slot) {
+        Timer<T> timer = slots[slot];
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            if (timer.rounds == 0) {
+                cancel(timer);
+                expired.add(timer);
+            } else {
+                timer.rounds--;
+            }
+            timer = next;
+        }
+    }
+}
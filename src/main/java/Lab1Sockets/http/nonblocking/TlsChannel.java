@@ -0,0 +1,419 @@
+package Lab1Sockets.http.nonblocking;
+
+import Lab1Sockets.http.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS on top of a non-blocking SocketChannel, driven by an SSLEngine: read() returns decrypted bytes and write()
+ * takes plaintext, both without ever blocking, so the reactor uses it in place of the socket.
+ * <p>
+ * The handshake goes on inside read() and write(), as far as the bytes that are there let it, so the reactor
+ * doesn't have to know about it. The engine's delegated tasks (certificate and key work) run right there on the
+ * reactor thread, they take well under a millisecond with an EC key.
+ * <p>
+ * Encrypted bytes that were read but don't make up a whole record yet, decrypted bytes that didn't fit into the
+ * caller's buffer, and encrypted bytes the socket didn't take yet are kept in buffers leased from the pool, and
+ * every buffer is given back as soon as it is empty, so an idle connection holds none. A read whose buffer has
+ * room for a whole record is decrypted straight into it.
+ * <p>
+ * Two things the reactor has to look at that a plain socket doesn't have: hasPendingOutput() (encrypted bytes
+ * waiting for the socket, the last response isn't sent before they are) and hasBufferedInput() (decrypted bytes
+ * that the selector won't signal, because they are not in the socket any more).
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    /**
+     * Room for a few records per socket read and write, so a 2 MB message doesn't take a system call per 16 KB.
+     */
+    private static final int NETWORK_BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    interface HandshakeListener {
+        /**
+         * Called once the first handshake is over, with how long it took from the channel's creation, and
+         * whether the client resumed an earlier session instead of doing a full handshake.
+         */
+        void onHandshakeFinished(long durationNs, boolean resumed);
+    }
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool bufferPool;
+    private final HandshakeListener handshakeListener;
+    private final long createdNs = System.nanoTime();
+    private final long createdMillis = System.currentTimeMillis();
+
+    // null while empty; networkInput and applicationInput in write mode, networkOutput in read mode between calls
+    private ByteBuffer networkInput;
+    private ByteBuffer applicationInput;
+    private ByteBuffer networkOutput;
+
+    private boolean handshakeStarted = false;
+    private boolean handshaking = true;
+    private boolean handshakeReported = false;
+    private boolean inboundDone = false;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool bufferPool, HandshakeListener handshakeListener) {
+        this.channel = channel;
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+        this.handshakeListener = handshakeListener;
+        engine.setUseClientMode(false);
+    }
+
+    /**
+     * Returns the number of decrypted bytes put into dst, 0 if there are none without waiting (also while the
+     * handshake is going on), or -1 once the client closed its side, with a close_notify or without.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (handshaking && !handshake()) {
+            return inboundDone ? -1 : 0;
+        }
+        if (applicationInput != null) {
+            return drainApplicationInput(dst);
+        }
+        if (inboundDone) {
+            return -1;
+        }
+        while (true) {
+            if (networkInput != null) {
+                ByteBuffer target = dst.remaining() >= engine.getSession().getApplicationBufferSize()
+                        ? dst : acquireApplicationInput();
+                SSLEngineResult result = unwrap(target);
+                switch (result.getStatus()) {
+                    case OK -> {
+                        if (needsHandshake(result.getHandshakeStatus())) {
+                            // a post-handshake message, e.g. a TLS 1.3 key update
+                            handshaking = true;
+                            handshake();
+                        }
+                        if (result.bytesProduced() > 0) {
+                            return target == dst ? result.bytesProduced() : drainApplicationInput(dst);
+                        }
+                        releaseApplicationInputIfEmpty();
+                        continue;
+                    }
+                    case CLOSED -> {
+                        inboundDone = true;
+                        releaseApplicationInputIfEmpty();
+                        return applicationInput != null ? drainApplicationInput(dst) : -1;
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        // the session's buffer size grew, which only the first records of TLS 1.2 may do
+                        applicationInput = bufferPool.grow(acquireApplicationInput(),
+                                engine.getSession().getApplicationBufferSize());
+                        continue;
+                    }
+                    case BUFFER_UNDERFLOW -> releaseApplicationInputIfEmpty();
+                }
+            }
+            int read = readNetwork();
+            if (read == -1) {
+                closeInbound();
+                return -1;
+            }
+            if (read == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypts as much of the sources as the socket takes now, and returns the number of plaintext bytes that
+     * were taken. Encrypted bytes that the socket doesn't take are kept and written first the next time (see
+     * flush()), and until they are, nothing more is taken.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush() || (handshaking && !handshake())) {
+            return 0;
+        }
+        long consumed = 0;
+        boolean stalled = false;
+        while (hasRemaining(srcs, offset, length) && !stalled) {
+            ByteBuffer output = bufferPool.acquire(NETWORK_BUFFER_SIZE);
+            int packetSize = engine.getSession().getPacketBufferSize();
+            while (output.remaining() >= packetSize && hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, output);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    bufferPool.release(output);
+                    throw new SSLException("TLS connection is closed for writing");
+                }
+                consumed += result.bytesConsumed();
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    // the engine wants something else first (e.g. to unwrap a renegotiation), which a read does
+                    stalled = true;
+                    break;
+                }
+            }
+            networkOutput = output.flip();
+            if (!flush()) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * Writes the encrypted bytes that the socket didn't take before, and goes on with the handshake if it was
+     * waiting for them. Returns true when nothing is left to write.
+     */
+    boolean flushPendingOutput() throws IOException {
+        if (!flush()) {
+            return false;
+        }
+        if (handshaking) {
+            handshake();
+        }
+        return networkOutput == null;
+    }
+
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    boolean hasPendingOutput() {
+        return networkOutput != null;
+    }
+
+    /**
+     * Whether read() has bytes to return without reading from the socket: decrypted ones, or whole records.
+     * A partial record doesn't count, it waits for the rest to arrive, which the selector does signal.
+     */
+    boolean hasBufferedInput() {
+        if (applicationInput != null) {
+            return true;
+        }
+        if (networkInput == null || inboundDone) {
+            return false;
+        }
+        // a record header is 5 bytes: type, version, and the length of the rest
+        return networkInput.position() >= 5 && networkInput.position() >= 5 + (networkInput.getShort(3) & 0xFFFF);
+    }
+
+    /**
+     * Sends a close_notify if the socket takes it right away (only a client that reads until the end of the
+     * stream, as with CLOSE_DELIMITED, waits for it), then closes the socket and gives the buffers back.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                ByteBuffer output = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+                engine.wrap(EMPTY, output);
+                networkOutput = output.flip();
+                flush();
+            }
+        } catch (IOException ignore) {
+            // the client is gone already
+        } finally {
+            bufferPool.release(networkInput);
+            bufferPool.release(applicationInput);
+            bufferPool.release(networkOutput);
+            networkInput = applicationInput = networkOutput = null;
+            channel.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Moves the handshake on as far as it goes without waiting for the socket. Returns true once it is over.
+     */
+    private boolean handshake() throws IOException {
+        if (!handshakeStarted) {
+            handshakeStarted = true;
+            engine.beginHandshake();
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                case NEED_WRAP -> {
+                    ByteBuffer output = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+                    SSLEngineResult result = engine.wrap(EMPTY, output);
+                    networkOutput = output.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        // an alert that ends the handshake, which the client gets if the socket takes it
+                        flush();
+                        throw new SSLException("TLS handshake failed");
+                    }
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    if (inboundDone) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    SSLEngineResult result = networkInput == null ? null : unwrap(acquireApplicationInput());
+                    releaseApplicationInputIfEmpty();
+                    if (result == null || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int read = readNetwork();
+                        if (read == -1) {
+                            closeInbound();
+                            return false;
+                        }
+                        if (read == 0) {
+                            return false;
+                        }
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        inboundDone = true;
+                        return false;
+                    } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        // decrypted bytes the caller hasn't taken yet, before a post-handshake message
+                        applicationInput = bufferPool.grow(acquireApplicationInput(),
+                                applicationInput.position() + engine.getSession().getApplicationBufferSize());
+                    }
+                }
+                case FINISHED, NOT_HANDSHAKING -> {
+                    handshaking = false;
+                    if (!handshakeReported) {
+                        handshakeReported = true;
+                        handshakeListener.onHandshakeFinished(System.nanoTime() - createdNs, isResumed(engine.getSession()));
+                    }
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * SSLSession doesn't tell whether it was resumed, but a resumed one keeps the creation time of the
+     * connection that made it (the JDK does so for TLS 1.3 tickets and TLS 1.2 session ids alike), while a full
+     * handshake creates its session after the connection was accepted. Only a session resumed within the same
+     * millisecond as it was made is counted as a full handshake.
+     */
+    private boolean isResumed(SSLSession session) {
+        return session.getCreationTime() < createdMillis;
+    }
+
+    private static boolean needsHandshake(SSLEngineResult.HandshakeStatus status) {
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Unwraps one record from networkInput into the target, and gives networkInput back if nothing is left in it.
+     */
+    private SSLEngineResult unwrap(ByteBuffer target) throws SSLException {
+        networkInput.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(networkInput, target);
+        } finally {
+            networkInput.compact();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                && networkInput.capacity() < engine.getSession().getPacketBufferSize()) {
+            networkInput = bufferPool.grow(networkInput, engine.getSession().getPacketBufferSize());
+        }
+        if (networkInput.position() == 0) {
+            bufferPool.release(networkInput);
+            networkInput = null;
+        }
+        return result;
+    }
+
+    private int readNetwork() throws IOException {
+        if (networkInput == null) {
+            networkInput = bufferPool.acquire(Math.max(NETWORK_BUFFER_SIZE, engine.getSession().getPacketBufferSize()));
+        }
+        int read = channel.read(networkInput);
+        if (networkInput.position() == 0) {
+            bufferPool.release(networkInput);
+            networkInput = null;
+        }
+        return read;
+    }
+
+    /**
+     * The end of the stream without a close_notify. That may be a truncation attack for a protocol that ends
+     * its messages by closing, but our protocols frame their messages, and CLOSE_DELIMITED clients send a
+     * close_notify before the end of their request anyway.
+     */
+    private void closeInbound() {
+        inboundDone = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException ignore) {
+        }
+    }
+
+    private boolean flush() throws IOException {
+        if (networkOutput == null) {
+            return true;
+        }
+        while (networkOutput.hasRemaining()) {
+            if (channel.write(networkOutput) == 0) {
+                return false;
+            }
+        }
+        bufferPool.release(networkOutput);
+        networkOutput = null;
+        return true;
+    }
+
+    private ByteBuffer acquireApplicationInput() {
+        if (applicationInput == null) {
+            applicationInput = bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+        }
+        return applicationInput;
+    }
+
+    private void releaseApplicationInputIfEmpty() {
+        if (applicationInput != null && applicationInput.position() == 0) {
+            bufferPool.release(applicationInput);
+            applicationInput = null;
+        }
+    }
+
+    private int drainApplicationInput(ByteBuffer dst) {
+        applicationInput.flip();
+        int length = Math.min(dst.remaining(), applicationInput.remaining());
+        dst.put(dst.position(), applicationInput, applicationInput.position(), length);
+        dst.position(dst.position() + length);
+        applicationInput.position(applicationInput.position() + length);
+        applicationInput.compact();
+        releaseApplicationInputIfEmpty();
+        return length;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
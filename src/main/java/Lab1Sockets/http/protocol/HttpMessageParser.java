@@ -0,0 +1,454 @@
+package Lab1Sockets.http.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.1 message parser working directly on the bytes of a ByteBuffer.
+ * <p>
+ * The message is expected to start at the buffer's position, and parse() may be called again and again as
+ * more bytes are appended after the limit: it resumes where it stopped, so no byte is scanned twice. Nothing
+ * is copied or decoded while parsing, the parser only remembers offsets (relative to the start of the message,
+ * so they survive the buffer being regrown), and the start line, header values and body parts are handed out
+ * as slices of the buffer. Both Content-Length and chunked bodies are supported.
+ * <p>
+ * Call reset() before parsing the next message.
+ * <p>
+ * The body is limited too: a Content-Length over the limit is rejected as soon as its digits say so, and a
+ * chunked body as soon as the chunk sizes add up to more, before any of it has to be buffered.
+ */
+public class HttpMessageParser {
+
+    /**
+     * Limit of the head, and of the trailer section of a chunked body, in bytes. The parser holds the offsets of
+     * every header line, so without a limit a client could make it grow them without a bound.
+     */
+    public static final int MAX_HEAD_SIZE = 16 * 1024;
+
+    private enum State { START_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, COMPLETE }
+
+    private final long maxBodySize;
+
+    private State state = State.START_LINE;
+
+    // Everything below is relative to the start of the message
+    private int offset;
+    private int lineStart;
+    // where the head, or else the trailer section, starts, for the MAX_HEAD_SIZE check
+    private int sectionStart;
+    private int startLineStart, startLineEnd;
+
+    // nameStart, nameEnd, valueStart, valueEnd of every header
+    private int[] headers = new int[4 * 16];
+    private int headerCount;
+
+    private long contentLength = -1;
+    private boolean chunked;
+    private long remainingInPart;
+
+    // start, length of every body part: one for Content-Length, one per chunk for chunked bodies
+    private int[] bodyParts = new int[2 * 4];
+    private int bodyPartCount;
+    private int bodyLength;
+
+    /**
+     * A parser for bodies of up to Integer.MAX_VALUE bytes, the most getBodyLength() can tell.
+     */
+    public HttpMessageParser() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * A parser that throws IllegalStateException for a message whose body is longer than maxBodySize bytes.
+     */
+    public HttpMessageParser(long maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("maxBodySize must not be negative: " + maxBodySize);
+        }
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Parses as much of the message as is available between position and limit of the buffer. Returns true
+     * when the whole message is there. The buffer's position and limit are not changed.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        return parse(buffer, false);
+    }
+
+    /**
+     * Like parse(), but stops at the end of the head and returns true once the whole head is there. The body is
+     * left to the caller, as described by getContentLength() and isChunked(), and getMessageLength() is then
+     * the length of the head. Used to stream bodies that are not going to be buffered whole.
+     */
+    public boolean parseHead(ByteBuffer buffer) {
+        return parse(buffer, true);
+    }
+
+    private boolean parse(ByteBuffer buffer, boolean headOnly) {
+        int base = buffer.position();
+        int available = buffer.remaining();
+
+        while (state != State.COMPLETE) {
+            if (headOnly && state != State.START_LINE && state != State.HEADERS) {
+                return true;
+            }
+            if (state == State.BODY || state == State.CHUNK_DATA) {
+                if (available - offset < remainingInPart) {
+                    return false;
+                }
+                addBodyPart(offset, (int) remainingInPart);
+                offset += (int) remainingInPart;
+                lineStart = offset;
+                state = state == State.BODY ? State.COMPLETE : State.CHUNK_DATA_END;
+                continue;
+            }
+
+            int lineEnd = findLineFeed(buffer, base, available);
+            if (lineEnd == -1) {
+                checkSectionSize();
+                return false;
+            }
+            int contentEnd = lineEnd > lineStart && buffer.get(base + lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            onLine(buffer, base, lineStart, contentEnd);
+            offset = lineEnd + 1;
+            lineStart = offset;
+            checkSectionSize();
+        }
+        return true;
+    }
+
+    /**
+     * Checked after every line as well as for a partial one, so that neither many short lines nor a single
+     * long one get past the limit. The lines around chunk data are held to the same limit one at a time.
+     */
+    private void checkSectionSize() {
+        if ((state == State.CHUNK_SIZE || state == State.CHUNK_DATA_END) && offset - lineStart > MAX_HEAD_SIZE) {
+            throw new IllegalStateException("HTTP chunk line is longer than " + MAX_HEAD_SIZE + " bytes");
+        }
+        if (offset - sectionStart <= MAX_HEAD_SIZE) {
+            return;
+        }
+        if (state == State.START_LINE || state == State.HEADERS) {
+            throw new IllegalStateException("HTTP message head is longer than " + MAX_HEAD_SIZE + " bytes");
+        }
+        if (state == State.TRAILERS) {
+            throw new IllegalStateException("HTTP trailer section is longer than " + MAX_HEAD_SIZE + " bytes");
+        }
+    }
+
+    private int findLineFeed(ByteBuffer buffer, int base, int available) {
+        for (; offset < available; offset++) {
+            if (buffer.get(base + offset) == '\n') {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private void onLine(ByteBuffer buffer, int base, int start, int end) {
+        switch (state) {
+            case START_LINE -> {
+                // RFC 9112 asks to ignore empty lines in front of a request
+                if (start != end) {
+                    startLineStart = start;
+                    startLineEnd = end;
+                    state = State.HEADERS;
+                }
+            }
+            case HEADERS -> {
+                if (start == end) {
+                    onHeadEnd();
+                } else {
+                    onHeader(buffer, base, start, end);
+                }
+            }
+            case CHUNK_SIZE -> {
+                remainingInPart = parseChunkSize(buffer, base, start, end);
+                // both are far below Long.MAX_VALUE, so the sum can't overflow
+                if (bodyLength + remainingInPart > maxBodySize) {
+                    throw new IllegalStateException("Chunked HTTP body is longer than " + maxBodySize + " bytes");
+                }
+                if (remainingInPart == 0) {
+                    // the last chunk's line is counted with the trailers
+                    sectionStart = start;
+                    state = State.TRAILERS;
+                } else {
+                    state = State.CHUNK_DATA;
+                }
+            }
+            case CHUNK_DATA_END -> {
+                if (start != end) {
+                    throw new IllegalStateException("Chunk data is not followed by CRLF");
+                }
+                state = State.CHUNK_SIZE;
+            }
+            case TRAILERS -> {
+                if (start == end) {
+                    state = State.COMPLETE;
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected parser state: " + state);
+        }
+    }
+
+    private void onHeader(ByteBuffer buffer, int base, int start, int end) {
+        int colon = start;
+        while (colon < end && buffer.get(base + colon) != ':') {
+            colon++;
+        }
+        if (colon == end || colon == start) {
+            throw new IllegalStateException("Malformed HTTP header line");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(buffer.get(base + valueStart))) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(buffer.get(base + valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (headerCount * 4 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = headerCount++ * 4;
+        headers[i] = start;
+        headers[i + 1] = colon;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+
+        if (equalsIgnoreCase(buffer, base + start, colon - start, "Content-Length")) {
+            long length = parseContentLength(buffer, base, valueStart, valueEnd);
+            // RFC 9112 allows repeating the same length, but two different ones leave the message's end unknown
+            if (contentLength != -1 && contentLength != length) {
+                throw new IllegalStateException("Conflicting Content-Length headers");
+            }
+            contentLength = length;
+        } else if (equalsIgnoreCase(buffer, base + start, colon - start, "Transfer-Encoding")) {
+            // chunked must be the last coding, and is the only one we know how to take apart
+            chunked = endsWithIgnoreCase(buffer, base + valueStart, valueEnd - valueStart, "chunked");
+        }
+    }
+
+    private void onHeadEnd() {
+        if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            remainingInPart = contentLength;
+            state = State.BODY;
+        } else {
+            state = State.COMPLETE;
+        }
+    }
+
+    private void addBodyPart(int start, int length) {
+        if (bodyPartCount * 2 == bodyParts.length) {
+            bodyParts = Arrays.copyOf(bodyParts, bodyParts.length * 2);
+        }
+        bodyParts[bodyPartCount * 2] = start;
+        bodyParts[bodyPartCount * 2 + 1] = length;
+        bodyPartCount++;
+        bodyLength += length;
+    }
+
+    /**
+     * Checks the value against maxBodySize before every digit is added, so a long run of digits can neither
+     * overflow nor get past the limit.
+     */
+    private long parseContentLength(ByteBuffer buffer, int base, int start, int end) {
+        if (start == end) {
+            throw new IllegalStateException("Empty Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(base + i);
+            if (b < '0' || b > '9') {
+                throw new IllegalStateException("Invalid Content-Length");
+            }
+            int digit = b - '0';
+            if (value > (maxBodySize - digit) / 10) {
+                throw new IllegalStateException("HTTP body is longer than " + maxBodySize + " bytes");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    static long parseChunkSize(ByteBuffer buffer, int base, int start, int end) {
+        long value = 0;
+        int i = start;
+        for (; i < end; i++) {
+            int digit = Character.digit(buffer.get(base + i), 16);
+            if (digit == -1) {
+                break;
+            }
+            value = value * 16 + digit;
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Chunk is too big");
+            }
+        }
+        // whatever follows the size is a chunk extension, which we ignore
+        if (i == start || (i < end && buffer.get(base + i) != ';' && !isWhitespace(buffer.get(base + i)))) {
+            throw new IllegalStateException("Invalid chunk size");
+        }
+        return value;
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Length of the whole message (head and body) in bytes. Valid once the message is complete.
+     */
+    public int getMessageLength() {
+        return offset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * The Content-Length of the message, or 0 if it has none. Valid once the head is parsed.
+     */
+    public long getContentLength() {
+        return Math.max(contentLength, 0);
+    }
+
+    /**
+     * Whether the body is chunked. Valid once the head is parsed.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * The start line without the line break, e.g. "POST /echo HTTP/1.1" or "HTTP/1.1 200 OK".
+     */
+    public ByteBuffer startLine(ByteBuffer buffer) {
+        return buffer.slice(buffer.position() + startLineStart, startLineEnd - startLineStart);
+    }
+
+    /**
+     * Value of the first header with the given name (compared case-insensitively), or null if there is none.
+     */
+    public ByteBuffer header(ByteBuffer buffer, String name) {
+        int base = buffer.position();
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (equalsIgnoreCase(buffer, base + headers[i], headers[i + 1] - headers[i], name)) {
+                return buffer.slice(base + headers[i + 2], headers[i + 3] - headers[i + 2]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The body as slices of the buffer: a single one for a Content-Length body, one per chunk for a chunked one.
+     */
+    public ByteBuffer[] body(ByteBuffer buffer) {
+        int base = buffer.position();
+        ByteBuffer[] parts = new ByteBuffer[bodyPartCount];
+        for (int i = 0; i < bodyPartCount; i++) {
+            parts[i] = buffer.slice(base + bodyParts[i * 2], bodyParts[i * 2 + 1]);
+        }
+        return parts;
+    }
+
+    /**
+     * Copies the body into dst, which must have getBodyLength() bytes of space.
+     */
+    public void copyBody(ByteBuffer buffer, byte[] dst) {
+        int base = buffer.position();
+        int dstOffset = 0;
+        for (int i = 0; i < bodyPartCount; i++) {
+            buffer.get(base + bodyParts[i * 2], dst, dstOffset, bodyParts[i * 2 + 1]);
+            dstOffset += bodyParts[i * 2 + 1];
+        }
+    }
+
+    /**
+     * Whether the connection stays open after this message: HTTP/1.1 keeps it unless told "Connection: close",
+     * HTTP/1.0 closes it unless told "Connection: keep-alive".
+     */
+    public boolean isKeepAlive(ByteBuffer buffer) {
+        ByteBuffer connection = header(buffer, "Connection");
+        if (connection != null && equalsIgnoreCase(connection, 0, connection.remaining(), "close")) {
+            return false;
+        }
+        ByteBuffer startLine = startLine(buffer);
+        if (startsOrEndsWith(startLine, "HTTP/1.0")) {
+            return connection != null && equalsIgnoreCase(connection, 0, connection.remaining(), "keep-alive");
+        }
+        return true;
+    }
+
+    public void reset() {
+        state = State.START_LINE;
+        offset = lineStart = sectionStart = startLineStart = startLineEnd = 0;
+        headerCount = bodyPartCount = bodyLength = 0;
+        contentLength = -1;
+        chunked = false;
+        remainingInPart = 0;
+    }
+
+    /**
+     * Whether a header value that is a comma-separated list (like Accept-Encoding) has the token in it,
+     * compared case-insensitively. Parameters after a ';' are ignored.
+     */
+    public static boolean hasToken(ByteBuffer value, String token) {
+        int end = value.remaining();
+        int start = 0;
+        while (start < end) {
+            int itemEnd = start;
+            while (itemEnd < end && value.get(itemEnd) != ',') {
+                itemEnd++;
+            }
+            int tokenEnd = start;
+            while (tokenEnd < itemEnd && value.get(tokenEnd) != ';') {
+                tokenEnd++;
+            }
+            int tokenStart = start;
+            while (tokenStart < tokenEnd && isWhitespace(value.get(tokenStart))) {
+                tokenStart++;
+            }
+            while (tokenEnd > tokenStart && isWhitespace(value.get(tokenEnd - 1))) {
+                tokenEnd--;
+            }
+            if (equalsIgnoreCase(value, tokenStart, tokenEnd - tokenStart, token)) {
+                return true;
+            }
+            start = itemEnd + 1;
+        }
+        return false;
+    }
+
+    private static boolean startsOrEndsWith(ByteBuffer line, String value) {
+        int length = value.length();
+        return line.remaining() >= length
+                && (equalsIgnoreCase(line, 0, length, value) || equalsIgnoreCase(line, line.remaining() - length, length, value));
+    }
+
+    private static boolean endsWithIgnoreCase(ByteBuffer buffer, int index, int length, String value) {
+        return length >= value.length() && equalsIgnoreCase(buffer, index + length - value.length(), value.length(), value);
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuffer buffer, int index, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(index + i);
+            char c = value.charAt(i);
+            if (b != c && Character.toLowerCase((char) b) != Character.toLowerCase(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
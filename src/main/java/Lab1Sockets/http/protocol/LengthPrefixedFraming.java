@@ -0,0 +1,94 @@
+package Lab1Sockets.http.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the LENGTH_PREFIXED wire protocol: a 4-byte big-endian payload length, then the payload.
+ * <p>
+ * The two top bits of the header are the PayloadCompression flags, so a payload may be up to 1 GB long.
+ */
+public final class LengthPrefixedFraming {
+
+    public static final int HEADER_SIZE = Integer.BYTES;
+    public static final int MAX_PAYLOAD_LENGTH = ~PayloadCompression.FLAGS;
+
+    private LengthPrefixedFraming() {}
+
+    /**
+     * Looks at the bytes between position and limit of the buffer (which is in read mode) and returns the
+     * payload length of the frame starting at position, or -1 if not even the header is there yet.
+     * The position is not moved.
+     */
+    public static int payloadLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return length(buffer.getInt(buffer.position()));
+    }
+
+    /**
+     * The flags of the frame starting at the buffer's position, whose header has to be there.
+     */
+    public static int flags(ByteBuffer buffer) {
+        return flags(buffer.getInt(buffer.position()));
+    }
+
+    public static int length(int header) {
+        return header & MAX_PAYLOAD_LENGTH;
+    }
+
+    public static int flags(int header) {
+        return header & PayloadCompression.FLAGS;
+    }
+
+    /**
+     * Returns true if a whole frame is available between position and limit of the buffer.
+     */
+    public static boolean isFrameComplete(ByteBuffer buffer) {
+        int length = payloadLength(buffer);
+        return length != -1 && buffer.remaining() - HEADER_SIZE >= length;
+    }
+
+    /**
+     * Takes a whole frame from the buffer (see isFrameComplete()) and returns its payload.
+     */
+    public static byte[] takePayload(ByteBuffer buffer) {
+        byte[] payload = new byte[length(buffer.getInt())];
+        buffer.get(payload);
+        return payload;
+    }
+
+    public static void writeFrame(DataOutputStream outputStream, byte[] payload) throws IOException {
+        writeFrame(outputStream, payload, 0);
+    }
+
+    public static void writeFrame(DataOutputStream outputStream, byte[] payload, int flags) throws IOException {
+        if (payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload is too long for a frame: " + payload.length);
+        }
+        outputStream.writeInt(payload.length | flags);
+        outputStream.write(payload);
+    }
+
+    public static byte[] readFrame(DataInputStream inputStream, int maxPayloadLength) throws IOException {
+        return readFrame(inputStream, new PayloadCompression(null, false), maxPayloadLength);
+    }
+
+    /**
+     * Reads a frame and returns its payload as decoded by the connection's compression. A header announcing more
+     * than maxPayloadLength bytes is an IOException, thrown before the payload is allocated.
+     */
+    public static byte[] readFrame(DataInputStream inputStream, PayloadCompression compression, int maxPayloadLength)
+            throws IOException {
+        int header = inputStream.readInt();
+        if (length(header) > maxPayloadLength) {
+            throw new IOException("Frame of " + length(header) + " bytes is longer than " + maxPayloadLength + " bytes");
+        }
+        byte[] payload = new byte[length(header)];
+        inputStream.readFully(payload);
+        return compression.decode(payload, flags(header));
+    }
+}
@@ -0,0 +1,111 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.CompressorPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The compression of one connection's payloads, negotiated between its two ends.
+ * <p>
+ * Every payload travels with two flags: COMPRESSED if it is deflated, ACCEPTS_COMPRESSED if its sender takes
+ * deflated payloads. LENGTH_PREFIXED carries them in the two top bits of the frame header, HTTP as
+ * "Content-Encoding: deflate" and "Accept-Encoding: deflate" (which a response may carry too, RFC 7694). The
+ * initiating end (the client) offers compression with its first request, and the other end answers with
+ * ACCEPTS_COMPRESSED only if the offer came, so an end that knows nothing about it never sees a flag. From
+ * then on each end deflates the payloads it sends, except for the ones the CompressorPool finds not worth
+ * it, and inflates the COMPRESSED ones it gets.
+ * <p>
+ * Without a CompressorPool nothing is offered or accepted and the payloads pass through as they are.
+ */
+public class PayloadCompression {
+
+    public static final int COMPRESSED = 1 << 31;
+    public static final int ACCEPTS_COMPRESSED = 1 << 30;
+    public static final int FLAGS = COMPRESSED | ACCEPTS_COMPRESSED;
+
+    private static final String DEFLATE = "deflate";
+
+    /**
+     * A payload to send, with the flags to send it with.
+     */
+    public record Payload(byte[] data, int flags) {
+    }
+
+    private final CompressorPool compressorPool;
+    private final boolean initiating;
+    // a pipelining client sends from one thread and receives on another
+    private volatile boolean peerAcceptsCompressed = false;
+
+    /**
+     * compressorPool may be null for no compression. The initiating end offers compression with its first
+     * payload, the other one only answers an offer.
+     */
+    public PayloadCompression(CompressorPool compressorPool, boolean initiating) {
+        this.compressorPool = compressorPool;
+        this.initiating = initiating;
+    }
+
+    /**
+     * Takes a received payload with its flags and returns it inflated if it is compressed. Throws
+     * IllegalStateException if it is compressed although this end never accepted that.
+     */
+    public byte[] decode(byte[] data, int flags) {
+        if (compressorPool == null) {
+            if ((flags & COMPRESSED) != 0) {
+                throw new IllegalStateException("Compressed payload on a connection without compression");
+            }
+            return data;
+        }
+        if ((flags & ACCEPTS_COMPRESSED) != 0) {
+            peerAcceptsCompressed = true;
+        }
+        return (flags & COMPRESSED) != 0 ? compressorPool.decompress(data) : data;
+    }
+
+    /**
+     * Returns the payload to send in place of the given one, deflated if the peer takes that and it is worth it.
+     */
+    public Payload encode(byte[] data) {
+        if (compressorPool == null || !(initiating || peerAcceptsCompressed)) {
+            return new Payload(data, 0);
+        }
+        if (peerAcceptsCompressed) {
+            byte[] compressed = compressorPool.compress(data);
+            if (compressed != null) {
+                return new Payload(compressed, COMPRESSED | ACCEPTS_COMPRESSED);
+            }
+        }
+        return new Payload(data, ACCEPTS_COMPRESSED);
+    }
+
+    /**
+     * The flags of an HTTP message, from its Content-Encoding and Accept-Encoding headers. Encodings other than
+     * deflate are not ours to undo, so they don't count.
+     */
+    public static int httpFlags(HttpMessageParser parser, ByteBuffer buffer) {
+        int flags = 0;
+        ByteBuffer contentEncoding = parser.header(buffer, "Content-Encoding");
+        if (contentEncoding != null && HttpMessageParser.hasToken(contentEncoding, DEFLATE)) {
+            flags |= COMPRESSED;
+        }
+        ByteBuffer acceptEncoding = parser.header(buffer, "Accept-Encoding");
+        if (acceptEncoding != null && HttpMessageParser.hasToken(acceptEncoding, DEFLATE)) {
+            flags |= ACCEPTS_COMPRESSED;
+        }
+        return flags;
+    }
+
+    /**
+     * The header lines (each ending with CRLF) that carry the flags in an HTTP message.
+     */
+    public static String httpHeaders(int flags) {
+        String headers = "";
+        if ((flags & COMPRESSED) != 0) {
+            headers += "Content-Encoding: " + DEFLATE + "\r\n";
+        }
+        if ((flags & ACCEPTS_COMPRESSED) != 0) {
+            headers += "Accept-Encoding: " + DEFLATE + "\r\n";
+        }
+        return headers;
+    }
+}
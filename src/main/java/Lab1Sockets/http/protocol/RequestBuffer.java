@@ -0,0 +1,156 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the bytes of a connection's requests for the servers that read in arbitrary pieces (the selector
+ * and the completion-handler ones) and cuts them into whole requests according to the wire protocol.
+ * <p>
+ * The buffer is leased from the pool on the first read and must be given back with release().
+ */
+public class RequestBuffer {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MIN_FREE_SPACE_FOR_READ = 16 * 1024;
+
+    private final BufferPool bufferPool;
+    private final WireProtocol wireProtocol;
+    private final int maxRequestSize;
+
+    /**
+     * Always in write mode between calls: bytes that are read but not yet taken as a request are at [0, position).
+     */
+    private ByteBuffer buffer;
+    private boolean lastRequestTaken = false;
+    private int requestFlags = 0;
+
+    private final HttpMessageParser httpParser;
+
+    /**
+     * A request longer than maxRequestSize (see Server.setMaxRequestSize()) makes nextRequest() or
+     * writableBuffer() throw IllegalStateException, before the buffer is grown for it.
+     */
+    public RequestBuffer(BufferPool bufferPool, WireProtocol wireProtocol, int maxRequestSize) {
+        this.bufferPool = bufferPool;
+        this.wireProtocol = wireProtocol;
+        this.maxRequestSize = maxRequestSize;
+        this.httpParser = wireProtocol == WireProtocol.HTTP ? new HttpMessageParser(maxRequestSize) : null;
+    }
+
+    /**
+     * Returns the buffer the next read should go into, growing it if there is little space left.
+     */
+    public ByteBuffer writableBuffer() {
+        if (buffer == null) {
+            buffer = bufferPool.acquire(INITIAL_CAPACITY);
+        } else if (buffer.remaining() < MIN_FREE_SPACE_FOR_READ) {
+            // frames and HTTP messages are checked as their heads arrive, a CLOSE_DELIMITED request only has its bytes
+            if (wireProtocol == WireProtocol.CLOSE_DELIMITED && buffer.position() > maxRequestSize) {
+                throw new IllegalStateException("Request is longer than " + maxRequestSize + " bytes");
+            }
+            buffer = bufferPool.grow(buffer, buffer.capacity() * 2);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the next whole request, or null if it hasn't fully arrived yet. With CLOSE_DELIMITED a request
+     * is whole only at the end of the stream (and it is the only one), with LENGTH_PREFIXED when its whole
+     * frame is buffered, with HTTP when the parser has seen the whole message. After an HTTP request that
+     * doesn't keep the connection alive, no more requests are returned.
+     */
+    public byte[] nextRequest(boolean endOfStream) {
+        if (wireProtocol == WireProtocol.CLOSE_DELIMITED) {
+            return endOfStream ? takeAll() : null;
+        }
+        if (buffer == null || lastRequestTaken) {
+            return null;
+        }
+        buffer.flip();
+        byte[] data = wireProtocol == WireProtocol.HTTP ? takeHttpRequest() : takeFrame();
+        if (data != null) {
+            buffer.compact();
+        } else {
+            // nothing was taken, so the unread bytes are still at the start and there is nothing to move:
+            // compacting anyway would copy a big request that is still arriving on every single read
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+        return data;
+    }
+
+    private byte[] takeFrame() {
+        if (LengthPrefixedFraming.payloadLength(buffer) > maxRequestSize) {
+            throw new IllegalStateException("Frame of " + LengthPrefixedFraming.payloadLength(buffer)
+                    + " bytes is longer than " + maxRequestSize + " bytes");
+        }
+        if (!LengthPrefixedFraming.isFrameComplete(buffer)) {
+            return null;
+        }
+        requestFlags = LengthPrefixedFraming.flags(buffer);
+        return LengthPrefixedFraming.takePayload(buffer);
+    }
+
+    /**
+     * The parser remembers how far it got, so a request that arrives in many reads is scanned only once.
+     * The unparsed bytes always stay at the start of the buffer, which is where the parser expects the
+     * message to start.
+     */
+    private byte[] takeHttpRequest() {
+        if (!httpParser.parse(buffer)) {
+            return null;
+        }
+        byte[] data = new byte[httpParser.getBodyLength()];
+        httpParser.copyBody(buffer, data);
+        requestFlags = PayloadCompression.httpFlags(httpParser, buffer);
+        lastRequestTaken = !httpParser.isKeepAlive(buffer);
+        buffer.position(buffer.position() + httpParser.getMessageLength());
+        httpParser.reset();
+        return data;
+    }
+
+    /**
+     * The PayloadCompression flags the last returned request came with, to be passed to its decode().
+     */
+    public int getRequestFlags() {
+        return requestFlags;
+    }
+
+    /**
+     * Returns true once the client asked for the connection to be closed after the last returned request.
+     */
+    public boolean isCloseRequested() {
+        return lastRequestTaken;
+    }
+
+    /**
+     * Returns true if bytes of a request that is not whole yet are buffered.
+     */
+    public boolean hasPartialRequest() {
+        return buffer != null && buffer.position() > 0;
+    }
+
+    private byte[] takeAll() {
+        if (lastRequestTaken) {
+            return null;
+        }
+        lastRequestTaken = true;
+        if (buffer != null && buffer.position() > maxRequestSize) {
+            throw new IllegalStateException("Request is longer than " + maxRequestSize + " bytes");
+        }
+        byte[] data = new byte[buffer == null ? 0 : buffer.position()];
+        if (buffer != null) {
+            buffer.flip();
+            buffer.get(data);
+            release();
+        }
+        return data;
+    }
+
+    public void release() {
+        bufferPool.release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,231 @@
+package Lab1Sockets.http.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the bytes of a connection into requests as they arrive, without waiting for whole requests like
+ * RequestBuffer does: the body is passed on in the pieces it was read in, as views of the caller's buffer.
+ * <p>
+ * Only a frame header, an HTTP head or a chunk size line is ever kept until it is complete. decode() leaves
+ * its bytes in the buffer, and the caller has to keep them there (compact() the buffer) and append the next
+ * read after them.
+ */
+public class StreamingRequestDecoder {
+
+    public interface Listener {
+
+        /**
+         * A request starts, with the length of its body, or -1 if the protocol doesn't tell it up front.
+         */
+        void onRequestStart(long length) throws IOException;
+
+        /**
+         * A piece of the body, valid only during the call.
+         */
+        void onRequestChunk(ByteBuffer chunk) throws IOException;
+
+        void onRequestEnd() throws IOException;
+    }
+
+    private static final int MAX_LINE_LENGTH = 4 * 1024;
+
+    private enum State { START, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, CLOSED }
+
+    private final WireProtocol wireProtocol;
+    private final HttpMessageParser httpParser;
+
+    private State state = State.START;
+    // body bytes still to come in the current BODY or CHUNK_DATA state, -1 for CLOSE_DELIMITED
+    private long remaining;
+    private boolean closeAfterRequest;
+
+    public StreamingRequestDecoder(WireProtocol wireProtocol) {
+        this.wireProtocol = wireProtocol;
+        this.httpParser = wireProtocol == WireProtocol.HTTP ? new HttpMessageParser(Long.MAX_VALUE) : null;
+    }
+
+    /**
+     * Decodes the bytes between position and limit of the input and moves the position past the ones it took.
+     * Throws IllegalStateException if the bytes don't follow the protocol.
+     */
+    public void decode(ByteBuffer input, Listener listener) throws IOException {
+        while (true) {
+            switch (state) {
+                case START -> {
+                    if (!startRequest(input, listener)) {
+                        return;
+                    }
+                }
+                case BODY, CHUNK_DATA -> {
+                    if (!passBody(input, listener)) {
+                        return;
+                    }
+                }
+                case CHUNK_SIZE, CHUNK_DATA_END, TRAILERS -> {
+                    if (!takeLine(input, listener)) {
+                        return;
+                    }
+                }
+                case CLOSED -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The client won't send anything more. That is the end of a CLOSE_DELIMITED request, but a LENGTH_PREFIXED
+     * or HTTP one that is not complete by now never will be, so it is an EOFException.
+     */
+    public void endOfStream(Listener listener) throws IOException {
+        if (wireProtocol == WireProtocol.CLOSE_DELIMITED) {
+            if (state == State.START) {
+                closeAfterRequest = true;
+                listener.onRequestStart(-1);
+                state = State.BODY;
+            }
+            if (state == State.BODY) {
+                endRequest(listener);
+            }
+        } else if (isInRequest()) {
+            throw new EOFException("Connection closed in the middle of a request");
+        }
+        state = State.CLOSED;
+    }
+
+    /**
+     * Whether a request has started and not ended yet.
+     */
+    public boolean isInRequest() {
+        return state != State.START && state != State.CLOSED;
+    }
+
+    /**
+     * Returns true once no more requests are going to be decoded: after the CLOSE_DELIMITED request, after an
+     * HTTP request that doesn't keep the connection alive, or after the end of the stream.
+     */
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    private boolean startRequest(ByteBuffer input, Listener listener) throws IOException {
+        switch (wireProtocol) {
+            case CLOSE_DELIMITED -> {
+                if (!input.hasRemaining()) {
+                    return false;
+                }
+                closeAfterRequest = true;
+                listener.onRequestStart(-1);
+                remaining = -1;
+                state = State.BODY;
+            }
+            case LENGTH_PREFIXED -> {
+                int length = LengthPrefixedFraming.payloadLength(input);
+                if (length == -1) {
+                    return false;
+                }
+                // the session never accepts compression, so a client that follows the negotiation never does this
+                if ((LengthPrefixedFraming.flags(input) & PayloadCompression.COMPRESSED) != 0) {
+                    throw new IllegalStateException("Compressed requests can't be streamed");
+                }
+                input.position(input.position() + LengthPrefixedFraming.HEADER_SIZE);
+                listener.onRequestStart(length);
+                startBody(length, listener);
+            }
+            case HTTP -> {
+                if (!httpParser.parseHead(input)) {
+                    return false;
+                }
+                closeAfterRequest = !httpParser.isKeepAlive(input);
+                boolean chunked = httpParser.isChunked();
+                long length = httpParser.getContentLength();
+                input.position(input.position() + httpParser.getMessageLength());
+                httpParser.reset();
+                listener.onRequestStart(chunked ? -1 : length);
+                if (chunked) {
+                    state = State.CHUNK_SIZE;
+                } else {
+                    startBody(length, listener);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void startBody(long length, Listener listener) throws IOException {
+        if (length == 0) {
+            endRequest(listener);
+        } else {
+            remaining = length;
+            state = State.BODY;
+        }
+    }
+
+    private boolean passBody(ByteBuffer input, Listener listener) throws IOException {
+        int length = remaining == -1 ? input.remaining() : (int) Math.min(remaining, input.remaining());
+        if (length > 0) {
+            ByteBuffer chunk = input.slice(input.position(), length);
+            input.position(input.position() + length);
+            listener.onRequestChunk(chunk);
+        }
+        if (remaining == -1) {
+            // a CLOSE_DELIMITED body ends only with the stream
+            return false;
+        }
+        remaining -= length;
+        if (remaining > 0) {
+            return false;
+        }
+        if (state == State.BODY) {
+            endRequest(listener);
+        } else {
+            state = State.CHUNK_DATA_END;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a line of the chunked body framing: a chunk size, the line break after chunk data, or a trailer.
+     */
+    private boolean takeLine(ByteBuffer input, Listener listener) throws IOException {
+        int start = input.position();
+        int lineFeed = start;
+        while (lineFeed < input.limit() && input.get(lineFeed) != '\n') {
+            lineFeed++;
+        }
+        if (lineFeed == input.limit()) {
+            if (input.remaining() > MAX_LINE_LENGTH) {
+                throw new IllegalStateException("Chunked body line is longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            return false;
+        }
+        int end = lineFeed > start && input.get(lineFeed - 1) == '\r' ? lineFeed - 1 : lineFeed;
+        input.position(lineFeed + 1);
+
+        switch (state) {
+            case CHUNK_SIZE -> {
+                remaining = HttpMessageParser.parseChunkSize(input, 0, start, end);
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+            }
+            case CHUNK_DATA_END -> {
+                if (start != end) {
+                    throw new IllegalStateException("Chunk data is not followed by CRLF");
+                }
+                state = State.CHUNK_SIZE;
+            }
+            default -> {
+                if (start == end) {
+                    endRequest(listener);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void endRequest(Listener listener) throws IOException {
+        state = closeAfterRequest ? State.CLOSED : State.START;
+        listener.onRequestEnd();
+    }
+}
@@ -0,0 +1,161 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.StreamingHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection served by a StreamingHandler: the requests are decoded with a StreamingRequestDecoder, every one
+ * of them gets an exchange from the handler, and the response the exchange writes is framed according to the
+ * wire protocol (the head, and for an HTTP response of unknown length the chunks) and handed to send().
+ * <p>
+ * Servers subclass it with their way of sending: writing right away for the blocking ones, copying into
+ * pooled buffers and queueing them for the others.
+ */
+public abstract class StreamingSession implements StreamingHandler.ResponseSink {
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    protected final BufferPool bufferPool;
+    private final WireProtocol wireProtocol;
+    private final StreamingHandler handler;
+    private final StreamingRequestDecoder decoder;
+    private final StreamingRequestDecoder.Listener listener = new StreamingRequestDecoder.Listener() {
+        @Override
+        public void onRequestStart(long length) {
+            requestStartNs = System.nanoTime();
+            exchange = handler.newExchange(length);
+        }
+
+        @Override
+        public void onRequestChunk(ByteBuffer chunk) throws IOException {
+            exchange.onRequestChunk(chunk, StreamingSession.this);
+        }
+
+        @Override
+        public void onRequestEnd() throws IOException {
+            exchange.onRequestEnd(StreamingSession.this);
+            exchange = null;
+            finishResponse();
+        }
+    };
+
+    private StreamingHandler.Exchange exchange;
+    private long requestStartNs;
+
+    private boolean responseStarted = false;
+    private boolean responseChunked;
+    // -1 if unknown
+    private long responseLength;
+    private long responseWritten;
+
+    protected StreamingSession(BufferPool bufferPool, WireProtocol wireProtocol, StreamingHandler handler) {
+        this.bufferPool = bufferPool;
+        this.wireProtocol = wireProtocol;
+        this.handler = handler;
+        this.decoder = new StreamingRequestDecoder(wireProtocol);
+    }
+
+    /**
+     * Sends the bytes between position and limit of the buffers, in order. The buffers are valid only during
+     * the call, so they have to be written or copied before it returns. The last one is never empty.
+     */
+    protected abstract void send(ByteBuffer... data) throws IOException;
+
+    /**
+     * Called when the whole response to a request has been passed to send(), with the System.nanoTime() at
+     * which the request started to arrive.
+     */
+    protected abstract void onResponseComplete(long requestStartNs) throws IOException;
+
+    /**
+     * Decodes what was read (see StreamingRequestDecoder.decode()), calling the handler and sending what it
+     * writes on the way.
+     */
+    public void decode(ByteBuffer input) throws IOException {
+        decoder.decode(input, listener);
+    }
+
+    public void endOfStream() throws IOException {
+        decoder.endOfStream(listener);
+    }
+
+    /**
+     * Whether a request has started and not ended yet (see StreamingRequestDecoder.isInRequest()).
+     */
+    public boolean isInRequest() {
+        return decoder.isInRequest();
+    }
+
+    /**
+     * Returns true once there is nothing more to read: the connection is to be closed as soon as the responses
+     * that were sent are written.
+     */
+    public boolean isClosed() {
+        return decoder.isClosed();
+    }
+
+    @Override
+    public void start(long length) throws IOException {
+        if (responseStarted) {
+            throw new IllegalStateException("The response has already been started");
+        }
+        if (length < 0 && wireProtocol == WireProtocol.LENGTH_PREFIXED) {
+            throw new IllegalStateException("A LENGTH_PREFIXED response needs its length up front");
+        }
+        responseStarted = true;
+        responseChunked = length < 0 && wireProtocol == WireProtocol.HTTP;
+        responseLength = length;
+        responseWritten = 0;
+        if (wireProtocol == WireProtocol.CLOSE_DELIMITED) {
+            return;
+        }
+        ByteBuffer head = responseChunked
+                ? wireProtocol.encodeChunkedResponseHead(bufferPool)
+                : wireProtocol.encodeResponseHead(bufferPool, length);
+        try {
+            send(head);
+        } finally {
+            bufferPool.release(head);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        if (!responseStarted) {
+            throw new IllegalStateException("The response has to be started before it is written");
+        }
+        int length = chunk.remaining();
+        if (length == 0) {
+            return;
+        }
+        if (responseLength >= 0 && responseWritten + length > responseLength) {
+            throw new IllegalStateException("The response is longer than the " + responseLength + " bytes it started with");
+        }
+        responseWritten += length;
+        if (responseChunked) {
+            byte[] chunkSize = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            send(ByteBuffer.wrap(chunkSize), chunk, ByteBuffer.wrap(CRLF));
+        } else {
+            send(chunk);
+        }
+    }
+
+    private void finishResponse() throws IOException {
+        if (!responseStarted) {
+            start(0);
+        }
+        if (responseLength >= 0 && responseWritten != responseLength) {
+            throw new IllegalStateException("The response is shorter than the " + responseLength + " bytes it started with");
+        }
+        if (responseChunked) {
+            send(ByteBuffer.wrap(LAST_CHUNK));
+        }
+        responseStarted = false;
+        onResponseComplete(requestStartNs);
+    }
+}
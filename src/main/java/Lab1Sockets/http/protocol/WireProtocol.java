@@ -0,0 +1,140 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.FileRegion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How requests and responses are delimited on a connection. The servers take it from the Client they are
+ * benchmarked with, the same way they take the response function.
+ */
+public enum WireProtocol {
+
+    /**
+     * One request per connection. The client marks the end of the request by shutting down its output,
+     * and the server marks the end of the response by closing the connection.
+     */
+    CLOSE_DELIMITED,
+
+    /**
+     * Many requests per connection. Every request and every response is a frame: a 4-byte big-endian
+     * length followed by that many bytes of payload.
+     */
+    LENGTH_PREFIXED,
+
+    /**
+     * Many requests per connection, as HTTP/1.1 messages. The request body (Content-Length or chunked) is
+     * what the response function gets, and its result is sent back as the body of a "200 OK" response.
+     */
+    HTTP;
+
+    private static final byte[] HTTP_STATUS_LINE = "HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_RESPONSE_HEAD_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_CHUNKED_RESPONSE_HEAD =
+            "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_SERVICE_UNAVAILABLE =
+            "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Returns what the protocol sends in front of a response body of the given length, in a buffer leased from
+     * the pool. The buffer is in read mode (and empty for CLOSE_DELIMITED) and has to be released once it is written.
+     */
+    public ByteBuffer encodeResponseHead(BufferPool bufferPool, long bodyLength) {
+        return encodeResponseHead(bufferPool, bodyLength, 0);
+    }
+
+    /**
+     * Same as encodeResponseHead(BufferPool, long), for a body sent with the given PayloadCompression flags.
+     * CLOSE_DELIMITED has no place for them, so it sends them nowhere: nothing is negotiated on it.
+     */
+    public ByteBuffer encodeResponseHead(BufferPool bufferPool, long bodyLength, int flags) {
+        return switch (this) {
+            case LENGTH_PREFIXED -> bufferPool.acquire(LengthPrefixedFraming.HEADER_SIZE)
+                    .putInt((int) bodyLength | flags).flip();
+            case HTTP -> {
+                byte[] encoding = PayloadCompression.httpHeaders(flags).getBytes(StandardCharsets.US_ASCII);
+                byte[] contentLength = Long.toString(bodyLength).getBytes(StandardCharsets.US_ASCII);
+                yield bufferPool.acquire(HTTP_STATUS_LINE.length + encoding.length + HTTP_CONTENT_LENGTH.length
+                                + contentLength.length + HTTP_RESPONSE_HEAD_END.length)
+                        .put(HTTP_STATUS_LINE).put(encoding).put(HTTP_CONTENT_LENGTH).put(contentLength)
+                        .put(HTTP_RESPONSE_HEAD_END).flip();
+            }
+            case CLOSE_DELIMITED -> bufferPool.acquire(0).flip();
+        };
+    }
+
+    /**
+     * Returns the head of an HTTP response whose length is not known when it starts, in a buffer leased from
+     * the pool: the body follows in chunks (see StreamingSession). The other protocols have no such thing,
+     * LENGTH_PREFIXED needs the length up front and CLOSE_DELIMITED doesn't need it at all.
+     */
+    public ByteBuffer encodeChunkedResponseHead(BufferPool bufferPool) {
+        if (this != HTTP) {
+            throw new IllegalStateException(this + " has no chunked responses");
+        }
+        return bufferPool.acquire(HTTP_CHUNKED_RESPONSE_HEAD.length).put(HTTP_CHUNKED_RESPONSE_HEAD).flip();
+    }
+
+    /**
+     * Returns what the protocol sends to a connection that the server turns away without reading its request:
+     * a "503 Service Unavailable" for HTTP. The other protocols have no way to say it, so the array is empty
+     * and closing the connection is the whole answer.
+     */
+    public byte[] rejectionResponse() {
+        return this == HTTP ? HTTP_SERVICE_UNAVAILABLE.clone() : new byte[0];
+    }
+
+    /**
+     * Returns the buffers to send for the response, in read mode: the protocol's head (if it has one) and the
+     * body. They are meant for a gathering write, so the head and the body are never copied together. An empty
+     * body is left out, so only the head goes. All of them are leased from the pool and have to be released once
+     * they are written (see BufferPool.releaseAll()).
+     */
+    public ByteBuffer[] encodeResponse(BufferPool bufferPool, byte[] response) {
+        return encodeResponse(bufferPool, new PayloadCompression.Payload(response, 0));
+    }
+
+    /**
+     * Same as encodeResponse(BufferPool, byte[]), for a payload as encoded by the connection's PayloadCompression.
+     */
+    public ByteBuffer[] encodeResponse(BufferPool bufferPool, PayloadCompression.Payload response) {
+        ByteBuffer body = bufferPool.acquire(response.data().length).put(response.data()).flip();
+        return withHead(bufferPool, body, response.flags());
+    }
+
+    /**
+     * Same as encodeResponse(), for a body that is a file region. This is the fallback for the servers that
+     * can't use FileChannel.transferTo(): the region is read into the body buffer.
+     */
+    public ByteBuffer[] encodeResponse(BufferPool bufferPool, FileRegion region) throws IOException {
+        ByteBuffer body = bufferPool.acquire((int) region.count());
+        body.limit((int) region.count());
+        long position = region.position();
+        while (body.hasRemaining()) {
+            int read = region.fileChannel().read(body, position);
+            if (read == -1) {
+                bufferPool.release(body);
+                throw new EOFException("File region is beyond the end of the file");
+            }
+            position += read;
+        }
+        return withHead(bufferPool, body.flip(), 0);
+    }
+
+    private ByteBuffer[] withHead(BufferPool bufferPool, ByteBuffer body, int flags) {
+        if (this == CLOSE_DELIMITED) {
+            return new ByteBuffer[]{body};
+        }
+        ByteBuffer head = encodeResponseHead(bufferPool, body.remaining(), flags);
+        if (!body.hasRemaining()) {
+            bufferPool.release(body);
+            return new ByteBuffer[]{head};
+        }
+        return new ByteBuffer[]{head, body};
+    }
+}
@@ -0,0 +1,153 @@
+package Lab1Sockets.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+
+    private static final long WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // moved by hand, a window only ends when the test says so
+    private long nowNs = TimeUnit.SECONDS.toNanos(1);
+
+    private AdmissionController controller(double connectionsPerSecond, int burst, int initialLimit, int minLimit,
+                                           int maxLimit) {
+        return new AdmissionController(connectionsPerSecond, burst, initialLimit, minLimit, maxLimit, () -> nowNs);
+    }
+
+    @Test
+    void bucketLetsBurstThroughAndRefillsAtRate() throws UnknownHostException {
+        // a token every 100 ms
+        AdmissionController controller = controller(10, 3, 100, 1, 100);
+        InetAddress a = address(1);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(controller.tryAdmit(a), "connection " + i);
+        }
+        assertFalse(controller.tryAdmit(a));
+        assertEquals(1, controller.getRateLimited());
+        // a rejected connection doesn't stay pending
+        assertEquals(3, controller.getPending());
+        assertTrue(controller.tryAdmit(address(2)), "every client has a bucket of its own");
+
+        nowNs += 100 * MS;
+        assertTrue(controller.tryAdmit(a));
+        assertFalse(controller.tryAdmit(a));
+
+        // a long pause refills the bucket up to the burst only
+        nowNs += TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(controller.tryAdmit(a), "connection " + i + " after the pause");
+        }
+        assertFalse(controller.tryAdmit(a));
+        assertEquals(3, controller.getRateLimited());
+    }
+
+    @Test
+    void limitGoesDownAsLatencyRises() {
+        AdmissionController controller = controller(1000, 100, 100, 4, 1000);
+
+        runWindow(controller, MS);
+        assertEquals(MS, controller.getNoLoadLatencyNs());
+        assertEquals(100, controller.getLimit());
+
+        int previous = controller.getLimit();
+        for (long latencyNs = 2 * MS; latencyNs <= 16 * MS; latencyNs *= 2) {
+            runWindow(controller, latencyNs);
+            assertTrue(controller.getLimit() < previous, "limit " + controller.getLimit() + " at " + latencyNs + " ns");
+            previous = controller.getLimit();
+        }
+    }
+
+    @Test
+    void limitGoesUpOnlyWhileInUse() throws UnknownHostException {
+        AdmissionController idle = controller(1000, 100, 20, 4, 1000);
+        AdmissionController busy = controller(1000, 100, 20, 4, 1000);
+        // half the limit is in use
+        for (int i = 0; i < 10; i++) {
+            assertTrue(busy.tryAdmit(address(1)));
+        }
+
+        runWindow(idle, MS);
+        runWindow(busy, MS);
+
+        assertEquals(20, idle.getLimit());
+        // by log10(20)
+        assertEquals(21, busy.getLimit());
+    }
+
+    @Test
+    void limitStaysBetweenMinAndMax() throws UnknownHostException {
+        AdmissionController shrinking = controller(1000, 100, 10, 9, 1000);
+        runWindow(shrinking, MS);
+        for (int i = 0; i < 3; i++) {
+            runWindow(shrinking, TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(9, shrinking.getLimit());
+
+        AdmissionController growing = controller(1000, 100, 20, 4, 21);
+        for (int i = 0; i < 15; i++) {
+            assertTrue(growing.tryAdmit(address(1)));
+        }
+        for (int i = 0; i < 3; i++) {
+            runWindow(growing, MS);
+        }
+        assertEquals(21, growing.getLimit());
+    }
+
+    @Test
+    void pendingConnectionsCountAgainstLimitUntilServedOrDropped() throws UnknownHostException {
+        AdmissionController controller = controller(1000, 100, 2, 2, 2);
+
+        assertTrue(controller.tryAdmit(address(1)));
+        assertTrue(controller.tryAdmit(address(2)));
+        assertFalse(controller.tryAdmit(address(3)));
+        assertEquals(1, controller.getOverLimit());
+        assertEquals(2, controller.getPending());
+
+        controller.onDropped();
+        assertTrue(controller.tryAdmit(address(3)));
+        controller.onServing(0);
+        assertTrue(controller.tryAdmit(address(4)));
+        assertEquals(2, controller.getPending());
+        assertEquals(4, controller.getAdmitted());
+    }
+
+    @Test
+    void waitForServingCountsAsLatency() throws UnknownHostException {
+        AdmissionController controller = controller(1000, 100, 100, 4, 1000);
+        runWindow(controller, MS);
+
+        // the requests take as long as without load, but every connection waited 3 ms before being served
+        for (int i = 0; i < 10; i++) {
+            assertTrue(controller.tryAdmit(address(1)));
+            controller.onServing(3 * MS);
+        }
+        assertEquals(0, controller.getPending());
+        runWindow(controller, MS);
+
+        // 100 * (1 - 1 / 4) requests are queued, far more than BETA * log10(100)
+        assertEquals(98, controller.getLimit());
+    }
+
+    /**
+     * Records more than MIN_WINDOW_SAMPLES requests of the latency and ends the window with the last of them.
+     */
+    private void runWindow(AdmissionController controller, long latencyNs) {
+        for (int i = 0; i < 10; i++) {
+            controller.recordLatency(latencyNs);
+        }
+        nowNs += WINDOW_NS;
+        controller.recordLatency(latencyNs);
+    }
+
+    private static InetAddress address(int lastByte) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) lastByte});
+    }
+}
@@ -0,0 +1,102 @@
+package Lab1Sockets.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    private final BufferPool pool = new BufferPool(1024, 64 * 1024, 128 * 1024);
+
+    @Test
+    void roundsCapacityUpToSizeClass() {
+        assertEquals(1024, pool.acquire(0).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(64 * 1024, pool.acquire(40 * 1024).capacity());
+    }
+
+    @Test
+    void reusesReleasedBuffer() {
+        ByteBuffer buffer = pool.acquire(3000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(2500);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    void countsBuffersInUseUntilReleased() {
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(10_000);
+        assertEquals(2, pool.getBuffersInUse());
+        assertEquals(1024 + 16 * 1024, pool.getBytesInUse());
+        assertEquals(0, pool.getPooledBytes());
+
+        pool.releaseAll(new ByteBuffer[]{small, large});
+        pool.release(null);
+        assertEquals(0, pool.getBuffersInUse());
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(1024 + 16 * 1024, pool.getPooledBytes());
+
+        pool.acquire(10_000);
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    @Test
+    void doesNotPoolOversizedBuffers() {
+        ByteBuffer buffer = pool.acquire(100 * 1024);
+        assertFalse(buffer.isDirect());
+        assertEquals(100 * 1024, pool.getBytesInUse());
+
+        pool.release(buffer);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(buffer, pool.acquire(100 * 1024));
+    }
+
+    @Test
+    void keepsAtMostMaxPooledBytes() {
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(64 * 1024);
+        }
+        pool.releaseAll(buffers);
+
+        assertEquals(0, pool.getBuffersInUse());
+        assertEquals(128 * 1024, pool.getPooledBytes());
+    }
+
+    @Test
+    void growCopiesContentAndReleasesOldBuffer() {
+        ByteBuffer buffer = pool.acquire(1024);
+        buffer.put(new byte[]{1, 2, 3});
+
+        ByteBuffer grown = pool.grow(buffer, 1500);
+        assertEquals(2048, grown.capacity());
+        assertEquals(3, grown.position());
+        assertEquals(3, grown.get(2));
+        assertEquals(1, pool.getBuffersInUse());
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    @Test
+    void remainingSumsAllBuffers() {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer partlyRead = ByteBuffer.allocate(10).position(4);
+        assertEquals(6, BufferPool.remaining(new ByteBuffer[]{empty, partlyRead, empty}));
+    }
+
+    @Test
+    void rejectsInvalidBounds() {
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(0, 1024, 0));
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(2048, 1024, 0));
+    }
+}
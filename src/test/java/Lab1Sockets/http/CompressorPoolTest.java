@@ -0,0 +1,123 @@
+package Lab1Sockets.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressorPoolTest {
+
+    private final CompressorPool pool = new CompressorPool(CompressorPool.DEFAULT_LEVEL, 1);
+
+    @Test
+    void roundTrips() {
+        byte[] payload = text(100 * 1024);
+
+        byte[] compressed = pool.compress(payload);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length < payload.length / 4, compressed.length + " bytes");
+        assertArrayEquals(payload, pool.decompress(compressed));
+        assertEquals(1, pool.getCompressedPayloads());
+        assertEquals(payload.length, pool.getBytesBeforeCompression());
+        assertEquals(compressed.length, pool.getBytesAfterCompression());
+        assertEquals(1, pool.getInflatedPayloads());
+    }
+
+    @Test
+    void reusesDeflaterForPayloadsOfAnySize() {
+        // smaller after larger, so whatever a reused array still holds would show
+        for (int size : new int[]{64 * 1024, 2 * 1024, 3 * 1024 * 1024, 16 * 1024, 1024}) {
+            byte[] payload = text(size);
+            byte[] compressed = pool.compress(payload);
+            assertNotNull(compressed, size + " bytes");
+            assertArrayEquals(payload, pool.decompress(compressed), size + " bytes");
+        }
+        assertEquals(1, pool.getDeflatersCreated());
+        assertEquals(1, pool.getInflatersCreated());
+    }
+
+    @Test
+    void skipsSmallPayload() {
+        assertNull(pool.compress(text(CompressorPool.MIN_COMPRESSED_SIZE - 1)));
+        assertEquals(1, pool.getSkippedPayloads());
+    }
+
+    @Test
+    void skipsPayloadWhoseSampleDoesNotCompress() {
+        byte[] random = random(64 * 1024);
+        // compressible around a random middle: the whole would shrink, but the sample says it isn't worth it
+        byte[] mostlyText = text(256 * 1024);
+        System.arraycopy(random, 0, mostlyText, (mostlyText.length - 16 * 1024) / 2, 16 * 1024);
+
+        assertNull(pool.compress(random));
+        assertNull(pool.compress(mostlyText));
+        assertEquals(2, pool.getSkippedPayloads());
+        assertEquals(0, pool.getCompressedPayloads());
+    }
+
+    @Test
+    void rejectsTruncatedAndCorruptPayloads() {
+        byte[] payload = text(100 * 1024);
+        byte[] compressed = pool.compress(payload);
+
+        IllegalStateException truncated = assertThrows(IllegalStateException.class,
+                () -> pool.decompress(Arrays.copyOf(compressed, compressed.length / 2)));
+        assertTrue(truncated.getMessage().contains("truncated"), truncated.getMessage());
+        assertThrows(IllegalStateException.class, () -> pool.decompress("not a zlib stream".getBytes(StandardCharsets.US_ASCII)));
+        byte[] corrupt = compressed.clone();
+        corrupt[corrupt.length - 1] ^= 1;
+        assertThrows(IllegalStateException.class, () -> pool.decompress(corrupt));
+
+        // the inflater went back to the pool reset
+        assertArrayEquals(payload, pool.decompress(compressed));
+        assertEquals(1, pool.getInflatersCreated());
+    }
+
+    @Test
+    void stopsInflatingAtMaxInflatedSize() {
+        CompressorPool limited = new CompressorPool(CompressorPool.DEFAULT_LEVEL, 1, 64 * 1024);
+        byte[] atLimit = deflate(new byte[64 * 1024]);
+        // a few hundred bytes that inflate to 16 MB
+        byte[] bomb = deflate(new byte[16 * 1024 * 1024]);
+
+        assertEquals(64 * 1024, limited.decompress(atLimit).length);
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> limited.decompress(bomb));
+        assertTrue(e.getMessage().contains("65536 bytes"), e.getMessage());
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] output = new byte[data.length / 100 + 1024];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "The quick brown fox jumps over the lazy dog. ".getBytes(StandardCharsets.US_ASCII);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = line[i % line.length];
+        }
+        return text;
+    }
+
+    private static byte[] random(int length) {
+        byte[] random = new byte[length];
+        new Random(42).nextBytes(random);
+        return random;
+    }
+}
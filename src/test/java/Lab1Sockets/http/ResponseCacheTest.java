@@ -0,0 +1,123 @@
+package Lab1Sockets.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    // entries of 96 + 100 + 204 = 400 bytes: 20 of them fit, 16 of them in the protected segment
+    private static final int MAX_BYTES = 8000;
+    private static final int ENTRY_SIZE = 400;
+
+    private final ResponseCache cache = new ResponseCache(MAX_BYTES);
+    private int handlerCalls;
+    private final Function<byte[], byte[]> handler = request -> {
+        handlerCalls++;
+        return ByteBuffer.allocate(204).put(request, 0, 4).array();
+    };
+
+    @Test
+    void answersRepeatedRequestFromCache() {
+        byte[] response = cache.get(request(1), handler);
+        assertSame(response, cache.get(request(1), handler));
+        assertArrayEquals(response, cache.get(request(1), handler));
+
+        assertEquals(1, handlerCalls);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEntries());
+        assertEquals(ENTRY_SIZE, cache.getBytes());
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    void evictsLeastRecentlyAddedFromProbation() {
+        for (int i = 0; i <= MAX_BYTES / ENTRY_SIZE; i++) {
+            cache.get(request(i), handler);
+        }
+        assertEquals(1, cache.getEvictions());
+        assertEquals(MAX_BYTES, cache.getBytes());
+
+        assertMiss(0);
+        assertHit(2);
+    }
+
+    @Test
+    void promotedEntrySurvivesScan() {
+        cache.get(request(0), handler);
+        assertHit(0);
+
+        for (int i = 1; i <= 2 * MAX_BYTES / ENTRY_SIZE; i++) {
+            cache.get(request(i), handler);
+        }
+        assertTrue(cache.getBytes() <= MAX_BYTES);
+        assertHit(0);
+    }
+
+    @Test
+    void overflowOfProtectedSegmentFallsBackToProbation() {
+        int promoted = MAX_BYTES * 8 / 10 / ENTRY_SIZE + 1;
+        for (int i = 0; i < promoted; i++) {
+            cache.get(request(i), handler);
+        }
+        for (int i = 0; i < promoted; i++) {
+            assertHit(i);
+        }
+        // 0 was the least recently used when the protected segment overflowed, so it is in probation now
+        for (int i = 0; i < MAX_BYTES / ENTRY_SIZE - promoted + 1; i++) {
+            cache.get(request(1000 + i), handler);
+        }
+
+        assertMiss(0);
+        assertHit(1);
+    }
+
+    @Test
+    void doesNotCacheBigEntries() {
+        byte[] request = new byte[MAX_BYTES / 8];
+        cache.get(request, Function.identity());
+        cache.get(request, Function.identity());
+
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    void countsEchoedRequestOnce() {
+        cache.get(request(1), Function.identity());
+
+        assertEquals(96 + 100, cache.getBytes());
+    }
+
+    @Test
+    void comparesWholeRequest() {
+        byte[] request = request(1);
+        byte[] similar = request(1);
+        similar[99] = 1;
+        cache.get(request, handler);
+        cache.get(similar, handler);
+
+        assertEquals(2, handlerCalls);
+        assertEquals(0, cache.getHits());
+    }
+
+    private void assertHit(int i) {
+        int calls = handlerCalls;
+        cache.get(request(i), handler);
+        assertEquals(calls, handlerCalls, "request " + i + " missed");
+    }
+
+    private void assertMiss(int i) {
+        int calls = handlerCalls;
+        cache.get(request(i), handler);
+        assertEquals(calls + 1, handlerCalls, "request " + i + " hit");
+    }
+
+    private static byte[] request(int i) {
+        return ByteBuffer.allocate(100).putInt(i).array();
+    }
+}
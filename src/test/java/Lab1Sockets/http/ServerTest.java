@@ -0,0 +1,225 @@
+package Lab1Sockets.http;
+
+import Lab1Sockets.http.blocking.BlockingAsyncServer;
+import Lab1Sockets.http.blocking.BlockingSyncServer;
+import Lab1Sockets.http.blocking.BlockingVirtualThreadServer;
+import Lab1Sockets.http.nio2.CompletionHandlerServer;
+import Lab1Sockets.http.nonblocking.NonBlockingWRClient;
+import Lab1Sockets.http.nonblocking.NonBlockingWRServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the servers on a free port and talks to them through a plain socket, the way the clients do.
+ */
+class ServerTest {
+
+    private Server server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"nonblocking", "sync", "async", "virtual", "completion"})
+    void answersEmptyBodyWithHead(String serverType) throws IOException {
+        int port = freePort();
+        server = newServer(serverType, new HttpSocketClient(port, 1, provider(request -> new byte[0])));
+        server.start();
+
+        try (Socket socket = connect(port)) {
+            // the second request on the connection checks that the first response was seen through
+            for (int i = 0; i < 2; i++) {
+                socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", read(socket.getInputStream(), 38));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sync", "async", "virtual"})
+    void answersFramesOfAnySize(String serverType) throws IOException, InterruptedException {
+        int port = freePort();
+        // smaller and bigger than the request buffer the blocking servers reuse for the response
+        server = newServer(serverType, new PooledSocketClient(port, 1, provider(request -> new byte[request[0] * 1024 * 1024])));
+        server.start();
+
+        try (Socket socket = connect(port)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            for (int megabytes : new int[]{0, 4, 0}) {
+                outputStream.writeInt(1);
+                outputStream.write(megabytes);
+                assertEquals(megabytes * 1024 * 1024, inputStream.readInt());
+                assertEquals(megabytes * 1024 * 1024, inputStream.skipBytes(megabytes * 1024 * 1024));
+            }
+        }
+        awaitNoOpenConnections();
+        assertEquals(0, server.getBufferPool().getBuffersInUse());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"socket", "pooled"})
+    void releasesBuffersWhenClientResets(String clientType) throws IOException, InterruptedException {
+        int port = freePort();
+        Client.ResponseProvider provider = provider(request -> new byte[16 * 1024 * 1024]);
+        Client client = clientType.equals("socket") ? new SocketClient(port, 1, provider) : new PooledSocketClient(port, 1, provider);
+        server = newServer("sync", client);
+        server.start();
+
+        for (int i = 0; i < 3; i++) {
+            try (Socket socket = connect(port)) {
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                if (clientType.equals("socket")) {
+                    outputStream.write(1);
+                    socket.shutdownOutput();
+                } else {
+                    outputStream.writeInt(1);
+                    outputStream.write(1);
+                }
+                // the server is in the middle of the response when the connection is reset
+                socket.getInputStream().readNBytes(1024);
+                socket.setSoLinger(true, 0);
+            }
+            awaitNoOpenConnections();
+            assertEquals(0, server.getBufferPool().getBuffersInUse());
+            assertEquals(0, server.getBufferPool().getBytesInUse());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"nonblocking", "sync", "async", "virtual", "completion"})
+    void closesConnectionAnnouncingTooLongFrame(String serverType) throws IOException, InterruptedException {
+        int port = freePort();
+        server = newServer(serverType, new PooledSocketClient(port, 1, provider(request -> request)));
+        server.setMaxRequestSize(1024);
+        server.start();
+
+        try (Socket socket = connect(port)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeInt(1024);
+            outputStream.write(new byte[1024]);
+            assertEquals(1024, new DataInputStream(socket.getInputStream()).readInt());
+            socket.getInputStream().readNBytes(1024);
+
+            outputStream.writeInt(1025);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        awaitNoOpenConnections();
+        assertEquals(0, server.getBufferPool().getBuffersInUse());
+        assertTrue(server.getBufferPool().getMisses() < 4, "A buffer was leased for the frame");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"nonblocking", "sync", "async", "virtual", "completion"})
+    void closesConnectionSendingTooLongRequest(String serverType) throws IOException, InterruptedException {
+        int port = freePort();
+        server = newServer(serverType, new SocketClient(port, 1, provider(request -> request)));
+        server.setMaxRequestSize(100 * 1024);
+        server.start();
+
+        try (Socket socket = connect(port)) {
+            int read;
+            try {
+                socket.getOutputStream().write(new byte[300 * 1024]);
+                socket.shutdownOutput();
+                read = socket.getInputStream().read();
+            } catch (SocketException e) {
+                // the server may close the connection while the request is still being sent
+                read = -1;
+            }
+            assertEquals(-1, read);
+        }
+        awaitNoOpenConnections();
+        assertEquals(0, server.getBufferPool().getBuffersInUse());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"nonblocking", "sync", "async", "virtual", "completion"})
+    void nonBlockingClientSendsOnceStarted(String serverType) throws IOException {
+        NonBlockingWRClient client = new NonBlockingWRClient(freePort(), 1, 1, 1, provider(request -> request));
+        server = newServer(serverType, client);
+        server.start();
+
+        assertThrows(IllegalStateException.class, () -> client.sendDataAndGetResponse(new byte[5]));
+        client.start();
+        try {
+            assertEquals(5, client.sendDataAndGetResponse(new byte[5]));
+        } finally {
+            client.closeConnections();
+        }
+    }
+
+    private void awaitNoOpenConnections() throws InterruptedException {
+        long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getMetrics().snapshot().gauges().get("open_connections") > 0) {
+            assertTrue(System.nanoTime() < deadlineNs, "The connection is still open");
+            Thread.sleep(10);
+        }
+    }
+
+    static Server newServer(String serverType, Client client) {
+        return switch (serverType) {
+            case "nonblocking" -> new NonBlockingWRServer(client.port, client, 2);
+            case "sync" -> new BlockingSyncServer(client.port, client);
+            case "async" -> new BlockingAsyncServer(client.port, client, 2);
+            case "virtual" -> new BlockingVirtualThreadServer(client.port, client, 10);
+            case "completion" -> new CompletionHandlerServer(client.port, client, 2);
+            default -> throw new IllegalArgumentException("Unknown server type: " + serverType);
+        };
+    }
+
+    static Client.ResponseProvider provider(Function<byte[], byte[]> function) {
+        return new Client.ResponseProvider() {
+            @Override
+            public Function<byte[], byte[]> getResponseGeneratorFunction() {
+                return function;
+            }
+
+            @Override
+            public boolean checkResponseCorectness(byte[] sentData, byte[] receivedData) {
+                return true;
+            }
+
+            @Override
+            public byte[] getRequestData() {
+                return new byte[0];
+            }
+        };
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static Socket connect(int port) throws IOException {
+        // where the clients connect to, see Client
+        Socket socket = new Socket(InetAddress.getLocalHost(), port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    static String read(InputStream inputStream, int length) throws IOException {
+        return new String(inputStream.readNBytes(length), StandardCharsets.US_ASCII);
+    }
+}
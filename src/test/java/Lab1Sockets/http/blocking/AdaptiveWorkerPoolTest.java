@@ -0,0 +1,113 @@
+package Lab1Sockets.http.blocking;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveWorkerPoolTest {
+
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private AdaptiveWorkerPool pool;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        release.countDown();
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void growsByHalfWhenTasksWaitAndShrinksToMinWhenIdle() throws InterruptedException {
+        pool = AdaptiveWorkerPool.start(4, 16, 100, TimeUnit.MILLISECONDS.toNanos(1),
+                AdaptiveWorkerPool.SheddingPolicy.REJECT);
+        CountDownLatch firstGate = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> await(firstGate));
+        }
+        // these wait in the queue behind the first ones
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> await(release));
+        }
+        Thread.sleep(30);
+
+        // the first queued task to be taken has waited 30 ms, which puts the average over the target
+        firstGate.countDown();
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (pool.getCorePoolSize() < 6) {
+            assertTrue(System.nanoTime() < deadline, "core size " + pool.getCorePoolSize());
+            Thread.sleep(1);
+        }
+        assertEquals(6, pool.getCorePoolSize());
+        assertTrue(pool.getQueueWaitAverageNs() > TimeUnit.MILLISECONDS.toNanos(1));
+
+        // every task that finishes with the queue empty takes the average down, and then a thread away
+        release.countDown();
+        deadline = System.nanoTime() + TIMEOUT_NS;
+        while (pool.getCorePoolSize() > 4) {
+            assertTrue(System.nanoTime() < deadline, "core size " + pool.getCorePoolSize());
+            pool.execute(() -> {});
+            Thread.sleep(12);
+        }
+        assertEquals(4, pool.getCorePoolSize());
+    }
+
+    @Test
+    void rejectsWhenQueueAndThreadsAreFull() throws InterruptedException {
+        pool = AdaptiveWorkerPool.start(1, 2, 1, TimeUnit.SECONDS.toNanos(1), AdaptiveWorkerPool.SheddingPolicy.REJECT);
+        fill();
+
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {}));
+    }
+
+    @Test
+    void blocksSubmitterUntilThereIsRoom() throws Exception {
+        pool = AdaptiveWorkerPool.start(1, 2, 1, TimeUnit.SECONDS.toNanos(1),
+                AdaptiveWorkerPool.SheddingPolicy.STOP_ACCEPTING);
+        fill();
+
+        CountDownLatch ran = new CountDownLatch(1);
+        CompletableFuture<Void> submitted = CompletableFuture.runAsync(() -> pool.execute(ran::countDown));
+        assertThrows(TimeoutException.class, () -> submitted.get(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        submitted.get(5, TimeUnit.SECONDS);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Occupies the single core thread, the single place in the queue, and the one extra thread.
+     */
+    private void fill() throws InterruptedException {
+        startBlockingTask();
+        pool.execute(() -> await(release));
+        startBlockingTask();
+        assertEquals(1, pool.getQueue().size());
+        assertEquals(2, pool.getPoolSize());
+    }
+
+    private void startBlockingTask() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
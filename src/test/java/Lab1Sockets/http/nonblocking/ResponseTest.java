@@ -0,0 +1,63 @@
+package Lab1Sockets.http.nonblocking;
+
+import Lab1Sockets.http.FileRegion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesFileRegionWhenChannelIsFull() throws IOException {
+        byte[] content = new byte[1024 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+        try (FileChannel file = FileChannel.open(Files.write(directory.resolve("body"), content))) {
+            Response response = new Response(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{'h'})},
+                    new FileRegion(file, 0, content.length));
+
+            long written = 0;
+            ByteBuffer drain = ByteBuffer.allocate(64 * 1024);
+            while (!response.isWritten()) {
+                // the pipe takes a fraction of the file, a 0 from transferTo() is a full pipe here
+                written += response.writeTo(pipe.sink());
+                drain.clear();
+                pipe.source().read(drain);
+            }
+            assertEquals(1 + content.length, written);
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    @Test
+    void failsWhenFileEndsBeforeItsRegion() throws IOException {
+        Pipe pipe = Pipe.open();
+        try (FileChannel file = FileChannel.open(Files.write(directory.resolve("body"), new byte[100]))) {
+            // e.g. the file was truncated after the response was queued
+            Response response = new Response(new ByteBuffer[0], new FileRegion(file, 0, 200));
+
+            assertThrows(EOFException.class, () -> response.writeTo(pipe.sink()));
+            assertFalse(response.isWritten());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
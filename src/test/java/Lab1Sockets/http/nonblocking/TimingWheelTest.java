@@ -0,0 +1,99 @@
+package Lab1Sockets.http.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    // 4 slots of 10 ns, so a round of the ring is 40 ns
+    private final TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+
+    @Test
+    void firesAtFirstTickAtOrAfterDeadline() {
+        TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("a");
+        wheel.schedule(timer, 25);
+        assertTrue(timer.isScheduled());
+        assertEquals(25, timer.deadlineNs());
+
+        assertEquals(List.of(), owners(wheel.advance(29)));
+        assertEquals(List.of("a"), owners(wheel.advance(30)));
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void skipsRoundsOfTheRing() {
+        TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("later");
+        // tick 10 shares its slot with ticks 2 and 6, which pass first
+        wheel.schedule(timer, 100);
+
+        for (long nowNs = 0; nowNs < 100; nowNs += 10) {
+            assertEquals(List.of(), owners(wheel.advance(nowNs)), "fired at " + nowNs);
+        }
+        assertEquals(List.of("later"), owners(wheel.advance(100)));
+    }
+
+    @Test
+    void cancelledTimersDoNotFire() {
+        TimingWheel.Timer<String> first = new TimingWheel.Timer<>("first");
+        TimingWheel.Timer<String> middle = new TimingWheel.Timer<>("middle");
+        TimingWheel.Timer<String> last = new TimingWheel.Timer<>("last");
+        wheel.schedule(first, 20);
+        wheel.schedule(middle, 20);
+        wheel.schedule(last, 20);
+
+        wheel.cancel(middle);
+        wheel.cancel(last);
+        wheel.cancel(last);
+        assertFalse(middle.isScheduled());
+        assertEquals(1, wheel.size());
+
+        assertEquals(List.of("first"), owners(wheel.advance(20)));
+    }
+
+    @Test
+    void rescheduleMovesTimer() {
+        TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("a");
+        wheel.schedule(timer, 20);
+        wheel.schedule(timer, 70);
+        assertEquals(1, wheel.size());
+
+        assertEquals(List.of(), owners(wheel.advance(60)));
+        assertEquals(List.of("a"), owners(wheel.advance(70)));
+    }
+
+    @Test
+    void pastDeadlineFiresAtNextTick() {
+        wheel.advance(50);
+        wheel.schedule(new TimingWheel.Timer<>("late"), 10);
+
+        assertEquals(List.of(), owners(wheel.advance(59)));
+        assertEquals(List.of("late"), owners(wheel.advance(60)));
+    }
+
+    @Test
+    void catchesUpAfterLongPause() {
+        wheel.schedule(new TimingWheel.Timer<>("a"), 30);
+        wheel.schedule(new TimingWheel.Timer<>("b"), 500);
+
+        assertEquals(List.of("a", "b"), owners(wheel.advance(10_000)).stream().sorted().toList());
+        assertEquals(0, wheel.size());
+
+        // the wheel went on to the current tick
+        wheel.schedule(new TimingWheel.Timer<>("c"), 10_015);
+        assertEquals(List.of("c"), owners(wheel.advance(10_020)));
+    }
+
+    @Test
+    void rejectsInvalidTicks() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(0, 4, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(10, 0, 0));
+    }
+
+    private static List<String> owners(List<TimingWheel.Timer<String>> timers) {
+        return timers.stream().map(TimingWheel.Timer::owner).toList();
+    }
+}
@@ -0,0 +1,351 @@
+package Lab1Sockets.http.nonblocking;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.SelfSignedTls;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a TlsChannel against a client SSLEngine over a loopback connection. Both sides are non-blocking and
+ * driven from the test thread, so the test decides how the client's bytes are cut before the server reads them.
+ */
+class TlsChannelTest {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    @TempDir
+    static Path keystoreDirectory;
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+
+    private final BufferPool bufferPool = new BufferPool();
+    // whether each finished handshake was a resumed one
+    private final List<Boolean> handshakes = new ArrayList<>();
+
+    private ServerSocketChannel listener;
+    private SocketChannel clientSide;
+    private TlsChannel tls;
+    private SSLEngine client;
+
+    // encrypted bytes the client made and didn't send yet, in write mode
+    private final ByteBuffer clientOutput = ByteBuffer.allocate(256 * 1024);
+    private final ByteBuffer clientInput = ByteBuffer.allocate(256 * 1024);
+    private final ByteBuffer clientPlaintext = ByteBuffer.allocate(256 * 1024);
+
+    @BeforeAll
+    static void createContexts() {
+        Path keystore = keystoreDirectory.resolve("tls.p12");
+        SelfSignedTls.createKeystore(keystore, SelfSignedTls.DEFAULT_PASSWORD);
+        serverContext = SelfSignedTls.serverContext(keystore, SelfSignedTls.DEFAULT_PASSWORD);
+        clientContext = SelfSignedTls.clientContext(keystore, SelfSignedTls.DEFAULT_PASSWORD);
+    }
+
+    @BeforeEach
+    void listen() throws IOException {
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        closeConnection();
+        listener.close();
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void finishesHandshakeReadByteByByte() throws IOException {
+        connect();
+        handshake(1);
+
+        assertEquals(List.of(false), handshakes);
+        clientSend("hello");
+        assertEquals("hello", serverReceive(5, 1024));
+        serverSend("world");
+        assertEquals("world", clientReceive(5));
+    }
+
+    @Test
+    void keepsWhatDoesNotFitIntoCallersBuffer() throws IOException {
+        connect();
+        handshake(Integer.MAX_VALUE);
+        String message = "0123456789".repeat(1000);
+
+        clientSend(message);
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, readSome(dst));
+        // the rest of the record is decrypted already, the socket has nothing more
+        assertTrue(tls.hasBufferedInput());
+
+        assertEquals(message, string(dst.flip()) + serverReceive(message.length() - 100, 100));
+        assertFalse(tls.hasBufferedInput());
+    }
+
+    @Test
+    void hasBufferedInputWhileSecondRecordWaits() throws IOException {
+        connect();
+        handshake(Integer.MAX_VALUE);
+
+        // two records, sent in one write
+        wrap("first");
+        wrap("second");
+        sendToServer(Integer.MAX_VALUE);
+
+        ByteBuffer dst = ByteBuffer.allocate(64 * 1024);
+        assertEquals(5, readSome(dst));
+        assertTrue(tls.hasBufferedInput());
+        assertEquals(6, tls.read(dst));
+        assertFalse(tls.hasBufferedInput());
+        assertEquals("firstsecond", string(dst.flip()));
+    }
+
+    @Test
+    void endOfStreamDuringHandshake() throws IOException {
+        connect();
+        client.beginHandshake();
+        runClient();
+        // a part of the ClientHello, and then the client is gone
+        clientOutput.limit(10).flip();
+        clientSide.write(clientOutput);
+        clientSide.shutdownOutput();
+
+        assertEquals(-1, readUntilEndOfStream());
+        assertTrue(tls.isHandshaking());
+        assertEquals(List.of(), handshakes);
+    }
+
+    @Test
+    void closeNotifyDuringHandshake() throws IOException {
+        connect();
+        client.beginHandshake();
+        runClient();
+        sendToServer(Integer.MAX_VALUE);
+        // the client takes the server's flight, and closes instead of sending its Finished
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (client.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            assertTrue(System.nanoTime() < deadline, "no flight from the server");
+            runClientUnwrap();
+        }
+        client.closeOutbound();
+        runClient();
+        clientSide.write(clientOutput.flip());
+
+        assertEquals(-1, readUntilEndOfStream());
+        assertEquals(List.of(), handshakes);
+    }
+
+    @Test
+    void reportsResumedSession() throws IOException, InterruptedException {
+        connect();
+        handshake(Integer.MAX_VALUE);
+        // the session ticket comes after the handshake, and before this response
+        serverSend("ticket");
+        assertEquals("ticket", clientReceive(6));
+        closeConnection();
+
+        // the resumed session keeps the creation time of the first one, which has to be in an earlier millisecond
+        Thread.sleep(5);
+        connect();
+        handshake(Integer.MAX_VALUE);
+
+        assertEquals(List.of(false, true), handshakes);
+    }
+
+    private void connect() throws IOException {
+        clientSide = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel serverSide = listener.accept();
+        clientSide.configureBlocking(false);
+        serverSide.configureBlocking(false);
+        tls = new TlsChannel(serverSide, serverContext.createSSLEngine(), bufferPool,
+                (durationNs, resumed) -> handshakes.add(resumed));
+        // the same peer as before, for the client's session cache
+        client = clientContext.createSSLEngine("localhost", listener.socket().getLocalPort());
+        client.setUseClientMode(true);
+        clientOutput.clear();
+        clientInput.clear();
+        clientPlaintext.clear();
+    }
+
+    private void closeConnection() throws IOException {
+        if (tls != null) {
+            tls.close();
+            clientSide.close();
+            tls = null;
+        }
+    }
+
+    /**
+     * Runs the handshake on both sides, with the client's bytes written to the socket in pieces of pieceSize
+     * and the server reading after every piece.
+     */
+    private void handshake(int pieceSize) throws IOException {
+        client.beginHandshake();
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (tls.isHandshaking() || isHandshaking(client)) {
+            assertTrue(System.nanoTime() < deadline, "handshake didn't finish");
+            runClient();
+            sendToServer(pieceSize);
+            assertNotEquals(-1, tls.read(EMPTY));
+        }
+    }
+
+    private static boolean isHandshaking(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Moves the client engine on as far as it goes: its output is collected in clientOutput, and whatever the
+     * server sent is decrypted into clientPlaintext.
+     */
+    private void runClient() throws IOException {
+        while (true) {
+            switch (client.getHandshakeStatus()) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = client.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                case NEED_WRAP -> {
+                    if (client.wrap(EMPTY, clientOutput).getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return;
+                    }
+                }
+                default -> {
+                    if (clientSide.read(clientInput) == -1 || client.isInboundDone()) {
+                        return;
+                    }
+                    clientInput.flip();
+                    SSLEngineResult result = client.unwrap(clientInput, clientPlaintext);
+                    clientInput.compact();
+                    if (result.bytesConsumed() == 0 && !isHandshaking(client)
+                            || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void runClientUnwrap() throws IOException {
+        if (client.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = client.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return;
+        }
+        clientSide.read(clientInput);
+        clientInput.flip();
+        client.unwrap(clientInput, clientPlaintext);
+        clientInput.compact();
+    }
+
+    private void sendToServer(int pieceSize) throws IOException {
+        clientOutput.flip();
+        while (clientOutput.hasRemaining()) {
+            ByteBuffer piece = clientOutput.slice(clientOutput.position(), Math.min(pieceSize, clientOutput.remaining()));
+            while (piece.hasRemaining()) {
+                clientSide.write(piece);
+            }
+            clientOutput.position(clientOutput.position() + piece.limit());
+            if (tls.isHandshaking()) {
+                assertNotEquals(-1, tls.read(EMPTY));
+            }
+        }
+        clientOutput.clear();
+    }
+
+    private void wrap(String message) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+        while (src.hasRemaining()) {
+            client.wrap(src, clientOutput);
+        }
+    }
+
+    private void clientSend(String message) throws IOException {
+        wrap(message);
+        sendToServer(Integer.MAX_VALUE);
+    }
+
+    private String clientReceive(int length) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (clientPlaintext.position() < length) {
+            assertTrue(System.nanoTime() < deadline, "client got " + clientPlaintext.position() + " bytes");
+            runClient();
+        }
+        String received = string(clientPlaintext.flip());
+        clientPlaintext.clear();
+        return received;
+    }
+
+    private void serverSend(String message) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (src.hasRemaining() || tls.hasPendingOutput()) {
+            assertTrue(System.nanoTime() < deadline, "server couldn't write");
+            tls.write(src);
+            tls.flushPendingOutput();
+        }
+    }
+
+    private String serverReceive(int length, int readSize) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(readSize);
+        while (received.size() < length) {
+            dst.clear();
+            readSome(dst);
+            received.write(dst.array(), 0, dst.position());
+        }
+        return received.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads until something comes, which on loopback takes no more than a few tries.
+     */
+    private int readSome(ByteBuffer dst) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        int read;
+        while ((read = tls.read(dst)) == 0) {
+            assertTrue(System.nanoTime() < deadline, "nothing to read");
+        }
+        return read;
+    }
+
+    private int readUntilEndOfStream() throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        int read;
+        while ((read = tls.read(dst)) == 0) {
+            assertTrue(System.nanoTime() < deadline, "no end of stream");
+        }
+        return read;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.US_ASCII.decode(buffer).toString();
+    }
+}
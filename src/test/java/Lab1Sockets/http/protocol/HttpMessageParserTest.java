@@ -0,0 +1,255 @@
+package Lab1Sockets.http.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpMessageParserTest {
+
+    private final HttpMessageParser parser = new HttpMessageParser();
+
+    @Test
+    void parsesContentLengthRequest() {
+        ByteBuffer buffer = bufferOf("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("POST /echo HTTP/1.1", string(parser.startLine(buffer)));
+        assertEquals("localhost", string(parser.header(buffer, "host")));
+        assertNull(parser.header(buffer, "Accept"));
+        assertEquals(5, parser.getContentLength());
+        assertEquals("hello", body(buffer));
+        assertEquals(buffer.remaining(), parser.getMessageLength());
+        assertTrue(parser.isKeepAlive(buffer));
+    }
+
+    @Test
+    void resumesAfterEveryByte() {
+        String request = "POST /echo HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world";
+        ByteBuffer buffer = ByteBuffer.allocate(request.length()).limit(0);
+        for (int i = 0; i < request.length() - 1; i++) {
+            append(buffer, request.substring(i, i + 1));
+            assertFalse(parser.parse(buffer), "complete after " + (i + 1) + " bytes");
+        }
+        append(buffer, request.substring(request.length() - 1));
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("hello world", body(buffer));
+        assertEquals(request.length(), parser.getMessageLength());
+    }
+
+    @Test
+    void parsesChunkedBodyAsOnePartPerChunk() {
+        ByteBuffer buffer = bufferOf("POST /echo HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nExpires: never\r\n\r\n");
+
+        assertTrue(parser.parse(buffer));
+        assertTrue(parser.isChunked());
+        ByteBuffer[] parts = parser.body(buffer);
+        assertEquals(2, parts.length);
+        assertEquals("hello", string(parts[0]));
+        assertEquals(" world", string(parts[1]));
+        assertEquals("hello world", body(buffer));
+        assertEquals(buffer.remaining(), parser.getMessageLength());
+    }
+
+    @Test
+    void parsesChunkedBodyReadInPieces() {
+        String request = "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "a\r\n0123456789\r\n3\r\nabc\r\n0\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.allocate(request.length()).limit(0);
+        for (int start = 0; start < request.length(); start += 7) {
+            append(buffer, request.substring(start, Math.min(start + 7, request.length())));
+            assertEquals(buffer.limit() == request.length(), parser.parse(buffer));
+        }
+
+        assertEquals("0123456789abc", body(buffer));
+    }
+
+    @Test
+    void leavesPipelinedRequestAlone() {
+        ByteBuffer buffer = bufferOf("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("GET /a HTTP/1.1", string(parser.startLine(buffer)));
+        assertEquals(0, parser.getBodyLength());
+
+        buffer.position(parser.getMessageLength());
+        parser.reset();
+        assertTrue(parser.parse(buffer));
+        assertEquals("GET /b HTTP/1.1", string(parser.startLine(buffer)));
+    }
+
+    @Test
+    void parseHeadStopsBeforeBody() {
+        ByteBuffer buffer = bufferOf("POST /echo HTTP/1.1\r\nContent-Length: 100\r\n\r\nstart of the body");
+
+        assertTrue(parser.parseHead(buffer));
+        assertEquals(100, parser.getContentLength());
+        assertEquals("POST /echo HTTP/1.1\r\nContent-Length: 100\r\n\r\n".length(), parser.getMessageLength());
+    }
+
+    @Test
+    void rejectsHeadOfManyShortLines() {
+        ByteBuffer buffer = bufferOf("GET / HTTP/1.1\r\n" + "X: y\r\n".repeat(HttpMessageParser.MAX_HEAD_SIZE / 6 + 1));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> parser.parse(buffer));
+        assertTrue(e.getMessage().contains("head"), e.getMessage());
+    }
+
+    @Test
+    void rejectsLongLineBeforeItsEnd() {
+        ByteBuffer buffer = bufferOf("GET /" + "a".repeat(HttpMessageParser.MAX_HEAD_SIZE));
+
+        assertThrows(IllegalStateException.class, () -> parser.parse(buffer));
+    }
+
+    @Test
+    void rejectsLongTrailerSection() {
+        ByteBuffer buffer = bufferOf("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\na\r\n0\r\n"
+                + "X: y\r\n".repeat(HttpMessageParser.MAX_HEAD_SIZE / 6 + 1));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> parser.parse(buffer));
+        assertTrue(e.getMessage().contains("trailer"), e.getMessage());
+    }
+
+    @Test
+    void acceptsBodyLongerThanHeadLimit() {
+        String body = "b".repeat(4 * HttpMessageParser.MAX_HEAD_SIZE);
+        String chunk = Integer.toHexString(body.length()) + "\r\n" + body + "\r\n";
+        ByteBuffer buffer = bufferOf("POST / HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body
+                + "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + chunk + chunk + "0\r\n\r\n");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals(body.length(), parser.getBodyLength());
+
+        buffer.position(parser.getMessageLength());
+        parser.reset();
+        assertTrue(parser.parse(buffer));
+        assertEquals(2 * body.length(), parser.getBodyLength());
+    }
+
+    @Test
+    void rejectsConflictingContentLengths() {
+        ByteBuffer buffer = bufferOf("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!");
+
+        assertThrows(IllegalStateException.class, () -> parser.parse(buffer));
+    }
+
+    @Test
+    void acceptsRepeatedContentLength() {
+        ByteBuffer buffer = bufferOf("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("hello", body(buffer));
+    }
+
+    @Test
+    void rejectsMalformedFraming() {
+        assertThrows(IllegalStateException.class, () -> parser.parse(bufferOf("GET / HTTP/1.1\r\nno colon\r\n\r\n")));
+        parser.reset();
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n")));
+        parser.reset();
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n")));
+        parser.reset();
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nab\r\n")));
+    }
+
+    @Test
+    void rejectsContentLengthOverMaxBodySize() {
+        HttpMessageParser limited = new HttpMessageParser(100);
+
+        assertTrue(limited.parse(bufferOf("POST / HTTP/1.1\r\nContent-Length: 100\r\n\r\n" + "a".repeat(100))));
+        limited.reset();
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> limited.parse(bufferOf("POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n")));
+        assertTrue(e.getMessage().contains("100 bytes"), e.getMessage());
+    }
+
+    @Test
+    void rejectsContentLengthOfManyDigitsWithoutOverflow() {
+        // 20 digits overflow a long, and would wrap around to a small length if they were multiplied out
+        String digits = "18446744073709551716";
+
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf("POST / HTTP/1.1\r\nContent-Length: " + digits + "\r\n\r\n")));
+        HttpMessageParser unlimited = new HttpMessageParser(Long.MAX_VALUE);
+        assertThrows(IllegalStateException.class,
+                () -> unlimited.parseHead(bufferOf("POST / HTTP/1.1\r\nContent-Length: " + digits + "\r\n\r\n")));
+        unlimited.reset();
+        assertTrue(unlimited.parseHead(bufferOf("POST / HTTP/1.1\r\nContent-Length: " + Long.MAX_VALUE + "\r\n\r\n")));
+        assertEquals(Long.MAX_VALUE, unlimited.getContentLength());
+    }
+
+    @Test
+    void rejectsChunkedBodyOverMaxBodySizeBeforeItsData() {
+        HttpMessageParser limited = new HttpMessageParser(10);
+        String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+
+        assertTrue(limited.parse(bufferOf(head + "5\r\nhello\r\n5\r\nworld\r\n0\r\n\r\n")));
+        limited.reset();
+        // the third chunk's size line is enough, none of its data has arrived
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> limited.parse(bufferOf(head + "5\r\nhello\r\n5\r\nworld\r\n1\r\n")));
+        assertTrue(e.getMessage().contains("10 bytes"), e.getMessage());
+    }
+
+    @Test
+    void rejectsLongChunkLine() {
+        String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf(head + "1;" + "x".repeat(HttpMessageParser.MAX_HEAD_SIZE))));
+        parser.reset();
+        assertThrows(IllegalStateException.class,
+                () -> parser.parse(bufferOf(head + "1\r\na" + " ".repeat(HttpMessageParser.MAX_HEAD_SIZE + 1))));
+    }
+
+    @Test
+    void keepAliveFollowsVersionAndConnectionHeader() {
+        assertFalse(keepAlive("GET / HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        assertFalse(keepAlive("GET / HTTP/1.0\r\n\r\n"));
+        assertTrue(keepAlive("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n"));
+    }
+
+    @Test
+    void findsTokenInList() {
+        assertTrue(HttpMessageParser.hasToken(bufferOf("deflate, GZIP;q=0.5"), "gzip"));
+        assertFalse(HttpMessageParser.hasToken(bufferOf("x-gzip"), "gzip"));
+    }
+
+    private boolean keepAlive(String request) {
+        ByteBuffer buffer = bufferOf(request);
+        parser.reset();
+        assertTrue(parser.parse(buffer));
+        return parser.isKeepAlive(buffer);
+    }
+
+    private String body(ByteBuffer buffer) {
+        byte[] body = new byte[parser.getBodyLength()];
+        parser.copyBody(buffer, body);
+        return new String(body, StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer bufferOf(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Appends the data after the limit, the way a read would.
+     */
+    private static void append(ByteBuffer buffer, String data) {
+        int limit = buffer.limit();
+        buffer.limit(limit + data.length());
+        buffer.put(limit, data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString();
+    }
+}
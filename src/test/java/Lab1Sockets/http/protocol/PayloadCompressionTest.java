@@ -0,0 +1,90 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.CompressorPool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PayloadCompressionTest {
+
+    private final CompressorPool compressorPool = new CompressorPool();
+    private final PayloadCompression client = new PayloadCompression(compressorPool, true);
+    private final PayloadCompression server = new PayloadCompression(compressorPool, false);
+
+    @Test
+    void negotiatesWithFirstRequest() {
+        byte[] payload = text(64 * 1024);
+
+        // nothing was offered to the server yet, so it sends no flag at all
+        assertEquals(0, server.encode(payload).flags());
+
+        // the offer goes out with a payload as it is, the client doesn't know yet whether the server takes more
+        PayloadCompression.Payload request = client.encode(payload);
+        assertEquals(PayloadCompression.ACCEPTS_COMPRESSED, request.flags());
+        assertSame(payload, request.data());
+        assertSame(payload, server.decode(request.data(), request.flags()));
+
+        PayloadCompression.Payload response = server.encode(payload);
+        assertEquals(PayloadCompression.COMPRESSED | PayloadCompression.ACCEPTS_COMPRESSED, response.flags());
+        assertTrue(response.data().length < payload.length);
+        assertArrayEquals(payload, client.decode(response.data(), response.flags()));
+
+        PayloadCompression.Payload next = client.encode(payload);
+        assertEquals(PayloadCompression.COMPRESSED | PayloadCompression.ACCEPTS_COMPRESSED, next.flags());
+        assertArrayEquals(payload, server.decode(next.data(), next.flags()));
+    }
+
+    @Test
+    void sendsIncompressiblePayloadAsItIs() {
+        client.decode(new byte[0], PayloadCompression.ACCEPTS_COMPRESSED);
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+
+        PayloadCompression.Payload payload = client.encode(random);
+
+        assertEquals(PayloadCompression.ACCEPTS_COMPRESSED, payload.flags());
+        assertSame(random, payload.data());
+    }
+
+    @Test
+    void withoutCompressorPoolPassesPayloadsThrough() {
+        PayloadCompression plain = new PayloadCompression(null, true);
+        byte[] payload = text(64 * 1024);
+
+        assertEquals(0, plain.encode(payload).flags());
+        assertSame(payload, plain.decode(payload, PayloadCompression.ACCEPTS_COMPRESSED));
+        assertThrows(IllegalStateException.class,
+                () -> plain.decode(compressorPool.compress(payload), PayloadCompression.COMPRESSED));
+    }
+
+    @Test
+    void rejectsCorruptCompressedPayload() {
+        assertThrows(IllegalStateException.class,
+                () -> server.decode("not deflated".getBytes(StandardCharsets.US_ASCII), PayloadCompression.COMPRESSED));
+    }
+
+    @Test
+    void carriesFlagsInHttpHeaders() {
+        for (int flags : new int[]{0, PayloadCompression.ACCEPTS_COMPRESSED, PayloadCompression.FLAGS}) {
+            ByteBuffer buffer = ByteBuffer.wrap(("POST / HTTP/1.1\r\n" + PayloadCompression.httpHeaders(flags)
+                    + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            HttpMessageParser parser = new HttpMessageParser();
+            assertTrue(parser.parse(buffer));
+
+            assertEquals(flags, PayloadCompression.httpFlags(parser, buffer));
+        }
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "The quick brown fox jumps over the lazy dog. ".getBytes(StandardCharsets.US_ASCII);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = line[i % line.length];
+        }
+        return text;
+    }
+}
@@ -0,0 +1,68 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestBufferTest {
+
+    private final BufferPool bufferPool = new BufferPool();
+    private RequestBuffer request;
+
+    @AfterEach
+    void release() {
+        request.release();
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void takesFramesUpToMaxRequestSize() {
+        request = new RequestBuffer(bufferPool, WireProtocol.LENGTH_PREFIXED, 3);
+        request.writableBuffer().putInt(3).put(new byte[]{1, 2, 3}).putInt(1);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, request.nextRequest(false));
+        assertNull(request.nextRequest(false));
+        assertTrue(request.hasPartialRequest());
+    }
+
+    @Test
+    void rejectsFrameHeaderOverMaxRequestSize() {
+        request = new RequestBuffer(bufferPool, WireProtocol.LENGTH_PREFIXED, 3);
+        request.writableBuffer().putInt(LengthPrefixedFraming.MAX_PAYLOAD_LENGTH);
+
+        assertThrows(IllegalStateException.class, () -> request.nextRequest(false));
+    }
+
+    @Test
+    void rejectsCloseDelimitedRequestOverMaxRequestSize() {
+        request = new RequestBuffer(bufferPool, WireProtocol.CLOSE_DELIMITED, 100 * 1024);
+        ByteBuffer buffer = request.writableBuffer();
+        buffer.put(new byte[buffer.remaining()]);
+        assertNull(request.nextRequest(false));
+        buffer = request.writableBuffer();
+        buffer.put(new byte[buffer.remaining()]);
+        assertNull(request.nextRequest(false));
+
+        assertThrows(IllegalStateException.class, () -> request.writableBuffer());
+        assertThrows(IllegalStateException.class, () -> request.nextRequest(true));
+    }
+
+    @Test
+    void readFrameRejectsHeaderOverMax() throws IOException {
+        byte[] frame = ByteBuffer.allocate(8).putInt(LengthPrefixedFraming.MAX_PAYLOAD_LENGTH).array();
+        request = new RequestBuffer(bufferPool, WireProtocol.LENGTH_PREFIXED, 0);
+
+        assertThrows(IOException.class,
+                () -> LengthPrefixedFraming.readFrame(new DataInputStream(new ByteArrayInputStream(frame)), 1024));
+        byte[] payload = ByteBuffer.allocate(6).putInt(2).put(new byte[]{7, 8}).array();
+        assertArrayEquals(new byte[]{7, 8},
+                LengthPrefixedFraming.readFrame(new DataInputStream(new ByteArrayInputStream(payload)), 2));
+    }
+}
@@ -0,0 +1,131 @@
+package Lab1Sockets.http.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingRequestDecoderTest {
+
+    private final List<String> events = new ArrayList<>();
+    private final StreamingRequestDecoder.Listener listener = new StreamingRequestDecoder.Listener() {
+        @Override
+        public void onRequestStart(long length) {
+            events.add("start " + length);
+        }
+
+        @Override
+        public void onRequestChunk(ByteBuffer chunk) {
+            events.add(StandardCharsets.US_ASCII.decode(chunk).toString());
+        }
+
+        @Override
+        public void onRequestEnd() {
+            events.add("end");
+        }
+    };
+
+    // the connection's read buffer, kept in write mode between reads
+    private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+    @Test
+    void passesHttpBodyInThePiecesItWasReadIn() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.HTTP);
+        read(decoder, "POST / HTTP/1.1\r\nContent-Le");
+        assertEquals(List.of(), events);
+
+        read(decoder, "ngth: 11\r\n\r\nhello");
+        read(decoder, " world");
+        assertEquals(List.of("start 11", "hello", " world", "end"), events);
+        assertFalse(decoder.isInRequest());
+    }
+
+    @Test
+    void decodesChunkedHttpBodyAcrossReads() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.HTTP);
+        read(decoder, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r");
+        read(decoder, "\nhel");
+        assertTrue(decoder.isInRequest());
+        read(decoder, "lo\r\n6;ext=1\r\n world\r\n0\r\nTrailer: x\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+
+        assertEquals(List.of("start -1", "hel", "lo", " world", "end", "start 0", "end"), events);
+        assertFalse(decoder.isClosed());
+    }
+
+    @Test
+    void closesAfterHttpRequestWithoutKeepAlive() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.HTTP);
+        read(decoder, "GET / HTTP/1.1\r\nConnection: close\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+
+        assertEquals(List.of("start 0", "end"), events);
+        assertTrue(decoder.isClosed());
+    }
+
+    @Test
+    void decodesLengthPrefixedFrames() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.LENGTH_PREFIXED);
+        buffer.putInt(3).put((byte) 'a');
+        decode(decoder);
+        buffer.put("bc".getBytes(StandardCharsets.US_ASCII)).putInt(0).putInt(2);
+        decode(decoder);
+
+        assertEquals(List.of("start 3", "a", "bc", "end", "start 0", "end", "start 2"), events);
+        assertTrue(decoder.isInRequest());
+        assertThrows(EOFException.class, () -> decoder.endOfStream(listener));
+    }
+
+    @Test
+    void closeDelimitedBodyEndsWithStream() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.CLOSE_DELIMITED);
+        read(decoder, "abc");
+        read(decoder, "def");
+        assertEquals(List.of("start -1", "abc", "def"), events);
+
+        decoder.endOfStream(listener);
+        assertEquals(List.of("start -1", "abc", "def", "end"), events);
+        assertTrue(decoder.isClosed());
+    }
+
+    @Test
+    void emptyCloseDelimitedRequestEndsWithStream() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.CLOSE_DELIMITED);
+        decoder.endOfStream(listener);
+
+        assertEquals(List.of("start -1", "end"), events);
+    }
+
+    @Test
+    void rejectsLongChunkSizeLine() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.HTTP);
+        read(decoder, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+
+        assertThrows(IllegalStateException.class, () -> read(decoder, "1;" + "x".repeat(5000)));
+    }
+
+    @Test
+    void rejectsChunkDataWithoutLineBreak() throws Exception {
+        StreamingRequestDecoder decoder = new StreamingRequestDecoder(WireProtocol.HTTP);
+
+        assertThrows(IllegalStateException.class,
+                () -> read(decoder, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nab\r\n"));
+    }
+
+    /**
+     * Appends the data the way a read does, decodes what there is and keeps what wasn't taken.
+     */
+    private void read(StreamingRequestDecoder decoder, String data) throws Exception {
+        buffer.put(data.getBytes(StandardCharsets.US_ASCII));
+        decode(decoder);
+    }
+
+    private void decode(StreamingRequestDecoder decoder) throws Exception {
+        buffer.flip();
+        decoder.decode(buffer, listener);
+        buffer.compact();
+    }
+}
@@ -0,0 +1,122 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+import Lab1Sockets.http.StreamingHandler;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingSessionTest {
+
+    private final BufferPool bufferPool = new BufferPool();
+    private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    private int responses;
+
+    @Test
+    void echoesHttpBodyOfKnownLength() throws Exception {
+        StreamingSession session = session(WireProtocol.HTTP, StreamingHandler.echo());
+        session.decode(bufferOf("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel"));
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhel", sent());
+
+        session.decode(bufferOf("lo"));
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", sent());
+        assertEquals(1, responses);
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void echoesChunkedHttpBodyInChunks() throws Exception {
+        StreamingSession session = session(WireProtocol.HTTP, StreamingHandler.echo());
+        session.decode(bufferOf("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n"));
+        session.decode(bufferOf("b\r\nhello world\r\n0\r\n\r\n"));
+
+        assertEquals("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3\r\nabc\r\nb\r\nhello world\r\n0\r\n\r\n", sent());
+        assertEquals(1, responses);
+    }
+
+    @Test
+    void sendsEmptyResponseIfHandlerWritesNothing() throws Exception {
+        StreamingSession session = session(WireProtocol.LENGTH_PREFIXED, StreamingHandler.echo());
+        session.decode(ByteBuffer.allocate(4).putInt(0).flip());
+
+        assertArrayEquals(new byte[4], sent.toByteArray());
+        assertEquals(1, responses);
+    }
+
+    @Test
+    void sendsResultOfResponseFunction() throws Exception {
+        StreamingSession session = session(WireProtocol.LENGTH_PREFIXED,
+                StreamingHandler.of(request -> new StringBuilder(new String(request, StandardCharsets.US_ASCII))
+                        .reverse().toString().getBytes(StandardCharsets.US_ASCII)));
+        session.decode(ByteBuffer.allocate(7).putInt(3).put("abc".getBytes(StandardCharsets.US_ASCII)).flip());
+
+        ByteBuffer response = ByteBuffer.wrap(sent.toByteArray());
+        assertEquals(3, response.getInt());
+        assertEquals("cba", StandardCharsets.US_ASCII.decode(response).toString());
+    }
+
+    @Test
+    void rejectsResponseLongerThanItsLength() throws Exception {
+        StreamingSession session = session(WireProtocol.HTTP, requestLength -> new StreamingHandler.Exchange() {
+            @Override
+            public void onRequestChunk(ByteBuffer chunk, StreamingHandler.ResponseSink response) {
+            }
+
+            @Override
+            public void onRequestEnd(StreamingHandler.ResponseSink response) throws IOException {
+                response.start(1);
+                response.write(bufferOf("too long"));
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> session.decode(bufferOf("GET / HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    void lengthPrefixedResponseNeedsLength() throws Exception {
+        StreamingSession session = session(WireProtocol.LENGTH_PREFIXED, requestLength -> new StreamingHandler.Exchange() {
+            @Override
+            public void onRequestChunk(ByteBuffer chunk, StreamingHandler.ResponseSink response) {
+            }
+
+            @Override
+            public void onRequestEnd(StreamingHandler.ResponseSink response) throws IOException {
+                response.start(-1);
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> session.decode(ByteBuffer.allocate(4).putInt(0).flip()));
+    }
+
+    private StreamingSession session(WireProtocol wireProtocol, StreamingHandler handler) {
+        return new StreamingSession(bufferPool, wireProtocol, handler) {
+            @Override
+            protected void send(ByteBuffer... data) {
+                for (ByteBuffer buffer : data) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    sent.writeBytes(bytes);
+                }
+            }
+
+            @Override
+            protected void onResponseComplete(long requestStartNs) {
+                responses++;
+            }
+        };
+    }
+
+    private String sent() {
+        return sent.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer bufferOf(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,61 @@
+package Lab1Sockets.http.protocol;
+
+import Lab1Sockets.http.BufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireProtocolTest {
+
+    private final BufferPool bufferPool = new BufferPool();
+
+    @Test
+    void sendsHeadAndBody() {
+        ByteBuffer[] response = WireProtocol.HTTP.encodeResponse(bufferPool, "hello".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals(2, response.length);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n", string(response[0]));
+        assertEquals("hello", string(response[1]));
+        bufferPool.releaseAll(response);
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void sendsOnlyHeadOfEmptyBody() {
+        ByteBuffer[] response = WireProtocol.HTTP.encodeResponse(bufferPool, new byte[0]);
+
+        assertEquals(1, response.length);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", string(response[0]));
+        assertEquals(1, bufferPool.getBuffersInUse());
+        bufferPool.releaseAll(response);
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void sendsLengthOfEmptyFrame() {
+        ByteBuffer[] response = WireProtocol.LENGTH_PREFIXED.encodeResponse(bufferPool, new byte[0]);
+
+        assertEquals(1, response.length);
+        assertEquals(LengthPrefixedFraming.HEADER_SIZE, response[0].remaining());
+        assertEquals(0, response[0].getInt(0));
+        bufferPool.releaseAll(response);
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    @Test
+    void sendsCloseDelimitedBodyAlone() {
+        ByteBuffer[] response = WireProtocol.CLOSE_DELIMITED.encodeResponse(bufferPool, new byte[]{1, 2});
+
+        assertEquals(1, response.length);
+        assertEquals(2, response[0].remaining());
+        bufferPool.releaseAll(response);
+        assertEquals(0, bufferPool.getBuffersInUse());
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString();
+    }
+}